@@ -5,6 +5,7 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
+import de.spinscale.query.DirectoryType;
 import de.spinscale.query.SearchResult;
 import de.spinscale.query.Searcher;
 
@@ -34,7 +35,8 @@ public class Handler implements RequestHandler<Map<String, Object>, Handler.Resp
                     return new Response(400, EMPTY_BODY_RESPONSE);
                 }
 
-                Searcher searcher = Searcher.getSearcher(luceneIndex);
+                // the index is small enough to be loaded onto the heap, so that warm invocations never hit the disk
+                Searcher searcher = Searcher.getSearcher(luceneIndex, DirectoryType.HEAP);
                 if (searcher == null) {
                     return new Response(500, "cannot serve requests");
                 }
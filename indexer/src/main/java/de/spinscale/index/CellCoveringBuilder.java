@@ -0,0 +1,99 @@
+package de.spinscale.index;
+
+import de.spinscale.query.CellCovering;
+import de.spinscale.query.MortonCode;
+import org.apache.lucene.geo.Component2D;
+import org.apache.lucene.geo.LatLonGeometry;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.index.PointValues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes a hierarchical covering of morton cells for all shapes. Starting with the whole world, every cell is split
+ * into four until it is either fully within exactly one shape, outside of all shapes or the maximum level is reached.
+ * Cells on the maximum level that still touch a boundary are not part of the covering.
+ */
+class CellCoveringBuilder {
+
+    // in degrees, cells are enlarged by roughly 10cm to account for the quantization of the index
+    private static final double TOLERANCE = 1e-6;
+
+    private final int maxLevel;
+    private final List<String> cities = new ArrayList<>();
+    private final List<Component2D> components = new ArrayList<>();
+
+    CellCoveringBuilder(int maxLevel) {
+        // validates the level
+        MortonCode.cell(0, maxLevel);
+        this.maxLevel = maxLevel;
+    }
+
+    void add(String city, Polygon... polygons) {
+        // shapes are added from several indexing threads, so only the list modification is synchronized
+        final Component2D component = LatLonGeometry.create(polygons);
+        synchronized (this) {
+            cities.add(city);
+            components.add(component);
+        }
+    }
+
+    List<String> cities() {
+        return cities;
+    }
+
+    /**
+     * Returns the ranges of the covering as expected by {@link CellCovering#write}
+     */
+    List<long[]> build() {
+        final int[] candidates = new int[components.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = i;
+        }
+
+        final List<long[]> ranges = new ArrayList<>();
+        for (long cell = 0; cell < 4; cell++) {
+            cover(cell, 1, candidates, ranges);
+        }
+        return ranges;
+    }
+
+    private void cover(long cell, int level, int[] candidates, List<long[]> ranges) {
+        final double minLatitude = MortonCode.cellMinLatitude(cell, level) - TOLERANCE;
+        final double maxLatitude = MortonCode.cellMaxLatitude(cell, level) + TOLERANCE;
+        final double minLongitude = MortonCode.cellMinLongitude(cell, level) - TOLERANCE;
+        final double maxLongitude = MortonCode.cellMaxLongitude(cell, level) + TOLERANCE;
+
+        final int[] touching = new int[candidates.length];
+        int count = 0;
+        int inside = -1;
+        for (int candidate : candidates) {
+            final PointValues.Relation relation = components.get(candidate).relate(minLongitude, maxLongitude, minLatitude, maxLatitude);
+            if (relation != PointValues.Relation.CELL_OUTSIDE_QUERY) {
+                touching[count++] = candidate;
+                if (relation == PointValues.Relation.CELL_INSIDE_QUERY) {
+                    inside = candidate;
+                }
+            }
+        }
+
+        if (count == 0) {
+            ranges.add(range(cell, level, CellCovering.OUTSIDE));
+        } else if (count == 1 && inside >= 0) {
+            ranges.add(range(cell, level, inside));
+        } else if (level < maxLevel) {
+            // only shapes touching this cell can touch its children
+            final int[] childCandidates = Arrays.copyOf(touching, count);
+            for (long child = 0; child < 4; child++) {
+                cover((cell << 2) | child, level + 1, childCandidates, ranges);
+            }
+        }
+    }
+
+    private static long[] range(long cell, int level, int ordinal) {
+        final int shift = 2 * (MortonCode.BITS_PER_DIMENSION - level);
+        return new long[] { cell << shift, ((cell + 1) << shift) - 1, ordinal };
+    }
+}
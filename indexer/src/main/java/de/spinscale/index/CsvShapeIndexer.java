@@ -1,51 +1,142 @@
 package de.spinscale.index;
 
+import de.spinscale.query.BoundingBox;
+import de.spinscale.query.CellCovering;
+import de.spinscale.query.DirectoryType;
+import de.spinscale.query.HilbertCode;
+import de.spinscale.query.RasterSearcher;
+import de.spinscale.query.Searcher;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LatLonPoint;
 import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.ShapeField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.geo.GeoEncodingUtils;
 import org.apache.lucene.geo.Polygon;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.BitUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntroSorter;
 
-import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CsvShapeIndexer {
 
+    /** cells on level 16 are roughly 600m x 300m */
+    public static final int DEFAULT_COVERING_LEVEL = 16;
+    /** the number of points searched and added by a single task while enriching the index */
+    private static final int POINT_PARTITION_SIZE = 4096;
+    /** the number of partitions read and sorted at once, bounds the memory needed for the points */
+    private static final int POINT_PARTITIONS_PER_WINDOW = 64;
+    private static final String POINT_RESOURCE_NAME = "/DE.tab";
+    /** tells shapes and post code locations apart, so they can be deleted separately when updating the index */
+    static final String TYPE_FIELD = "type";
+    static final String TYPE_SHAPE = "shape";
+    static final String TYPE_POINT = "point";
+    static final String HILBERT_FIELD = "hilbert";
+
     private final List<CsvShapeParser.Shape> shapes;
     private final Path directory;
     private final String downloadDirectory;
+    private int coveringLevel = DEFAULT_COVERING_LEVEL;
+    private double rasterResolutionMeters = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path pointsFile;
+    private boolean fullRebuild;
+    private Path tessellationCacheDirectory;
+    private double simplificationToleranceMeters = 0;
+    private double tilingMaxAreaSquareKm = 0;
+    private boolean hilbertSort;
+    private PhaseTimings timings;
+    private CellCoveringBuilder coveringBuilder;
+    private ShapeFingerprints fingerprints;
+    private TessellationCache tessellationCache;
+    private PolygonSimplifier simplifier;
+    // the shapes parsed to register them with the simplifier, removed once they are indexed
+    private Map<String, ParsedShape> parsedShapes;
+    private ShapeTiler tiler;
+    private LongAdder triangles;
 
     public static void main(String[] args) throws Exception {
-        // shortcut to only reindex if not needed if shapes file has been changed
-        // tried to make this work in the build.gradle file, but failed...
-        long shapesLastModified = new File("src/main/resources/shapes.csv").lastModified();
-        File buildIndexDirectory = new File("build/indices");
-        if (!buildIndexDirectory.exists() || buildIndexDirectory.list().length == 0 || shapesLastModified > buildIndexDirectory.lastModified()) {
-            final CsvShapeIndexer indexer = new CsvShapeIndexer(args[0], args[1]);
-            indexer.createIndex();
+        // only shapes that changed since the last run are indexed again, see createIndex()
+        fromSystemProperties(args[0], args[1]).createIndex();
+    }
+
+    /**
+     * An indexer configured by the indexer.* system properties
+     */
+    static CsvShapeIndexer fromSystemProperties(String downloadDirectory, String indexDirectory) throws IOException {
+        final CsvShapeIndexer indexer = new CsvShapeIndexer(downloadDirectory, indexDirectory)
+                .coveringLevel(Integer.getInteger("indexer.covering.level", DEFAULT_COVERING_LEVEL))
+                .rasterResolutionMeters(Double.parseDouble(System.getProperty("indexer.raster.resolution", "0")))
+                .threads(Integer.getInteger("indexer.threads", Runtime.getRuntime().availableProcessors()))
+                .fullRebuild(Boolean.getBoolean("indexer.full"))
+                .simplificationToleranceMeters(Double.parseDouble(System.getProperty("indexer.simplification.tolerance", "0")))
+                .tilingMaxAreaSquareKm(Double.parseDouble(System.getProperty("indexer.tiling.max.area", "0")))
+                .hilbertSort(Boolean.getBoolean("indexer.sort.hilbert"));
+        final String pointsFile = System.getProperty("indexer.points.file");
+        if (pointsFile != null) {
+            indexer.pointsFile(Paths.get(pointsFile));
         }
+        final String tessellationCache = System.getProperty("indexer.tessellation.cache", "build/tessellation-cache");
+        if (tessellationCache.isEmpty() == false) {
+            indexer.tessellationCache(Paths.get(tessellationCache));
+        }
+        return indexer;
     }
 
     public CsvShapeIndexer(String downloadDirectory, String indexDirectory) throws IOException {
-        final CsvShapeParser parser = new CsvShapeParser(downloadDirectory);
-        this.shapes = parser.getShapes();
+        this(new CsvShapeParser(downloadDirectory).getShapes(), downloadDirectory, indexDirectory);
+    }
+
+    /**
+     * Indexes the given shapes instead of the ones in shapes.csv
+     */
+    CsvShapeIndexer(List<CsvShapeParser.Shape> shapes, String downloadDirectory, String indexDirectory) throws IOException {
+        this.shapes = shapes;
         this.downloadDirectory = downloadDirectory;
         this.directory = Paths.get(indexDirectory);
         if (Files.exists(this.directory) == false) {
@@ -53,74 +144,783 @@ public class CsvShapeIndexer {
         }
     }
 
+    /**
+     * The finest level of the cell covering written next to the index, see {@link CellCovering}
+     */
+    public CsvShapeIndexer coveringLevel(int coveringLevel) {
+        this.coveringLevel = coveringLevel;
+        return this;
+    }
+
+    /**
+     * The cell size of the raster for approximate searches written next to the index, 0 to not write a raster,
+     * see {@link RasterSearcher}
+     */
+    public CsvShapeIndexer rasterResolutionMeters(double rasterResolutionMeters) {
+        this.rasterResolutionMeters = rasterResolutionMeters;
+        return this;
+    }
+
+    /**
+     * The number of threads parsing, tessellating and adding shapes to the index
+     */
+    public CsvShapeIndexer threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, got [" + threads + "]");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * A tab separated file with the post code locations to enrich the index with, by default the DE.tab file
+     * on the classpath is used
+     */
+    public CsvShapeIndexer pointsFile(Path pointsFile) {
+        this.pointsFile = pointsFile;
+        return this;
+    }
+
+    /**
+     * Rebuilds the whole index, even if an existing index could be updated
+     */
+    public CsvShapeIndexer fullRebuild(boolean fullRebuild) {
+        this.fullRebuild = fullRebuild;
+        return this;
+    }
+
+    /**
+     * A directory to cache the tessellated polygons in, so that a rebuild only tessellates the polygons that
+     * changed, see {@link TessellationCache}. Nothing is cached by default
+     */
+    public CsvShapeIndexer tessellationCache(Path tessellationCacheDirectory) {
+        this.tessellationCacheDirectory = tessellationCacheDirectory;
+        return this;
+    }
+
+    /**
+     * The maximum distance in meters a simplified border may deviate from the original one, 0 to index the shapes
+     * as they are, see {@link PolygonSimplifier}
+     */
+    public CsvShapeIndexer simplificationToleranceMeters(double simplificationToleranceMeters) {
+        if (simplificationToleranceMeters < 0) {
+            throw new IllegalArgumentException("simplification tolerance must not be negative, got [" + simplificationToleranceMeters + "]");
+        }
+        this.simplificationToleranceMeters = simplificationToleranceMeters;
+        return this;
+    }
+
+    /**
+     * Shapes with a bounding box larger than this area in square kilometers are indexed as several documents, one
+     * per tile of about this size, 0 to index every shape as a single document, see {@link ShapeTiler}
+     */
+    public CsvShapeIndexer tilingMaxAreaSquareKm(double tilingMaxAreaSquareKm) {
+        if (tilingMaxAreaSquareKm < 0) {
+            throw new IllegalArgumentException("tiling max area must not be negative, got [" + tilingMaxAreaSquareKm + "]");
+        }
+        this.tilingMaxAreaSquareKm = tilingMaxAreaSquareKm;
+        return this;
+    }
+
+    /**
+     * Sorts the index by the hilbert code of the center of each shape and point, so that documents close to each
+     * other on the map are close to each other in the index as well, see {@link HilbertCode}
+     */
+    public CsvShapeIndexer hilbertSort(boolean hilbertSort) {
+        this.hilbertSort = hilbertSort;
+        return this;
+    }
+
+    /**
+     * Creates the index or updates an existing one. An existing index is updated, if it has been created with the
+     * same post code locations. Only the shapes whose fingerprint changed are deleted and indexed again, and only
+     * the post code locations within the bounding boxes of these shapes, before and after the change, are checked
+     * again. The cell covering needs all shapes, so the unchanged ones are parsed, but not indexed again.
+     */
     public void createIndex() throws IOException, ParseException {
-        IndexWriterConfig indexWriterConfig = new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-        try (Directory directory = new NIOFSDirectory(this.directory);
-             IndexWriter writer = new IndexWriter(directory, indexWriterConfig)) {
+        final long start = System.nanoTime();
+        coveringBuilder = new CellCoveringBuilder(coveringLevel);
+        fingerprints = new ShapeFingerprints();
+        timings = new PhaseTimings();
+        triangles = new LongAdder();
+        simplifier = null;
+        parsedShapes = new ConcurrentHashMap<>();
+        tiler = tilingMaxAreaSquareKm > 0 ? new ShapeTiler(tilingMaxAreaSquareKm) : null;
+        final String pointsFingerprint;
+        try (InputStream inputStream = pointsFile == null ? TabPointReader.class.getResourceAsStream(POINT_RESOURCE_NAME) : Files.newInputStream(pointsFile)) {
+            if (inputStream == null) {
+                throw new FileNotFoundException("resource [" + POINT_RESOURCE_NAME + "] not found on the classpath");
+            }
+            pointsFingerprint = ShapeFingerprints.fingerprint(inputStream);
+        }
+        final String settings = String.format(Locale.ROOT, "covering level %s, raster resolution %s", coveringLevel, rasterResolutionMeters);
+        final String documentSettings = documentSettings(simplificationToleranceMeters, tilingMaxAreaSquareKm, hilbertSort);
+        final long indexSize;
 
-            for (CsvShapeParser.Shape shape : shapes) {
-                if (shape == null || shape.id == null || shape.id.isEmpty()) {
-                    continue;
+        try (Directory directory = new NIOFSDirectory(this.directory)) {
+            ShapeFingerprints previous = null;
+            Map<String, String> previousUserData = Collections.emptyMap();
+            if (fullRebuild == false && DirectoryReader.indexExists(directory)) {
+                previousUserData = SegmentInfos.readLatestCommit(directory).getUserData();
+                // the documents depend on these settings, older indices have neither been simplified, tiled nor sorted
+                if (pointsFingerprint.equals(previousUserData.get(ShapeFingerprints.POINTS_USER_DATA_KEY))
+                        && documentSettings.equals(previousUserData.getOrDefault(ShapeFingerprints.DOCUMENT_SETTINGS_USER_DATA_KEY, documentSettings(0, 0, false)))) {
+                    previous = ShapeFingerprints.fromUserData(previousUserData);
+                }
+            }
+
+            final Map<String, String> shapeFingerprints = fingerprintShapes();
+            final Set<String> removed = new TreeSet<>();
+            final Set<String> changed = new TreeSet<>(shapeFingerprints.keySet());
+            if (previous != null) {
+                for (Map.Entry<String, ShapeFingerprints.Entry> entry : previous.entries().entrySet()) {
+                    final String fingerprint = shapeFingerprints.get(entry.getKey());
+                    if (fingerprint == null) {
+                        removed.add(entry.getKey());
+                    } else if (fingerprint.equals(entry.getValue().fingerprint)) {
+                        changed.remove(entry.getKey());
+                    }
+                }
+                if (changed.isEmpty() && removed.isEmpty() && settings.equals(previousUserData.get(ShapeFingerprints.SETTINGS_USER_DATA_KEY))) {
+                    System.out.println(String.format(Locale.ROOT, "Index with %s shapes is up to date", shapeFingerprints.size()));
+                    return;
+                }
+                System.out.println(String.format(Locale.ROOT, "Updating index, %s shapes changed, %s removed: %s %s",
+                        changed.size(), removed.size(), changed, removed));
+            } else {
+                System.out.println(String.format(Locale.ROOT, "Creating index with %s shapes", shapeFingerprints.size()));
+            }
+
+            if (simplificationToleranceMeters > 0) {
+                simplifier = new PolygonSimplifier(simplificationToleranceMeters);
+                final Map<String, BoundingBox> boundingBoxes = registerShapes();
+                if (previous != null) {
+                    // a changed border changes how the border of a neighbour is simplified, so neighbours are indexed again
+                    final List<BoundingBox> changedAreas = new ArrayList<>();
+                    for (String id : removed) {
+                        changedAreas.add(previous.get(id).boundingBox);
+                    }
+                    for (String id : changed) {
+                        changedAreas.add(boundingBoxes.get(id));
+                        if (previous.get(id) != null) {
+                            changedAreas.add(previous.get(id).boundingBox);
+                        }
+                    }
+                    final Set<String> neighbours = new TreeSet<>();
+                    for (Map.Entry<String, ShapeFingerprints.Entry> entry : previous.entries().entrySet()) {
+                        if (changed.contains(entry.getKey()) || removed.contains(entry.getKey())) {
+                            continue;
+                        }
+                        for (BoundingBox area : changedAreas) {
+                            if (area.intersects(entry.getValue().boundingBox)) {
+                                neighbours.add(entry.getKey());
+                                break;
+                            }
+                        }
+                    }
+                    if (neighbours.isEmpty() == false) {
+                        System.out.println(String.format(Locale.ROOT, "Indexing %s neighbours of changed shapes again: %s", neighbours.size(), neighbours));
+                        changed.addAll(neighbours);
+                    }
                 }
-                writer.addDocument(createDocument(shape));
             }
 
-            System.out.println(String.format(Locale.ROOT, "Indexed %s shapes, committing", shapes.size()));
-            writer.commit();
+            final IndexWriterConfig indexWriterConfig = new IndexWriterConfig()
+                    .setOpenMode(previous == null ? IndexWriterConfig.OpenMode.CREATE : IndexWriterConfig.OpenMode.APPEND);
+            if (hilbertSort) {
+                indexWriterConfig.setIndexSort(new Sort(new SortField(HILBERT_FIELD, SortField.Type.LONG)));
+            }
+            try (IndexWriter writer = new IndexWriter(directory, indexWriterConfig)) {
+                // the areas in which post code locations need to be checked again, null for everywhere
+                List<BoundingBox> affected = null;
+                if (previous != null) {
+                    affected = new ArrayList<>();
+                    for (String id : removed) {
+                        writer.deleteDocuments(shapeQuery(id));
+                        affected.add(previous.get(id).boundingBox);
+                    }
+                    for (String id : changed) {
+                        final ShapeFingerprints.Entry entry = previous.get(id);
+                        if (entry != null) {
+                            affected.add(entry.boundingBox);
+                        }
+                    }
+                }
+
+                if (tessellationCacheDirectory != null) {
+                    tessellationCache = new TessellationCache(tessellationCacheDirectory);
+                }
+                try {
+                    indexShapes(writer, shapeFingerprints, changed, previous);
+                    if (tessellationCache != null) {
+                        System.out.println(String.format(Locale.ROOT, "Tessellation cache %s", tessellationCache));
+                        // only a full build has seen all polygons, so only then it is known which ones are gone
+                        if (previous == null) {
+                            tessellationCache.prune();
+                        }
+                    }
+                } finally {
+                    if (tessellationCache != null) {
+                        tessellationCache.close();
+                        tessellationCache = null;
+                    }
+                }
+                System.out.println(String.format(Locale.ROOT, "Indexed %s shapes as %s triangles on %s threads, committing",
+                        changed.size(), triangles.sum(), threads));
+                if (simplifier != null) {
+                    System.out.println(String.format(Locale.ROOT, "Simplified shapes, %s", simplifier));
+                }
+                if (tiler != null) {
+                    System.out.println(String.format(Locale.ROOT, "Tiled shapes, %s", tiler));
+                }
+                if (affected != null) {
+                    for (String id : changed) {
+                        affected.add(fingerprints.get(id).boundingBox);
+                    }
+                }
+                writer.commit();
+                long phaseStart = System.nanoTime();
+
+                if (affected == null || affected.isEmpty() == false) {
+                    System.out.println("Enriching index with post code locations, that are outside of the indexed shape");
+                    try (TabPointReader points = pointsFile == null ? TabPointReader.fromResource(POINT_RESOURCE_NAME) : TabPointReader.fromFile(pointsFile)) {
+                        enrichWithPoints(writer, points, affected);
+                    }
+                    phaseStart = timings.record(PhaseTimings.Phase.ENRICH, phaseStart);
+                }
+
+                writer.commit();
+                if (previous == null) {
+                    // an updated index keeps its segments, so only the changed documents need to be shipped
+                    System.out.println("Merging down to one segment...");
+                    writer.forceMerge(1);
+                }
+                phaseStart = timings.record(PhaseTimings.Phase.MERGE, phaseStart);
+
+                System.out.println(String.format(Locale.ROOT, "Computing cell covering up to level %s", coveringLevel));
+                CellCovering.write(directory, coveringBuilder.cities(), coveringBuilder.build());
+                timings.record(PhaseTimings.Phase.COVERING, phaseStart);
+
+                // allows routing to this index without opening it, when serving several regional indices
+                final BoundingBox boundingBox;
+                try (DirectoryReader mergedReader = DirectoryReader.open(writer)) {
+                    boundingBox = BoundingBox.compute(mergedReader, "geoshape", "location");
+                }
+                final Map<String, String> userData = new HashMap<>();
+                if (boundingBox != null) {
+                    System.out.println(String.format(Locale.ROOT, "Storing bounding box [%s]", boundingBox));
+                    userData.put(BoundingBox.USER_DATA_KEY, boundingBox.toString());
+                }
+                userData.put(ShapeFingerprints.USER_DATA_KEY, fingerprints.toString());
+                userData.put(ShapeFingerprints.POINTS_USER_DATA_KEY, pointsFingerprint);
+                userData.put(ShapeFingerprints.SETTINGS_USER_DATA_KEY, settings);
+                userData.put(ShapeFingerprints.DOCUMENT_SETTINGS_USER_DATA_KEY, documentSettings);
+                writer.setLiveCommitData(userData.entrySet());
+                writer.commit();
+
+                if (rasterResolutionMeters > 0 && boundingBox != null) {
+                    System.out.println(String.format(Locale.ROOT, "Computing raster with a resolution of %sm", rasterResolutionMeters));
+                    phaseStart = System.nanoTime();
+                    try (Searcher searcher = Searcher.open(this.directory, DirectoryType.MMAP)) {
+                        RasterSearcher.write(directory, searcher, boundingBox, rasterResolutionMeters);
+                    }
+                    timings.record(PhaseTimings.Phase.RASTER, phaseStart);
+                    System.out.println(String.format(Locale.ROOT, "Raster has %s bytes", directory.fileLength(RasterSearcher.FILE_NAME)));
+                } else if (Arrays.asList(directory.listAll()).contains(RasterSearcher.FILE_NAME)) {
+                    // left over from a previous run, it would not match the updated index
+                    directory.deleteFile(RasterSearcher.FILE_NAME);
+                }
+            }
+
+            long size = 0;
+            for (String file : directory.listAll()) {
+                size += directory.fileLength(file);
+            }
+            indexSize = size;
+        }
+        System.out.println(String.format(Locale.ROOT, "Index with %s bytes created in %sms, %s",
+                indexSize, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), timings));
+    }
+
+    /**
+     * Computes the fingerprints of all shapes on the worker threads
+     *
+     * @return the fingerprint by shape id
+     */
+    private Map<String, String> fingerprintShapes() throws IOException, ParseException {
+        final List<CsvShapeParser.Shape> valid = new ArrayList<>();
+        final List<Callable<String>> tasks = new ArrayList<>();
+        for (CsvShapeParser.Shape shape : shapes) {
+            if (shape == null || shape.id == null || shape.id.isEmpty()) {
+                continue;
+            }
+            valid.add(shape);
+            tasks.add(() -> ShapeFingerprints.fingerprint(shape, shapeFile(shape)));
+        }
+        final List<String> results = execute(tasks);
+        final Map<String, String> fingerprints = new HashMap<>();
+        for (int i = 0; i < valid.size(); i++) {
+            fingerprints.put(valid.get(i).id, results.get(i));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Parses all shapes on the worker threads and registers them with the simplifier, before any of them is simplified.
+     * The parsed shapes are kept, so that they are not parsed again when indexing them.
+     *
+     * @return the bounding box of each shape by its id
+     */
+    private Map<String, BoundingBox> registerShapes() throws IOException, ParseException {
+        final List<Callable<BoundingBox>> tasks = new ArrayList<>();
+        final List<String> ids = new ArrayList<>();
+        for (CsvShapeParser.Shape shape : shapes) {
+            if (shape == null || shape.id == null || shape.id.isEmpty()) {
+                continue;
+            }
+            ids.add(shape.id);
+            tasks.add(() -> {
+                final long phaseStart = System.nanoTime();
+                final ParsedShape parsed = ParsedShape.parse(shapeFile(shape));
+                timings.record(PhaseTimings.Phase.PARSE, phaseStart);
+                simplifier.register(shape.id, parsed.polygon);
+                parsedShapes.put(shape.id, parsed);
+                final Polygon polygon = parsed.polygon;
+                return new BoundingBox(polygon.minLat, polygon.maxLat, polygon.minLon, polygon.maxLon);
+            });
+        }
+        final List<BoundingBox> results = execute(tasks);
+        final Map<String, BoundingBox> boundingBoxes = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            boundingBoxes.put(ids.get(i), results.get(i));
+        }
+        return boundingBoxes;
+    }
+
+    /**
+     * Parses, tessellates and adds the changed shapes on a pool of worker threads, the index writer supports
+     * adding documents concurrently. The previous documents of changed shapes are deleted first. Unchanged shapes
+     * are only parsed for the cell covering.
+     */
+    private void indexShapes(IndexWriter writer, Map<String, String> shapeFingerprints, Set<String> changed,
+                             ShapeFingerprints previous) throws IOException, ParseException {
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (CsvShapeParser.Shape shape : shapes) {
+            if (shape == null || shape.id == null || shape.id.isEmpty()) {
+                continue;
+            }
+            final String fingerprint = shapeFingerprints.get(shape.id);
+            if (changed.contains(shape.id) == false) {
+                tasks.add(() -> {
+                    addToCovering(shape);
+                    fingerprints.put(shape.id, previous.get(shape.id));
+                    return null;
+                });
+                continue;
+            }
+            tasks.add(() -> {
+                final List<Document> documents = createDocuments(shape, fingerprint);
+                final long addStart = System.nanoTime();
+                if (previous != null) {
+                    writer.deleteDocuments(shapeQuery(shape.id));
+                }
+                writer.addDocuments(documents);
+                timings.record(PhaseTimings.Phase.ADD, addStart);
+                return null;
+            });
+        }
+        execute(tasks);
+    }
+
+    /**
+     * The distinct cities of the documents matching the query, a tiled shape matches several times on the boundaries
+     * of its tiles
+     */
+    private static Set<String> cities(IndexSearcher searcher, Query query, int hits) throws IOException {
+        final Set<String> cities = new TreeSet<>();
+        for (ScoreDoc scoreDoc : searcher.search(query, hits).scoreDocs) {
+            cities.add(searcher.doc(scoreDoc.doc).get("city"));
+        }
+        return cities;
+    }
+
+    private static Query shapeQuery(String id) {
+        return new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("city", id)), BooleanClause.Occur.FILTER)
+                .add(new TermQuery(new Term(TYPE_FIELD, TYPE_SHAPE)), BooleanClause.Occur.FILTER)
+                .build();
+    }
 
-            System.out.println("Enriching index with post code locations, that are outside of the indexed shape");
+    /**
+     * Adds a location document for every point that is not within any of the indexed shapes. The points are read in
+     * windows of a fixed size, so that the memory needed does not depend on the number of points. Each window is
+     * sorted along a Z-order curve and split into partitions, so that every partition covers a small area and its
+     * searches keep hitting the same part of the shape index. The partitions are searched concurrently, each one
+     * adds all of its points outside of the shapes at once.
+     *
+     * @param areas if not null, only points within these areas are checked, after deleting their previous documents
+     */
+    private void enrichWithPoints(IndexWriter writer, TabPointReader points, List<BoundingBox> areas) throws IOException, ParseException {
+        if (areas != null) {
+            for (BoundingBox area : areas) {
+                writer.deleteDocuments(new BooleanQuery.Builder()
+                        .add(new TermQuery(new Term(TYPE_FIELD, TYPE_POINT)), BooleanClause.Occur.FILTER)
+                        .add(LatLonPoint.newBoxQuery("location", area.minLatitude, area.maxLatitude, area.minLongitude, area.maxLongitude), BooleanClause.Occur.FILTER)
+                        .build());
+            }
+        }
 
-            CsvPointParser pointParser = new CsvPointParser();
-            final DirectoryReader reader = DirectoryReader.open(writer);
+        final PointWindow window = new PointWindow(POINT_PARTITION_SIZE * POINT_PARTITIONS_PER_WINDOW);
+        long checked = 0;
+        long indexed = 0;
+        // only sees the shapes, the points added by the partitions do not change the outcome of another partition
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
             final IndexSearcher searcher = new IndexSearcher(reader);
-            int skipped = 0;
-            int indexed = 0;
-            for (CsvPointParser.GeoPoint point : pointParser.getPoints()) {
-                Query q = LatLonShape.newPointQuery("geoshape",  ShapeField.QueryRelation.INTERSECTS,
-                        new double[] { point.getLat() , point.getLon() });
-                final TopDocs topDocs = searcher.search(q, 1);
+            while (window.fill(points, areas) > 0) {
+                checked += window.size;
+                window.sortByZOrder();
+                final List<Callable<Integer>> tasks = new ArrayList<>();
+                for (int from = 0; from < window.size; from += POINT_PARTITION_SIZE) {
+                    final int partitionStart = from;
+                    final int partitionEnd = Math.min(window.size, from + POINT_PARTITION_SIZE);
+                    tasks.add(() -> {
+                        final List<Document> documents = new ArrayList<>();
+                        for (int i = partitionStart; i < partitionEnd; i++) {
+                            final Query query = LatLonShape.newPointQuery("geoshape", ShapeField.QueryRelation.INTERSECTS,
+                                    new double[] { window.latitudes[i], window.longitudes[i] });
+                            final int hits = searcher.count(query);
+                            if (hits == 0) {
+                                documents.add(createDocument(window.names[i], window.latitudes[i], window.longitudes[i]));
+                            } else if (hits > 1 && cities(searcher, query, hits).size() > 1) {
+                                // overlapping shapes mean we indexed wrong data
+                                throw new RuntimeException(String.format(Locale.ROOT, "Found %s hits for %s: lat %s/lon %s",
+                                        hits, window.names[i], window.latitudes[i], window.longitudes[i]));
+                            }
+                        }
+                        writer.addDocuments(documents);
+                        return documents.size();
+                    });
+                }
 
-                if (topDocs.totalHits.value == 0) { // index geopoint
-                    writer.addDocument(createDocument(point));
-                    indexed++;
-                } else if (topDocs.totalHits.value == 1) { // do nothing
-                    skipped++;
-                } else { // throw exception
-                    throw new RuntimeException("Found " + topDocs.totalHits.value + " hits for" + point);
+                // the window is only refilled once all of its partitions are done
+                for (int added : execute(tasks)) {
+                    indexed += added;
                 }
             }
+        }
+        System.out.println(String.format(Locale.ROOT, "Indexed %s points, skipped %s", indexed, checked - indexed));
+    }
+
+    /**
+     * A fixed number of points in primitive arrays, reused for every window of points
+     */
+    private static final class PointWindow {
 
-            System.out.println(String.format(Locale.ROOT, "Indexed %s points, skipped %s. Merging down to one segment...", indexed, skipped));
-            writer.commit();
-            writer.forceMerge(1);
+        private final String[] names;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final long[] keys;
+        private int size;
+
+        private PointWindow(int capacity) {
+            names = new String[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            keys = new long[capacity];
+        }
+
+        /**
+         * Replaces the points with the next ones of the reader, that are within one of the areas
+         *
+         * @param areas the areas to check, null for all points
+         * @return the number of points read
+         */
+        private int fill(TabPointReader points, List<BoundingBox> areas) throws IOException {
+            size = 0;
+            while (size < names.length && points.next()) {
+                if (areas != null && withinAny(areas, points.latitude(), points.longitude()) == false) {
+                    continue;
+                }
+                names[size] = points.name();
+                latitudes[size] = points.latitude();
+                longitudes[size] = points.longitude();
+                size++;
+            }
+            Arrays.fill(names, size, names.length, null);
+            return size;
+        }
+
+        /**
+         * Checks the encoded coordinates just like {@link LatLonPoint#newBoxQuery}, so that exactly the points
+         * whose documents have been deleted are checked again
+         */
+        private static boolean withinAny(List<BoundingBox> areas, double latitude, double longitude) {
+            final int encodedLatitude = GeoEncodingUtils.encodeLatitude(latitude);
+            final int encodedLongitude = GeoEncodingUtils.encodeLongitude(longitude);
+            for (BoundingBox area : areas) {
+                if (encodedLatitude >= GeoEncodingUtils.encodeLatitudeCeil(area.minLatitude)
+                        && encodedLatitude <= GeoEncodingUtils.encodeLatitude(area.maxLatitude)
+                        && encodedLongitude >= GeoEncodingUtils.encodeLongitudeCeil(area.minLongitude)
+                        && encodedLongitude <= GeoEncodingUtils.encodeLongitude(area.maxLongitude)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sorts the points by interleaving the bits of their encoded latitude and longitude
+         */
+        private void sortByZOrder() {
+            for (int i = 0; i < size; i++) {
+                // flipping the sign bit makes the encoded values sort like unsigned ones
+                final int latitude = GeoEncodingUtils.encodeLatitude(latitudes[i]) ^ Integer.MIN_VALUE;
+                final int longitude = GeoEncodingUtils.encodeLongitude(longitudes[i]) ^ Integer.MIN_VALUE;
+                keys[i] = BitUtil.interleave(longitude, latitude);
+            }
+            new IntroSorter() {
+                private long pivot;
+
+                @Override
+                protected void swap(int i, int j) {
+                    final long key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    final String name = names[i];
+                    names[i] = names[j];
+                    names[j] = name;
+                    final double latitude = latitudes[i];
+                    latitudes[i] = latitudes[j];
+                    latitudes[j] = latitude;
+                    final double longitude = longitudes[i];
+                    longitudes[i] = longitudes[j];
+                    longitudes[j] = longitude;
+                }
+
+                @Override
+                protected void setPivot(int i) {
+                    pivot = keys[i];
+                }
+
+                @Override
+                protected int comparePivot(int j) {
+                    return Long.compareUnsigned(pivot, keys[j]);
+                }
+
+                @Override
+                protected int compare(int i, int j) {
+                    return Long.compareUnsigned(keys[i], keys[j]);
+                }
+            }.sort(0, size);
         }
     }
 
-    private Document createDocument(CsvShapeParser.Shape shape) throws IOException, ParseException {
-        Document doc = new Document();
-        doc.add(new StringField("city" , shape.id, Field.Store.YES));
+    /**
+     * Runs all tasks on a pool of {@link #threads(int)} worker threads and rethrows the first failure, as soon as
+     * it happens. The remaining tasks are cancelled then.
+     *
+     * @return the results in the order of the tasks
+     */
+    private <T> List<T> execute(List<Callable<T>> tasks) throws IOException, ParseException {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                runnable -> new Thread(runnable, "indexer-" + threadCount.incrementAndGet()));
+        try {
+            final CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+            final Map<Future<T>, Integer> positions = new HashMap<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                positions.put(completionService.submit(tasks.get(i)), i);
+            }
+
+            final List<T> results = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    final Future<T> future = completionService.take();
+                    results.set(positions.get(future), future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while indexing", e);
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof ParseException) {
+                        throw (ParseException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Path shapeFile(CsvShapeParser.Shape shape) {
+        return Paths.get(downloadDirectory).resolve(shape.getFilename());
+    }
+
+    /**
+     * Creates the document of a shape, or one document per tile if the shape is tiled. Only the first document
+     * gets the location of the shape.
+     */
+    private List<Document> createDocuments(CsvShapeParser.Shape shape, String fingerprint) throws IOException, ParseException {
+        final ParsedShape parsed = parse(shape);
 
-        byte[] bytes = Files.readAllBytes(Paths.get(downloadDirectory).resolve(shape.getFilename()));;
-        final String geojson = new String(bytes, StandardCharsets.UTF_8);
-        final SimpleGeoJSONPolygonParser parser = new SimpleGeoJSONPolygonParser(geojson);
-        Polygon[] polygons = parser.parse();
-        for (Field field : LatLonShape.createIndexableFields("geoshape", polygons[0])) {
-            doc.add(field);
+        final List<Field> shapeFields = new ArrayList<>();
+        final Polygon polygon = tessellate(parsed.polygon, shapeFields);
+        List<List<Field>> tiles = Collections.singletonList(shapeFields);
+        if (tiler != null) {
+            final long phaseStart = System.nanoTime();
+            tiles = tiler.tile("geoshape", polygon, shapeFields);
+            timings.record(PhaseTimings.Phase.TILE, phaseStart);
+        }
+        final List<Document> documents = new ArrayList<>(tiles.size());
+        for (List<Field> tile : tiles) {
+            final Document doc = new Document();
+            doc.add(new StringField("city" , shape.id, Field.Store.YES));
+            doc.add(new SortedDocValuesField("city", new BytesRef(shape.id)));
+            doc.add(new StringField(TYPE_FIELD, TYPE_SHAPE, Field.Store.NO));
+            for (Field field : tile) {
+                doc.add(field);
+            }
+            if (hilbertSort) {
+                doc.add(new NumericDocValuesField(HILBERT_FIELD, hilbertCode(tile)));
+            }
+            triangles.add(tile.size());
+            documents.add(doc);
         }
 
-        if (parser.getGeomLatitude() == null && parser.getGeomLatitude() == null) {
+        // only the first polygon gets indexed, so the covering must not contain the others
+        final long phaseStart = System.nanoTime();
+        coveringBuilder.add(shape.id, polygon);
+        timings.record(PhaseTimings.Phase.COVERING, phaseStart);
+        fingerprints.put(shape.id, new ShapeFingerprints.Entry(fingerprint,
+                new BoundingBox(polygon.minLat, polygon.maxLat, polygon.minLon, polygon.maxLon)));
+
+        if (parsed.latitude == null || parsed.longitude == null) {
             System.out.println(String.format("Could not add point for shape %s", shape.id));
         } else {
-            doc.add(new LatLonPoint("location", parser.getGeomLatitude(), parser.getGeomLongitude()));
+            documents.get(0).add(new LatLonPoint("location", parsed.latitude, parsed.longitude));
         }
 
-        return doc;
+        return documents;
     }
 
-    private Document createDocument(CsvPointParser.GeoPoint point) {
+    private static String documentSettings(double simplificationToleranceMeters, double tilingMaxAreaSquareKm, boolean hilbertSort) {
+        return String.format(Locale.ROOT, "simplification tolerance %s, tiling max area %s, hilbert sort %s",
+                simplificationToleranceMeters, tilingMaxAreaSquareKm, hilbertSort);
+    }
+
+    /**
+     * The hilbert code of the center of the bounding box of the triangles
+     */
+    private static long hilbertCode(List<Field> triangles) {
+        final ShapeField.DecodedTriangle triangle = new ShapeField.DecodedTriangle();
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (Field field : triangles) {
+            ShapeField.decodeTriangle(field.binaryValue().bytes, triangle);
+            minX = Math.min(minX, Math.min(triangle.aX, Math.min(triangle.bX, triangle.cX)));
+            maxX = Math.max(maxX, Math.max(triangle.aX, Math.max(triangle.bX, triangle.cX)));
+            minY = Math.min(minY, Math.min(triangle.aY, Math.min(triangle.bY, triangle.cY)));
+            maxY = Math.max(maxY, Math.max(triangle.aY, Math.max(triangle.bY, triangle.cY)));
+        }
+        return HilbertCode.encode(GeoEncodingUtils.decodeLatitude((int) (((long) minY + maxY) / 2)),
+                GeoEncodingUtils.decodeLongitude((int) (((long) minX + maxX) / 2)));
+    }
+
+    /**
+     * Only parses an unchanged shape, as the covering is computed from all shapes
+     */
+    private void addToCovering(CsvShapeParser.Shape shape) throws IOException, ParseException {
+        Polygon polygon = parse(shape).polygon;
+        long phaseStart = System.nanoTime();
+        if (simplifier != null) {
+            // the covering has to match the polygon in the index
+            polygon = tessellate(polygon, new ArrayList<>());
+            phaseStart = System.nanoTime();
+        }
+        coveringBuilder.add(shape.id, polygon);
+        timings.record(PhaseTimings.Phase.COVERING, phaseStart);
+    }
+
+    /**
+     * Returns the shape parsed when registering it with the simplifier, or parses it if it has not been parsed yet
+     */
+    private ParsedShape parse(CsvShapeParser.Shape shape) throws IOException, ParseException {
+        final ParsedShape parsed = parsedShapes.remove(shape.id);
+        if (parsed != null) {
+            return parsed;
+        }
+        final long phaseStart = System.nanoTime();
+        final ParsedShape parsedNow = ParsedShape.parse(shapeFile(shape));
+        timings.record(PhaseTimings.Phase.PARSE, phaseStart);
+        return parsedNow;
+    }
+
+    /**
+     * Tessellates the polygon, or the simplified polygon if simplification is enabled. If the simplified polygon
+     * cannot be tessellated, only the borders it does not share with other shapes go back to full resolution, see
+     * {@link PolygonSimplifier#tessellate(Polygon, Polygon, PolygonSimplifier.Tessellator, List)}.
+     *
+     * @param fields receives the triangles
+     * @return the tessellated polygon
+     */
+    private Polygon tessellate(Polygon original, List<Field> fields) throws IOException {
+        long phaseStart = System.nanoTime();
+        Polygon polygon = original;
+        if (simplifier != null) {
+            final Polygon simplified = simplifier.simplify(original);
+            phaseStart = timings.record(PhaseTimings.Phase.SIMPLIFY, phaseStart);
+            polygon = simplifier.tessellate(original, simplified, this::createIndexableFields, fields);
+        } else {
+            Collections.addAll(fields, createIndexableFields(original));
+        }
+        timings.record(PhaseTimings.Phase.TESSELLATE, phaseStart);
+        return polygon;
+    }
+
+    private Field[] createIndexableFields(Polygon polygon) throws IOException {
+        return tessellationCache == null ? LatLonShape.createIndexableFields("geoshape", polygon)
+                : tessellationCache.createIndexableFields("geoshape", polygon);
+    }
+
+    private Document createDocument(String name, double latitude, double longitude) {
         Document doc = new Document();
-        doc.add(new StringField("city" , point.getName(), Field.Store.YES));
-        doc.add(new LatLonPoint("location", point.getLat(), point.getLon()));
+        doc.add(new StringField("city" , name, Field.Store.YES));
+        doc.add(new SortedDocValuesField("city", new BytesRef(name)));
+        doc.add(new StringField(TYPE_FIELD, TYPE_POINT, Field.Store.NO));
+        doc.add(new LatLonPoint("location", latitude, longitude));
+        if (hilbertSort) {
+            doc.add(new NumericDocValuesField(HILBERT_FIELD, HilbertCode.encode(latitude, longitude)));
+        }
         return doc;
     }
+
+    /**
+     * The first polygon of a shape, the only one that gets indexed, and the location of the shape if it has one
+     */
+    private static final class ParsedShape {
+
+        private final Polygon polygon;
+        private final Double latitude;
+        private final Double longitude;
+
+        private ParsedShape(Polygon polygon, Double latitude, Double longitude) {
+            this.polygon = polygon;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        static ParsedShape parse(Path file) throws IOException, ParseException {
+            final StreamingGeoJSONPolygonParser parser = StreamingGeoJSONPolygonParser.fromFile(file);
+            final Polygon polygon = parser.parse()[0];
+            return new ParsedShape(polygon, parser.getGeomLatitude(), parser.getGeomLongitude());
+        }
+    }
 }
@@ -6,8 +6,6 @@ import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvParser;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,7 +29,7 @@ public class CsvShapeParser {
 
     public static void main(String[] args) throws IOException, URISyntaxException {
         final CsvShapeParser parser = new CsvShapeParser(args[0]);
-        parser.downloadShapes();
+        parser.downloadShapes(Boolean.getBoolean("indexer.download.refresh"), Integer.getInteger("indexer.download.threads", 8));
     }
 
     public CsvShapeParser(String directory) throws IOException {
@@ -93,25 +91,25 @@ public class CsvShapeParser {
         }
     }
 
-    void downloadShapes() throws IOException {
+    /**
+     * Downloads all missing shapes, see {@link ShapeDownloader}
+     *
+     * @param refresh if true, existing shapes are checked for changes as well
+     * @param threads the number of concurrent downloads
+     */
+    void downloadShapes(boolean refresh, int threads) throws IOException {
         OkHttpClient httpClient = new OkHttpClient();
         System.out.println("Checking for " + shapes.size() + " shapes.");
-        for (Shape shape : shapes) {
-            final Path filePath = directory.resolve(shape.getFilename());
-            if (!Files.exists(filePath)) {
-                Request request = new Request.Builder().url(shape.url).build();
-                try (Response response = httpClient.newCall(request).execute()) {
-                    if (response.code() == 200) {
-                        Files.write(filePath, response.body().bytes());
-                        System.out.println("Wrote " + filePath.getFileName());
-                    } else {
-                        throw new RuntimeException("Error querying " + shape.url + ", response code was " + response.code());
-                    }
-                }
+        try {
+            final ShapeDownloader.Result result = new ShapeDownloader(httpClient, directory).threads(threads).download(shapes, refresh);
+            System.out.println("Shapes " + result);
+            if (result.failures().isEmpty() == false) {
+                throw new RuntimeException("Error downloading " + result.failures().size() + " shapes: " + result.failures());
             }
+        } finally {
+            httpClient.dispatcher().executorService().shutdown();
+            httpClient.connectionPool().evictAll();
         }
-        httpClient.dispatcher().executorService().shutdown();
-        httpClient.connectionPool().evictAll();
     }
 
     @JsonPropertyOrder({ "id", "filename", "url", "points" })
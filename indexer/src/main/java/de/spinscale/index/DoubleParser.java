@@ -0,0 +1,109 @@
+package de.spinscale.index;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses ASCII encoded decimal numbers from bytes without creating a string. Numbers with up to 15 significant
+ * digits and a small decimal exponent, like all coordinates, are computed exactly with a single floating point
+ * multiplication or division (Clinger's fast path). Everything else falls back to {@link Double#parseDouble}.
+ */
+final class DoubleParser {
+
+    // all powers of ten that can be represented exactly as a double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private DoubleParser() {}
+
+    /**
+     * Parses the bytes between start (inclusive) and end (exclusive) of the buffer, the position of the buffer is
+     * not changed
+     *
+     * @throws NumberFormatException if the bytes are not a number
+     */
+    static double parse(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenDot = false;
+        for (; i < end; i++) {
+            final byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                // leading zeros are not significant
+                if (digits > 0 || b != '0') {
+                    if (digits >= MAX_EXACT_DIGITS) {
+                        return fallback(buffer, start, end);
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                }
+                if (seenDot) {
+                    exponent--;
+                }
+            } else if (b == '.' && seenDot == false) {
+                seenDot = true;
+            } else {
+                break;
+            }
+        }
+        if (seenDigit == false) {
+            return fallback(buffer, start, end);
+        }
+
+        if (i < end) {
+            final byte b = buffer.get(i);
+            if (b != 'e' && b != 'E') {
+                return fallback(buffer, start, end);
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            if (i == end) {
+                return fallback(buffer, start, end);
+            }
+            int explicitExponent = 0;
+            for (; i < end; i++) {
+                final byte digit = buffer.get(i);
+                if (digit < '0' || digit > '9' || explicitExponent > 1000) {
+                    return fallback(buffer, start, end);
+                }
+                explicitExponent = explicitExponent * 10 + (digit - '0');
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (exponent < -22 || exponent > 22) {
+            return fallback(buffer, start, end);
+        }
+        // both the mantissa and the power of ten are exact, so there is only a single rounding
+        final double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private static double fallback(ByteBuffer buffer, int start, int end) {
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+}
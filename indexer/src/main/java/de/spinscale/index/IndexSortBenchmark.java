@@ -0,0 +1,149 @@
+package de.spinscale.index;
+
+import de.spinscale.query.BoundingBox;
+import de.spinscale.query.DirectoryType;
+import de.spinscale.query.SearchResult;
+import de.spinscale.query.Searcher;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Builds the same index twice, once in insertion order and once sorted along a hilbert curve, and compares their
+ * size, how long it takes to open them and how fast they are searched. Lookups are run as random walks, like a
+ * vehicle sending its position every few seconds, and as random points, each one alternating between both indices.
+ *
+ * Run it like ./gradlew :indexer:benchmarkIndexSort -Dindexer.tiling.max.area=2500
+ */
+public class IndexSortBenchmark {
+
+    private static final int TRACKS = 200;
+    private static final int TRACK_LENGTH = 500;
+    // roughly 100m between two positions of a track
+    private static final double TRACK_STEP_DEGREES = 0.001;
+    private static final int RANDOM_POINTS = 100_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final String downloadDirectory = args[0];
+        final Path benchmarkDirectory = Paths.get(args[1]);
+        final Path unsorted = benchmarkDirectory.resolve("unsorted");
+        final Path sorted = benchmarkDirectory.resolve("hilbert");
+        CsvShapeIndexer.fromSystemProperties(downloadDirectory, unsorted.toString()).hilbertSort(false).fullRebuild(true).createIndex();
+        CsvShapeIndexer.fromSystemProperties(downloadDirectory, sorted.toString()).hilbertSort(true).fullRebuild(true).createIndex();
+
+        final BoundingBox boundingBox;
+        try (Directory directory = new NIOFSDirectory(unsorted)) {
+            boundingBox = BoundingBox.fromUserData(SegmentInfos.readLatestCommit(directory).getUserData());
+        }
+        final double[][] tracks = tracks(new Random(42), boundingBox);
+        final double[][] points = points(new Random(43), boundingBox);
+
+        try (Searcher unsortedSearcher = Searcher.open(unsorted, DirectoryType.MMAP);
+             Searcher sortedSearcher = Searcher.open(sorted, DirectoryType.MMAP)) {
+            System.out.println("unsorted: " + unsortedSearcher.getOpenStats());
+            System.out.println("hilbert:  " + sortedSearcher.getOpenStats());
+
+            final long[][] tookNanos = new long[2][2];
+            for (int round = 0; round < ROUNDS; round++) {
+                // the first round only warms up
+                final boolean measure = round > 0;
+                for (int i = 0; i < 2; i++) {
+                    final double[][] coordinates = i == 0 ? tracks : points;
+                    final long unsortedNanos = search(unsortedSearcher, coordinates);
+                    final long sortedNanos = search(sortedSearcher, coordinates);
+                    if (measure) {
+                        tookNanos[i][0] += unsortedNanos;
+                        tookNanos[i][1] += sortedNanos;
+                    }
+                }
+            }
+            print("tracks", tracks[0].length, tookNanos[0]);
+            print("random points", points[0].length, tookNanos[1]);
+
+            final int mismatches = mismatches(unsortedSearcher, sortedSearcher, tracks) + mismatches(unsortedSearcher, sortedSearcher, points);
+            if (mismatches > 0) {
+                throw new IllegalStateException("sorted and unsorted index returned different cities for [" + mismatches + "] coordinates");
+            }
+        }
+    }
+
+    private static long search(Searcher searcher, double[][] coordinates) throws IOException {
+        final long start = System.nanoTime();
+        for (int i = 0; i < coordinates[0].length; i++) {
+            searcher.search(coordinates[0][i], coordinates[1][i]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int mismatches(Searcher unsorted, Searcher sorted, double[][] coordinates) throws IOException {
+        int mismatches = 0;
+        for (int i = 0; i < coordinates[0].length; i++) {
+            final SearchResult expected = unsorted.search(coordinates[0][i], coordinates[1][i]);
+            final SearchResult actual = sorted.search(coordinates[0][i], coordinates[1][i]);
+            if (Objects.equals(expected.city, actual.city) == false) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static void print(String name, int searches, long[] tookNanos) {
+        final long searchesMeasured = (long) searches * (ROUNDS - 1);
+        System.out.println(String.format(Locale.ROOT, "%s: unsorted %sns/search, hilbert %sns/search", name,
+                tookNanos[0] / searchesMeasured, tookNanos[1] / searchesMeasured));
+    }
+
+    /**
+     * Random walks, that change their direction a little on every step and stay within the bounding box
+     */
+    private static double[][] tracks(Random random, BoundingBox boundingBox) {
+        final double[] latitudes = new double[TRACKS * TRACK_LENGTH];
+        final double[] longitudes = new double[TRACKS * TRACK_LENGTH];
+        int i = 0;
+        for (int track = 0; track < TRACKS; track++) {
+            double latitude = randomLatitude(random, boundingBox);
+            double longitude = randomLongitude(random, boundingBox);
+            double direction = random.nextDouble() * 2 * Math.PI;
+            for (int step = 0; step < TRACK_LENGTH; step++) {
+                latitudes[i] = latitude;
+                longitudes[i++] = longitude;
+                direction += (random.nextDouble() - 0.5) * 0.5;
+                final double nextLatitude = latitude + Math.sin(direction) * TRACK_STEP_DEGREES;
+                final double nextLongitude = longitude + Math.cos(direction) * TRACK_STEP_DEGREES / Math.cos(Math.toRadians(latitude));
+                if (boundingBox.contains(nextLatitude, nextLongitude)) {
+                    latitude = nextLatitude;
+                    longitude = nextLongitude;
+                } else {
+                    direction += Math.PI;
+                }
+            }
+        }
+        return new double[][] { latitudes, longitudes };
+    }
+
+    private static double[][] points(Random random, BoundingBox boundingBox) {
+        final double[] latitudes = new double[RANDOM_POINTS];
+        final double[] longitudes = new double[RANDOM_POINTS];
+        for (int i = 0; i < RANDOM_POINTS; i++) {
+            latitudes[i] = randomLatitude(random, boundingBox);
+            longitudes[i] = randomLongitude(random, boundingBox);
+        }
+        return new double[][] { latitudes, longitudes };
+    }
+
+    private static double randomLatitude(Random random, BoundingBox boundingBox) {
+        return boundingBox.minLatitude + random.nextDouble() * (boundingBox.maxLatitude - boundingBox.minLatitude);
+    }
+
+    private static double randomLongitude(Random random, BoundingBox boundingBox) {
+        return boundingBox.minLongitude + random.nextDouble() * (boundingBox.maxLongitude - boundingBox.minLongitude);
+    }
+}
@@ -0,0 +1,47 @@
+package de.spinscale.index;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The time spent in each phase of an index build. Phases running on several threads at once add up the time of
+ * every thread, so they can take longer than the build itself.
+ */
+class PhaseTimings {
+
+    enum Phase { PARSE, SIMPLIFY, TESSELLATE, TILE, ADD, ENRICH, MERGE, COVERING, RASTER }
+
+    private final LongAdder[] nanos = new LongAdder[Phase.values().length];
+
+    PhaseTimings() {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Adds the time since start, as returned by {@link System#nanoTime()}, to the phase and returns the current time
+     */
+    long record(Phase phase, long start) {
+        final long now = System.nanoTime();
+        nanos[phase.ordinal()].add(now - start);
+        return now;
+    }
+
+    long millis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos[phase.ordinal()].sum());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(String.format(Locale.ROOT, "%s [%sms]", phase.name().toLowerCase(Locale.ROOT), millis(phase)));
+        }
+        return sb.toString();
+    }
+}
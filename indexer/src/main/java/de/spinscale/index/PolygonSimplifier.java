@@ -0,0 +1,349 @@
+package de.spinscale.index;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.apache.lucene.geo.Polygon;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simplifies polygons with the Douglas-Peucker algorithm, so that their tessellation needs fewer triangles.
+ *
+ * Simplifying every polygon on its own would move the borders of neighbouring shapes differently and leave gaps
+ * or overlaps between them. So all polygons are registered first, to know which shapes share each vertex. Vertices
+ * where this set of shapes changes, the start and the end of a shared border, are always kept. Between them every
+ * part of a ring is simplified on its own, always in the same direction, so that neighbours sharing a border end
+ * up with the very same simplified border. Borders only match, if both shapes use the same vertices.
+ *
+ * A simplified polygon that cannot be tessellated must not fall back to its original borders as a whole, as its
+ * neighbours keep their simplified part of the shared border. Only the borders no other shape uses go back to full
+ * resolution, see {@link #tessellate(Polygon, Polygon, Tessellator, List)}.
+ */
+final class PolygonSimplifier {
+
+    private static final double EARTH_RADIUS_METERS = 6_371_008.7714;
+    private static final int[] NO_OWNERS = new int[0];
+
+    private final double toleranceMeters;
+    private final ConcurrentHashMap<String, Integer> shapes = new ConcurrentHashMap<>();
+    private final AtomicInteger shapeCount = new AtomicInteger();
+    // the sorted shapes using each vertex, by its encoded coordinates
+    private final ConcurrentHashMap<Long, int[]> owners = new ConcurrentHashMap<>();
+
+    private final LongAdder verticesBefore = new LongAdder();
+    private final LongAdder verticesAfter = new LongAdder();
+    private final LongAdder trianglesBefore = new LongAdder();
+    private final LongAdder trianglesAfter = new LongAdder();
+    private final LongAdder sharedBordersOnly = new LongAdder();
+    private final LongAdder notSimplified = new LongAdder();
+
+    PolygonSimplifier(double toleranceMeters) {
+        if (toleranceMeters <= 0) {
+            throw new IllegalArgumentException("tolerance must be greater than 0, got [" + toleranceMeters + "]");
+        }
+        this.toleranceMeters = toleranceMeters;
+    }
+
+    /**
+     * Registers the vertices of a shape, all shapes have to be registered before the first one is simplified
+     */
+    void register(String id, Polygon polygon) {
+        final int shape = shapes.computeIfAbsent(id, key -> shapeCount.getAndIncrement());
+        final int[] single = new int[] { shape };
+        register(single, polygon);
+        for (Polygon hole : polygon.getHoles()) {
+            register(single, hole);
+        }
+    }
+
+    private void register(int[] shape, Polygon ring) {
+        for (int i = 0; i < ring.numPoints() - 1; i++) {
+            owners.merge(key(ring.getPolyLat(i), ring.getPolyLon(i)), shape, PolygonSimplifier::union);
+        }
+    }
+
+    private static int[] union(int[] owners, int[] shape) {
+        final int index = Arrays.binarySearch(owners, shape[0]);
+        if (index >= 0) {
+            return owners;
+        }
+        final int insert = -index - 1;
+        final int[] union = new int[owners.length + 1];
+        System.arraycopy(owners, 0, union, 0, insert);
+        union[insert] = shape[0];
+        System.arraycopy(owners, insert, union, insert + 1, owners.length - insert);
+        return union;
+    }
+
+    /**
+     * @return the simplified polygon, rings that would collapse are returned unchanged
+     */
+    Polygon simplify(Polygon polygon) {
+        return simplify(polygon, false);
+    }
+
+    /**
+     * Only simplifies the borders shared with other shapes, so that they still match the simplified neighbours
+     */
+    Polygon simplifySharedBorders(Polygon polygon) {
+        return simplify(polygon, true);
+    }
+
+    private Polygon simplify(Polygon polygon, boolean sharedOnly) {
+        final Polygon[] holes = new Polygon[polygon.numHoles()];
+        for (int i = 0; i < holes.length; i++) {
+            final Polygon hole = polygon.getHoles()[i];
+            final double[][] ring = simplify(hole.getPolyLats(), hole.getPolyLons(), sharedOnly);
+            holes[i] = new Polygon(ring[0], ring[1]);
+        }
+        final double[][] ring = simplify(polygon.getPolyLats(), polygon.getPolyLons(), sharedOnly);
+        return new Polygon(ring[0], ring[1], holes);
+    }
+
+    /**
+     * Tessellates the simplified polygon. If that fails, the polygon is simplified on its shared borders only and if
+     * that fails as well, the original polygon is tessellated, whose borders then no longer match its neighbours.
+     * The original polygon is always tessellated once, so that the number of triangles before simplifying is known.
+     *
+     * @param fields receives the triangles
+     * @return the tessellated polygon
+     */
+    Polygon tessellate(Polygon original, Polygon simplified, Tessellator tessellator, List<Field> fields) throws IOException {
+        Field[] originalFields = null;
+        IllegalArgumentException originalException = null;
+        try {
+            originalFields = tessellator.createIndexableFields(original);
+        } catch (IllegalArgumentException e) {
+            originalException = e;
+        }
+
+        Polygon polygon = simplified;
+        Field[] shapeFields;
+        if (originalFields != null && vertices(simplified) == vertices(original)) {
+            // nothing has been removed, so the triangles are the same
+            shapeFields = originalFields;
+        } else {
+            try {
+                shapeFields = tessellator.createIndexableFields(simplified);
+            } catch (IllegalArgumentException e) {
+                polygon = simplifySharedBorders(original);
+                try {
+                    shapeFields = tessellator.createIndexableFields(polygon);
+                    sharedBordersOnly.increment();
+                } catch (IllegalArgumentException sharedBordersException) {
+                    if (originalException != null) {
+                        throw originalException;
+                    }
+                    polygon = original;
+                    shapeFields = originalFields;
+                    notSimplified.increment();
+                }
+            }
+        }
+        verticesBefore.add(vertices(original));
+        verticesAfter.add(vertices(polygon));
+        // only polygons that can be tessellated before and after simplifying are compared
+        if (originalFields != null) {
+            trianglesBefore.add(originalFields.length);
+            trianglesAfter.add(shapeFields.length);
+        }
+        Collections.addAll(fields, shapeFields);
+        return polygon;
+    }
+
+    private double[][] simplify(double[] lats, double[] lons, boolean sharedOnly) {
+        // the last point closes the ring
+        final int n = lats.length - 1;
+        final long[] keys = new long[n];
+        final int[][] ringOwners = new int[n][];
+        for (int i = 0; i < n; i++) {
+            keys[i] = key(lats[i], lons[i]);
+            ringOwners[i] = owners.getOrDefault(keys[i], NO_OWNERS);
+        }
+
+        final boolean[] keep = new boolean[n];
+        int anchors = 0;
+        int firstAnchor = -1;
+        for (int i = 0; i < n; i++) {
+            final int[] current = ringOwners[i];
+            if (Arrays.equals(current, ringOwners[(i + n - 1) % n]) == false || Arrays.equals(current, ringOwners[(i + 1) % n]) == false) {
+                keep[i] = true;
+                anchors++;
+                if (firstAnchor == -1) {
+                    firstAnchor = i;
+                }
+            }
+        }
+        if (anchors < 2) {
+            // a ring that does not touch any other shape, or that is shared completely like an enclave and the hole
+            // around it, the anchors only depend on the vertices and not on where the ring starts
+            if (firstAnchor == -1) {
+                firstAnchor = 0;
+                for (int i = 1; i < n; i++) {
+                    if (keys[i] < keys[firstAnchor]) {
+                        firstAnchor = i;
+                    }
+                }
+            }
+            int farthest = -1;
+            double farthestDistance = -1;
+            for (int i = 0; i < n; i++) {
+                final double distance = squaredDistance(lats[firstAnchor], lons[firstAnchor], lats[i], lons[i]);
+                if (distance > farthestDistance || (distance == farthestDistance && keys[i] < keys[farthest])) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            keep[firstAnchor] = true;
+            keep[farthest] = true;
+        }
+
+        // simplifies each part of the ring between two anchors, starting at the anchor with the lower key
+        int start = firstAnchor;
+        for (int offset = 1; offset <= n; offset++) {
+            final int end = (firstAnchor + offset) % n;
+            if (keep[end] == false) {
+                continue;
+            }
+            final int length = (end - start + n) % n + 1;
+            // all vertices between two anchors have the same owners
+            if (length > 2 && sharedOnly && ringOwners[(start + 1) % n].length < 2) {
+                for (int i = 1; i < length - 1; i++) {
+                    keep[(start + i) % n] = true;
+                }
+            } else if (length > 2) {
+                final boolean reverse = keys[start] > keys[end];
+                final double[] chainLats = new double[length];
+                final double[] chainLons = new double[length];
+                for (int i = 0; i < length; i++) {
+                    final int index = (reverse ? end - i + n : start + i) % n;
+                    chainLats[i] = lats[index];
+                    chainLons[i] = lons[index];
+                }
+                final boolean[] chainKeep = simplify(chainLats, chainLons, 0, length - 1);
+                for (int i = 1; i < length - 1; i++) {
+                    keep[(reverse ? end - i + n : start + i) % n] = chainKeep[i];
+                }
+            }
+            start = end;
+        }
+
+        int kept = 0;
+        for (boolean k : keep) {
+            if (k) {
+                kept++;
+            }
+        }
+        if (kept < 3) {
+            return new double[][] { lats, lons };
+        }
+        final double[] simplifiedLats = new double[kept + 1];
+        final double[] simplifiedLons = new double[kept + 1];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                simplifiedLats[j] = lats[i];
+                simplifiedLons[j] = lons[i];
+                j++;
+            }
+        }
+        simplifiedLats[kept] = simplifiedLats[0];
+        simplifiedLons[kept] = simplifiedLons[0];
+        return new double[][] { simplifiedLats, simplifiedLons };
+    }
+
+    /**
+     * Douglas-Peucker on a projection around the first point, iterative as a chain can have many thousand points
+     */
+    private boolean[] simplify(double[] lats, double[] lons, int first, int last) {
+        final double scale = Math.toRadians(1) * EARTH_RADIUS_METERS;
+        final double lonScale = scale * Math.cos(Math.toRadians(lats[first]));
+        final double[] x = new double[lats.length];
+        final double[] y = new double[lats.length];
+        for (int i = 0; i < lats.length; i++) {
+            x[i] = (lons[i] - lons[first]) * lonScale;
+            y[i] = (lats[i] - lats[first]) * scale;
+        }
+
+        final boolean[] keep = new boolean[lats.length];
+        keep[first] = true;
+        keep[last] = true;
+        final int[] stack = new int[2 * lats.length];
+        int size = 0;
+        stack[size++] = first;
+        stack[size++] = last;
+        final double squaredTolerance = toleranceMeters * toleranceMeters;
+        while (size > 0) {
+            final int to = stack[--size];
+            final int from = stack[--size];
+            int farthest = -1;
+            double farthestDistance = squaredTolerance;
+            for (int i = from + 1; i < to; i++) {
+                final double distance = squaredSegmentDistance(x[i], y[i], x[from], y[from], x[to], y[to]);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest != -1) {
+                keep[farthest] = true;
+                stack[size++] = from;
+                stack[size++] = farthest;
+                stack[size++] = farthest;
+                stack[size++] = to;
+            }
+        }
+        return keep;
+    }
+
+    private static double squaredSegmentDistance(double px, double py, double ax, double ay, double bx, double by) {
+        final double dx = bx - ax;
+        final double dy = by - ay;
+        final double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        final double ex = px - (ax + t * dx);
+        final double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    private static double squaredDistance(double lat1, double lon1, double lat2, double lon2) {
+        final double dLat = lat2 - lat1;
+        final double dLon = (lon2 - lon1) * Math.cos(Math.toRadians(lat1));
+        return dLat * dLat + dLon * dLon;
+    }
+
+    private static long key(double latitude, double longitude) {
+        return ((long) GeoEncodingUtils.encodeLatitude(latitude) << 32) | (GeoEncodingUtils.encodeLongitude(longitude) & 0xFFFFFFFFL);
+    }
+
+    private static long vertices(Polygon polygon) {
+        long vertices = polygon.numPoints() - 1;
+        for (Polygon hole : polygon.getHoles()) {
+            vertices += hole.numPoints() - 1;
+        }
+        return vertices;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "tolerance %sm, vertices %s -> %s, triangles %s -> %s, %s polygons only simplified " +
+                        "on shared borders, %s polygons not simplified and not matching their neighbours",
+                toleranceMeters, verticesBefore.sum(), verticesAfter.sum(), trianglesBefore.sum(),
+                trianglesAfter.sum(), sharedBordersOnly.sum(), notSimplified.sum());
+    }
+
+    /**
+     * Creates the triangles of a polygon, throws an IllegalArgumentException if it cannot be tessellated
+     */
+    interface Tessellator {
+        Field[] createIndexableFields(Polygon polygon) throws IOException;
+    }
+}
@@ -0,0 +1,254 @@
+package de.spinscale.index;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the GeoJSON files of shapes on a bounded number of threads. Next to every file a sidecar with the
+ * ETag and Last-Modified header of the response is stored, so that refreshing existing files uses conditional
+ * requests and unchanged files are not transferred again. Failed requests and server errors are retried with an
+ * exponential backoff. A file is only replaced once it has been downloaded completely.
+ */
+class ShapeDownloader {
+
+    static final String METADATA_SUFFIX = ".meta";
+
+    private static final String URL = "url";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+
+    private final OkHttpClient client;
+    private final Path directory;
+    private int threads = 8;
+    private int retries = 3;
+    private long backoffMillis = 500;
+
+    ShapeDownloader(OkHttpClient client, Path directory) {
+        this.client = client;
+        this.directory = directory;
+    }
+
+    /**
+     * The number of concurrent downloads
+     */
+    ShapeDownloader threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, got [" + threads + "]");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * How often a failed download is retried, the delay before the first retry doubles with every further retry
+     */
+    ShapeDownloader retries(int retries, long backoffMillis) {
+        if (retries < 0 || backoffMillis < 0) {
+            throw new IllegalArgumentException("retries and backoff must not be negative");
+        }
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+        return this;
+    }
+
+    /**
+     * Downloads all shapes that do not exist yet
+     *
+     * @param refresh if true, existing shapes are checked for changes as well
+     */
+    Result download(List<CsvShapeParser.Shape> shapes, boolean refresh) throws IOException {
+        final Result result = new Result();
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                runnable -> new Thread(runnable, "downloader-" + threadCount.incrementAndGet()));
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (CsvShapeParser.Shape shape : shapes) {
+                final Path file = directory.resolve(shape.getFilename());
+                if (refresh == false && Files.exists(file)) {
+                    result.skipped.incrementAndGet();
+                    continue;
+                }
+                futures.add(executor.submit(() -> {
+                    try {
+                        if (download(shape, file)) {
+                            result.downloaded.incrementAndGet();
+                        } else {
+                            result.unchanged.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        result.failed(shape.id + ": " + e.getMessage());
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while downloading shapes", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the file has been written, false if it has not changed
+     */
+    private boolean download(CsvShapeParser.Shape shape, Path file) throws IOException {
+        final Path metadataFile = directory.resolve(shape.getFilename() + METADATA_SUFFIX);
+        final Properties metadata = readMetadata(metadataFile);
+
+        final Request.Builder builder = new Request.Builder().url(shape.url);
+        // conditional requests only make sense for the same url and if the file is still there
+        if (Files.exists(file) && shape.url.equals(metadata.getProperty(URL))) {
+            if (metadata.getProperty(ETAG) != null) {
+                builder.header("If-None-Match", metadata.getProperty(ETAG));
+            }
+            if (metadata.getProperty(LAST_MODIFIED) != null) {
+                builder.header("If-Modified-Since", metadata.getProperty(LAST_MODIFIED));
+            }
+        }
+        final Request request = builder.build();
+
+        for (int attempt = 0; ; attempt++) {
+            final int code;
+            try (Response response = client.newCall(request).execute()) {
+                code = response.code();
+                if (code == 304) {
+                    return false;
+                } else if (code == 200) {
+                    write(response.body(), file);
+                    final Properties updated = new Properties();
+                    updated.setProperty(URL, shape.url);
+                    if (response.header("ETag") != null) {
+                        updated.setProperty(ETAG, response.header("ETag"));
+                    }
+                    if (response.header("Last-Modified") != null) {
+                        updated.setProperty(LAST_MODIFIED, response.header("Last-Modified"));
+                    }
+                    writeMetadata(updated, metadataFile);
+                    return true;
+                }
+            } catch (IOException e) {
+                // includes connections dropped while reading the body
+                if (attempt >= retries) {
+                    throw e;
+                }
+                backoff(attempt);
+                continue;
+            }
+            if (isRetryable(code) == false || attempt >= retries) {
+                throw new IOException("error querying " + shape.url + ", response code was " + code);
+            }
+            backoff(attempt);
+        }
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == 429 || code >= 500;
+    }
+
+    private void backoff(int attempt) throws IOException {
+        final long delay = backoffMillis << attempt;
+        try {
+            // the jitter keeps the threads from retrying all at the same time
+            Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting to retry", e);
+        }
+    }
+
+    private static void write(ResponseBody body, Path file) throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (InputStream inputStream = body.byteStream()) {
+            Files.copy(inputStream, temp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Properties readMetadata(Path metadataFile) throws IOException {
+        final Properties metadata = new Properties();
+        if (Files.exists(metadataFile)) {
+            try (InputStream inputStream = Files.newInputStream(metadataFile)) {
+                metadata.load(inputStream);
+            }
+        }
+        return metadata;
+    }
+
+    private static void writeMetadata(Properties metadata, Path metadataFile) throws IOException {
+        final Path temp = metadataFile.resolveSibling(metadataFile.getFileName() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temp)) {
+            metadata.store(outputStream, null);
+        }
+        Files.move(temp, metadataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static final class Result {
+
+        private final AtomicInteger downloaded = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+        private void failed(String failure) {
+            failures.add(failure);
+        }
+
+        int downloaded() {
+            return downloaded.get();
+        }
+
+        /** existing files, that have been checked and not changed */
+        int unchanged() {
+            return unchanged.get();
+        }
+
+        /** existing files, that have not been checked */
+        int skipped() {
+            return skipped.get();
+        }
+
+        List<String> failures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "downloaded %s, unchanged %s, skipped %s, failed %s",
+                    downloaded(), unchanged(), skipped(), failures.size());
+        }
+    }
+}
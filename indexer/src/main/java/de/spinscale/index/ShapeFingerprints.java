@@ -0,0 +1,154 @@
+package de.spinscale.index;
+
+import de.spinscale.query.BoundingBox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The fingerprints of all indexed shapes, stored in the commit user data of the index. A fingerprint is a hash of
+ * the row in shapes.csv and the content of the GeoJSON file, so a shape only needs to be indexed again if its
+ * fingerprint changed. Next to the fingerprint the bounding box of the indexed polygon is kept, as the post code
+ * locations around a changed shape need to be checked again, including the area the shape covered before.
+ */
+final class ShapeFingerprints {
+
+    static final String USER_DATA_KEY = "shapes";
+    static final String POINTS_USER_DATA_KEY = "points";
+    static final String SETTINGS_USER_DATA_KEY = "settings";
+    static final String DOCUMENT_SETTINGS_USER_DATA_KEY = "document_settings";
+
+    private final Map<String, Entry> entries;
+
+    ShapeFingerprints() {
+        this(new HashMap<>());
+    }
+
+    private ShapeFingerprints(Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    Entry get(String id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Shapes are fingerprinted on several indexing threads
+     */
+    synchronized void put(String id, Entry entry) {
+        entries.put(id, entry);
+    }
+
+    Map<String, Entry> entries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Reads the fingerprints from commit user data, as written by {@link #toString()}
+     *
+     * @return the fingerprints, null if the user data does not contain any
+     */
+    static ShapeFingerprints fromUserData(Map<String, String> userData) {
+        final String value = userData.get(USER_DATA_KEY);
+        if (value == null) {
+            return null;
+        }
+        final Map<String, Entry> entries = new HashMap<>();
+        for (String line : value.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] parts = line.split("\t");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("invalid shape fingerprint [" + line + "]");
+            }
+            entries.put(parts[0], new Entry(parts[1], BoundingBox.parse(parts[2])));
+        }
+        return new ShapeFingerprints(entries);
+    }
+
+    /**
+     * Hashes the row of a shape and the content of its GeoJSON file
+     */
+    static String fingerprint(CsvShapeParser.Shape shape, Path file) throws IOException {
+        final MessageDigest digest = newDigest();
+        final String row = String.join("\t", shape.id, shape.getFilename(), String.valueOf(shape.url), String.valueOf(shape.points));
+        digest.update(row.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes the content of a stream, used for the post code locations
+     */
+    static String fingerprint(InputStream inputStream) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[1 << 16];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The format stored in the commit user data, one shape per line, sorted by id
+     */
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+            sb.append(entry.getKey()).append('\t')
+                    .append(entry.getValue().fingerprint).append('\t')
+                    .append(entry.getValue().boundingBox).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static final class Entry {
+
+        final String fingerprint;
+        /** the bounding box of the indexed polygon */
+        final BoundingBox boundingBox;
+
+        Entry(String fingerprint, BoundingBox boundingBox) {
+            this.fingerprint = fingerprint;
+            this.boundingBox = boundingBox;
+        }
+    }
+}
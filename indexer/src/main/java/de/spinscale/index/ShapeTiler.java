@@ -0,0 +1,301 @@
+package de.spinscale.index;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.ShapeField;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splits the triangles of large polygons along a grid of tiles, so that a large shape is indexed as several
+ * documents with tight bounding boxes instead of one document whose triangles span the whole shape. The tiles are
+ * aligned to the encoding of the index, a tile spans 2^n encoded units in both dimensions, so a tile boundary
+ * never needs to be rounded. Triangles crossing a tile boundary are clipped and triangulated again. The clipped
+ * pieces of neighbouring tiles share the boundary, so together they cover exactly the same area as the polygon.
+ *
+ * The edges of the clipped triangles along a tile boundary are marked as edges of the shape, as every piece is a
+ * shape of its own in the index.
+ */
+final class ShapeTiler {
+
+    private static final double KM_PER_DEGREE = 111.195;
+    private static final double LATITUDE_DEGREES_PER_UNIT = 180d / (1L << 32);
+    private static final double LONGITUDE_DEGREES_PER_UNIT = 360d / (1L << 32);
+
+    private final double maxAreaSquareKm;
+    private final LongAdder tiledPolygons = new LongAdder();
+    private final LongAdder tiles = new LongAdder();
+    private final LongAdder trianglesBefore = new LongAdder();
+    private final LongAdder trianglesAfter = new LongAdder();
+
+    ShapeTiler(double maxAreaSquareKm) {
+        if (maxAreaSquareKm <= 0) {
+            throw new IllegalArgumentException("max area must be greater than 0, got [" + maxAreaSquareKm + "]");
+        }
+        this.maxAreaSquareKm = maxAreaSquareKm;
+    }
+
+    /**
+     * @param polygon the tessellated polygon
+     * @param triangles the triangles of the polygon, as created by {@link org.apache.lucene.document.LatLonShape}
+     * @return the triangles of each tile, just the given triangles if the bounding box of the polygon is smaller than
+     * the maximum area
+     */
+    List<List<Field>> tile(String fieldName, Polygon polygon, List<Field> triangles) {
+        final double midLatitude = (polygon.minLat + polygon.maxLat) / 2;
+        if (area(polygon.maxLat - polygon.minLat, polygon.maxLon - polygon.minLon, midLatitude) <= maxAreaSquareKm) {
+            return Collections.singletonList(triangles);
+        }
+
+        // the largest tiles not exceeding the area
+        int shift = 1;
+        while (shift < 31 && area((1L << (shift + 1)) * LATITUDE_DEGREES_PER_UNIT,
+                (1L << (shift + 1)) * LONGITUDE_DEGREES_PER_UNIT, midLatitude) <= maxAreaSquareKm) {
+            shift++;
+        }
+
+        // sorted by tile, so that the documents of a shape are always added in the same order
+        final Map<Long, List<Field>> tiled = new TreeMap<>();
+        final ShapeField.DecodedTriangle triangle = new ShapeField.DecodedTriangle();
+        final Clipper clipper = new Clipper();
+        for (Field field : triangles) {
+            final BytesRef bytes = field.binaryValue();
+            ShapeField.decodeTriangle(bytes.offset == 0 ? bytes.bytes : BytesRef.deepCopyOf(bytes).bytes, triangle);
+            final int minX = Math.min(triangle.aX, Math.min(triangle.bX, triangle.cX));
+            final int maxX = Math.max(triangle.aX, Math.max(triangle.bX, triangle.cX));
+            final int minY = Math.min(triangle.aY, Math.min(triangle.bY, triangle.cY));
+            final int maxY = Math.max(triangle.aY, Math.max(triangle.bY, triangle.cY));
+            if (minX >> shift == maxX >> shift && minY >> shift == maxY >> shift) {
+                tiled.computeIfAbsent(tile(minX >> shift, minY >> shift), key -> new ArrayList<>()).add(field);
+                continue;
+            }
+            for (int tileX = minX >> shift; tileX <= maxX >> shift; tileX++) {
+                for (int tileY = minY >> shift; tileY <= maxY >> shift; tileY++) {
+                    final List<Field> fields = clipper.clip(fieldName, triangle, (long) tileX << shift, ((long) tileX + 1) << shift,
+                            (long) tileY << shift, ((long) tileY + 1) << shift);
+                    if (fields.isEmpty() == false) {
+                        tiled.computeIfAbsent(tile(tileX, tileY), key -> new ArrayList<>()).addAll(fields);
+                    }
+                }
+            }
+        }
+
+        tiledPolygons.increment();
+        tiles.add(tiled.size());
+        trianglesBefore.add(triangles.size());
+        for (List<Field> fields : tiled.values()) {
+            trianglesAfter.add(fields.size());
+        }
+        return new ArrayList<>(tiled.values());
+    }
+
+    private static long tile(int tileX, int tileY) {
+        return ((long) tileX << 32) | (tileY & 0xFFFFFFFFL);
+    }
+
+    private static double area(double latitudeDegrees, double longitudeDegrees, double latitude) {
+        return latitudeDegrees * KM_PER_DEGREE * longitudeDegrees * KM_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+    }
+
+    /**
+     * Clips a triangle to a rectangle with Sutherland-Hodgman, which is exact for convex polygons, and triangulates
+     * the clipped polygon as a fan. Each vertex carries the edge flag of the edge starting at it, and the edge of the
+     * triangle this edge is a part of. Intersections are always computed from the whole edge of the triangle in the
+     * same direction, so neighbouring tiles and triangles sharing an edge round them to the very same point.
+     */
+    private static final class Clipper {
+
+        // a triangle clipped by four lines has at most seven vertices
+        private long[] xs = new long[8];
+        private long[] ys = new long[8];
+        private boolean[] edges = new boolean[8];
+        private int[] origins = new int[8];
+        private int size;
+        private long[] nextXs = new long[8];
+        private long[] nextYs = new long[8];
+        private boolean[] nextEdges = new boolean[8];
+        private int[] nextOrigins = new int[8];
+        private int nextSize;
+        // the edges of the triangle, -1 as origin marks an edge along a tile boundary
+        private final long[] originStartX = new long[3];
+        private final long[] originStartY = new long[3];
+        private final long[] originEndX = new long[3];
+        private final long[] originEndY = new long[3];
+
+        List<Field> clip(String fieldName, ShapeField.DecodedTriangle triangle, long minX, long maxX, long minY, long maxY) {
+            size = 0;
+            add(triangle.aX, triangle.aY, triangle.ab);
+            add(triangle.bX, triangle.bY, triangle.bc);
+            add(triangle.cX, triangle.cY, triangle.ca);
+            for (int i = 0; i < 3; i++) {
+                final int j = (i + 1) % 3;
+                // ordered by their coordinates, as a triangle sharing the edge has it in the opposite direction
+                final boolean swap = xs[i] > xs[j] || (xs[i] == xs[j] && ys[i] > ys[j]);
+                originStartX[i] = swap ? xs[j] : xs[i];
+                originStartY[i] = swap ? ys[j] : ys[i];
+                originEndX[i] = swap ? xs[i] : xs[j];
+                originEndY[i] = swap ? ys[i] : ys[j];
+            }
+            clip(0, minX, true);
+            clip(0, maxX, false);
+            clip(1, minY, true);
+            clip(1, maxY, false);
+            removeDuplicates();
+            removeCollinear();
+            if (size < 3) {
+                return Collections.emptyList();
+            }
+
+            final List<Field> fields = new ArrayList<>(size - 2);
+            for (int i = 1; i < size - 1; i++) {
+                final byte[] bytes = new byte[TriangleFields.BYTES];
+                // the diagonals of the fan are not edges of the clipped polygon
+                ShapeField.encodeTriangle(bytes,
+                        (int) ys[0], (int) xs[0], i == 1 && edges[0],
+                        (int) ys[i], (int) xs[i], edges[i],
+                        (int) ys[i + 1], (int) xs[i + 1], i + 1 == size - 1 && edges[i + 1]);
+                fields.add(TriangleFields.field(fieldName, bytes));
+            }
+            return fields;
+        }
+
+        private void add(long x, long y, boolean edge) {
+            xs[size] = x;
+            ys[size] = y;
+            edges[size] = edge;
+            origins[size] = size;
+            size++;
+        }
+
+        /**
+         * Keeps the part of the polygon on one side of a vertical (dimension 0) or horizontal (dimension 1) line
+         */
+        private void clip(int dimension, long line, boolean keepGreater) {
+            nextSize = 0;
+            for (int i = 0; i < size; i++) {
+                final int j = (i + 1) % size;
+                final long start = dimension == 0 ? xs[i] : ys[i];
+                final long end = dimension == 0 ? xs[j] : ys[j];
+                final boolean startInside = keepGreater ? start >= line : start <= line;
+                final boolean endInside = keepGreater ? end >= line : end <= line;
+                if (startInside) {
+                    next(xs[i], ys[i], edges[i], origins[i]);
+                    if (endInside == false) {
+                        // leaves the rectangle, the edge to where it enters again runs along the tile boundary
+                        intersect(i, j, dimension, line, true, -1);
+                    }
+                } else if (endInside) {
+                    intersect(i, j, dimension, line, edges[i], origins[i]);
+                }
+            }
+
+            long[] tmp = xs;
+            xs = nextXs;
+            nextXs = tmp;
+            tmp = ys;
+            ys = nextYs;
+            nextYs = tmp;
+            final boolean[] tmpEdges = edges;
+            edges = nextEdges;
+            nextEdges = tmpEdges;
+            final int[] tmpOrigins = origins;
+            origins = nextOrigins;
+            nextOrigins = tmpOrigins;
+            size = nextSize;
+        }
+
+        /**
+         * Intersects the edge from vertex i to j with the line, the intersection starts an edge with the given flag
+         * and origin
+         */
+        private void intersect(int i, int j, int dimension, long line, boolean edge, int origin) {
+            final int source = origins[i];
+            // an edge along a tile boundary is parallel to one of the axes, its intersections need no rounding
+            final long startX = source == -1 ? xs[i] : originStartX[source];
+            final long startY = source == -1 ? ys[i] : originStartY[source];
+            final long endX = source == -1 ? xs[j] : originEndX[source];
+            final long endY = source == -1 ? ys[j] : originEndY[source];
+            if (dimension == 0) {
+                final double t = (double) (line - startX) / (endX - startX);
+                next(line, Math.round(startY + t * (endY - startY)), edge, origin);
+            } else {
+                final double t = (double) (line - startY) / (endY - startY);
+                next(Math.round(startX + t * (endX - startX)), line, edge, origin);
+            }
+        }
+
+        private void next(long x, long y, boolean edge, int origin) {
+            // the boundary of the last tile is one unit outside of the encoded range
+            nextXs[nextSize] = Math.min(x, Integer.MAX_VALUE);
+            nextYs[nextSize] = Math.min(y, Integer.MAX_VALUE);
+            nextEdges[nextSize] = edge;
+            nextOrigins[nextSize] = origin;
+            nextSize++;
+        }
+
+        /**
+         * Removes vertices equal to their successor, together with the zero length edge starting at them
+         */
+        private void removeDuplicates() {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                final int j = (i + 1) % size;
+                if (size > 1 && xs[i] == xs[j] && ys[i] == ys[j]) {
+                    continue;
+                }
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                edges[kept] = edges[i];
+                origins[kept] = origins[i];
+                kept++;
+            }
+            size = kept;
+        }
+
+        // products of int differences need up to 65 bits, so compare them exactly as 128 bits
+        private static boolean collinear(long ax, long ay, long bx, long by, long cx, long cy) {
+            final long dx1 = bx - ax;
+            final long dy1 = cy - ay;
+            final long dx2 = cx - ax;
+            final long dy2 = by - ay;
+            return Math.multiplyHigh(dx1, dy1) == Math.multiplyHigh(dx2, dy2) && dx1 * dy1 == dx2 * dy2;
+        }
+
+        /**
+         * Removes vertices on a straight line between their neighbours, so that the fan has no empty triangles.
+         * The merged edge is an edge of the polygon, if any of its parts was one.
+         */
+        private void removeCollinear() {
+            boolean removed = true;
+            while (removed && size >= 3) {
+                removed = false;
+                for (int i = 0; i < size; i++) {
+                    final int previous = (i + size - 1) % size;
+                    final int next = (i + 1) % size;
+                    if (collinear(xs[previous], ys[previous], xs[i], ys[i], xs[next], ys[next])) {
+                        edges[previous] = edges[previous] || edges[i];
+                        System.arraycopy(xs, i + 1, xs, i, size - i - 1);
+                        System.arraycopy(ys, i + 1, ys, i, size - i - 1);
+                        System.arraycopy(edges, i + 1, edges, i, size - i - 1);
+                        size--;
+                        removed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "tiled %s polygons into %s tiles, triangles %s -> %s",
+                tiledPolygons.sum(), tiles.sum(), trianglesBefore.sum(), trianglesAfter.sum());
+    }
+}
@@ -0,0 +1,549 @@
+package de.spinscale.index;
+
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.util.ArrayUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Parses the same GeoJSON as {@link SimpleGeoJSONPolygonParser}, but directly from the bytes of the file. Instead of
+ * building a tree of lists and boxed doubles first, the coordinates are written straight into growing primitive
+ * arrays and are only copied once into the resulting polygons. Values that are not needed are skipped without
+ * being decoded.
+ *
+ * Files up to {@link #MAX_HEAP_READ_BYTES} are read into a heap buffer, larger ones are memory mapped.
+ */
+class StreamingGeoJSONPolygonParser {
+
+    static final int MAX_HEAP_READ_BYTES = 1 << 16;
+
+    private final ByteBuffer input;
+    private final int length;
+    private int upto;
+    private String polyType;
+    private int coordinatesDepth = -1;
+    private Double latitude = null;
+    private Double longitude = null;
+
+    // all points of all rings, one ring after the other
+    private double[] lats = new double[64];
+    private double[] lons = new double[64];
+    private int pointCount;
+    // the end of each ring in the points
+    private int[] ringEnds = new int[4];
+    private int ringCount;
+    // the end of each polygon in the rings
+    private int[] polygonEnds = new int[4];
+    private int polygonCount;
+
+    StreamingGeoJSONPolygonParser(ByteBuffer input) {
+        this.input = input;
+        this.upto = input.position();
+        this.length = input.limit();
+    }
+
+    StreamingGeoJSONPolygonParser(byte[] input) {
+        this(ByteBuffer.wrap(input));
+    }
+
+    /**
+     * Reads or maps the file, depending on its size
+     */
+    static StreamingGeoJSONPolygonParser fromFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > MAX_HEAP_READ_BYTES) {
+                // stays valid after the channel is closed
+                return new StreamingGeoJSONPolygonParser(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("unexpected end of file [" + path + "]");
+                }
+            }
+            buffer.flip();
+            return new StreamingGeoJSONPolygonParser(buffer);
+        }
+    }
+
+    public Double getGeomLatitude() {
+        return latitude;
+    }
+
+    public Double getGeomLongitude() {
+        return longitude;
+    }
+
+    public Polygon[] parse() throws ParseException {
+        parseObject("");
+        readEnd();
+
+        // as with the simple parser, type and coordinates can come in any order
+        if (coordinatesDepth == -1) {
+            throw newParseException("did not see any polygon coordinates");
+        }
+        if (polyType == null) {
+            throw newParseException("did not see type: Polygon or MultiPolygon");
+        }
+        if (polyType.equals("Polygon") && coordinatesDepth != 3) {
+            throw newParseException("coordinates of a Polygon must be an array of rings, but got " + coordinatesDepth + " nested arrays");
+        }
+        if (polyType.equals("MultiPolygon") && coordinatesDepth != 4) {
+            throw newParseException("coordinates of a MultiPolygon must be an array of polygons, but got " + coordinatesDepth + " nested arrays");
+        }
+
+        final Polygon[] polygons = new Polygon[polygonCount];
+        int ring = 0;
+        for (int i = 0; i < polygonCount; i++) {
+            final int firstRing = ring;
+            if (firstRing == polygonEnds[i]) {
+                throw newParseException("polygon " + i + " does not have any rings");
+            }
+            final Polygon[] holes = new Polygon[polygonEnds[i] - firstRing - 1];
+            for (ring = firstRing + 1; ring < polygonEnds[i]; ring++) {
+                holes[ring - firstRing - 1] = new Polygon(ringLats(ring), ringLons(ring));
+            }
+            polygons[i] = new Polygon(ringLats(firstRing), ringLons(firstRing), holes);
+        }
+        return polygons;
+    }
+
+    private int ringStart(int ring) {
+        return ring == 0 ? 0 : ringEnds[ring - 1];
+    }
+
+    private double[] ringLats(int ring) {
+        return Arrays.copyOfRange(lats, ringStart(ring), ringEnds[ring]);
+    }
+
+    private double[] ringLons(int ring) {
+        return Arrays.copyOfRange(lons, ringStart(ring), ringEnds[ring]);
+    }
+
+    /** path is the "address" by keys of where we are, e.g. geometry.coordinates */
+    private void parseObject(String path) throws ParseException {
+        scan('{');
+        boolean first = true;
+        while (true) {
+            byte ch = peek();
+            if (ch == '}') {
+                break;
+            } else if (first == false) {
+                if (ch == ',') {
+                    upto++;
+                    ch = peek();
+                    if (ch == '}') {
+                        break;
+                    }
+                } else {
+                    throw newParseException("expected , but got " + (char) ch);
+                }
+            }
+            first = false;
+
+            int uptoStart = upto;
+            final String key = parseString();
+            if (path.equals("crs.properties") && key.equals("href")) {
+                upto = uptoStart;
+                throw newParseException("cannot handle linked crs");
+            }
+
+            scan(':');
+            ch = peek();
+            uptoStart = upto;
+
+            if (key.equals("coordinates") && isValidGeometryPath(path)) {
+                if (ch != '[') {
+                    throw newParseException("coordinates should be an array, but got: " + (char) ch);
+                }
+                if (coordinatesDepth != -1) {
+                    throw newParseException("only one Polygon or MultiPolygon is supported");
+                }
+                parseCoordinates();
+            } else if (key.equals("type") && path.startsWith("crs") == false) {
+                if (ch != '"') {
+                    throw newParseException("type should be a string, but got: " + (char) ch);
+                }
+                final String type = parseString();
+                if (type.equals("Polygon") && isValidGeometryPath(path)) {
+                    polyType = "Polygon";
+                } else if (type.equals("MultiPolygon") && isValidGeometryPath(path)) {
+                    polyType = "MultiPolygon";
+                } else if ((type.equals("FeatureCollection") || type.equals("Feature")) && (path.equals("features.[]") || path.equals(""))) {
+                    // OK, we recurse
+                } else {
+                    upto = uptoStart;
+                    throw newParseException("can only handle type FeatureCollection (if it has a single polygon geometry), Feature, Polygon or MutiPolygon, but got " + type);
+                }
+            } else if (path.equals("crs.properties") && key.equals("name")) {
+                if (ch != '"') {
+                    throw newParseException("crs.properties.name should be a string, but saw: " + (char) ch);
+                }
+                final String crs = parseString();
+                if (crs.startsWith("urn:ogc:def:crs:OGC") == false || crs.endsWith(":CRS84") == false) {
+                    upto = uptoStart;
+                    throw newParseException("crs must be CRS84 from OGC, but saw: " + crs);
+                }
+            } else if (path.equals("properties") && (key.endsWith(":latitude") || key.endsWith(":longitude"))) {
+                parsePropertyValue(key);
+            } else {
+                parseValue(path.length() == 0 ? key : path + "." + key);
+            }
+        }
+
+        scan('}');
+    }
+
+    /** prefers wd: coordinates over lbl: coordinates, regardless of their order */
+    private void parsePropertyValue(String key) throws ParseException {
+        final boolean wikidata = key.equals("wd:latitude") || key.equals("wd:longitude");
+        final boolean label = key.equals("lbl:latitude") || key.equals("lbl:longitude");
+        if (wikidata == false && label == false) {
+            parseValue("properties." + key);
+            return;
+        }
+        if (isNumberStart(peek()) == false) {
+            throw newParseException(key + " should be a number, but got: " + (char) peek());
+        }
+        final double value = parseNumber();
+        if (key.endsWith("latitude")) {
+            if (wikidata || latitude == null) {
+                latitude = value;
+            }
+        } else if (wikidata || longitude == null) {
+            longitude = value;
+        }
+    }
+
+    /** Returns true if the object path is a valid location to see a Multi/Polygon geometry */
+    private boolean isValidGeometryPath(String path) {
+        return path.equals("") || path.equals("geometry") || path.equals("features.[].geometry");
+    }
+
+    /** Parses and skips any value, only objects are inspected for geometries */
+    private void parseValue(String path) throws ParseException {
+        final byte ch = peek();
+        if (ch == '[') {
+            parseArray(path);
+        } else if (ch == '{') {
+            parseObject(path);
+        } else if (ch == '"') {
+            skipString();
+        } else if (ch == 't') {
+            scan("true");
+        } else if (ch == 'f') {
+            scan("false");
+        } else if (ch == 'n') {
+            scan("null");
+        } else if (isNumberStart(ch)) {
+            skipNumber();
+        } else {
+            throw newParseException("expected array, object, string or literal value, but got: " + (char) ch);
+        }
+    }
+
+    private void parseArray(String path) throws ParseException {
+        // the only objects in arrays we care about are the features of a FeatureCollection
+        final String elementPath = path + ".[]";
+        scan('[');
+        boolean first = true;
+        while (upto < length) {
+            byte ch = peek();
+            if (ch == ']') {
+                upto++;
+                return;
+            }
+            if (first == false) {
+                if (ch != ',') {
+                    throw newParseException("expected ',' separating list items, but got '" + (char) ch + "'");
+                }
+                upto++;
+                ch = peek();
+            }
+            first = false;
+
+            if (ch == '[') {
+                parseArray(elementPath);
+            } else if (ch == '{') {
+                parseObject(elementPath);
+            } else if (isNumberStart(ch)) {
+                skipNumber();
+            } else if (ch == '"') {
+                skipString();
+            } else {
+                throw newParseException("expected another array or number while parsing array, not '" + (char) ch + "'");
+            }
+        }
+        throw newParseException("hit EOF while reading array");
+    }
+
+    /**
+     * Parses either the rings of a polygon or the polygons of a multi polygon into the coordinate buffers, the type
+     * is checked against the nesting once the whole object has been read
+     */
+    private void parseCoordinates() throws ParseException {
+        coordinatesDepth = arrayDepth();
+        if (coordinatesDepth == 3) {
+            parsePolygon();
+        } else if (coordinatesDepth == 4) {
+            scan('[');
+            boolean first = true;
+            while (nextElement(first)) {
+                first = false;
+                parsePolygon();
+            }
+        } else {
+            throw newParseException("coordinates must be an array of rings or polygons, but got " + coordinatesDepth + " nested arrays");
+        }
+    }
+
+    /** Returns the number of nested arrays starting at the current position, without consuming them */
+    private int arrayDepth() throws ParseException {
+        final int start = upto;
+        int depth = 0;
+        while (peek() == '[') {
+            depth++;
+            upto++;
+        }
+        upto = start;
+        return depth;
+    }
+
+    private void parsePolygon() throws ParseException {
+        scan('[');
+        boolean first = true;
+        while (nextElement(first)) {
+            first = false;
+            parseRing();
+        }
+        polygonEnds = ArrayUtil.grow(polygonEnds, polygonCount + 1);
+        polygonEnds[polygonCount++] = ringCount;
+    }
+
+    private void parseRing() throws ParseException {
+        scan('[');
+        boolean first = true;
+        while (nextElement(first)) {
+            first = false;
+            scan('[');
+            // lon, lat ordering in GeoJSON!
+            final double lon = parseCoordinate("first");
+            scan(',');
+            final double lat = parseCoordinate("second");
+            if (peek() != ']') {
+                throw newParseException("elements of coordinates array must [lat, lon] array, but got wrong element count");
+            }
+            upto++;
+
+            if (pointCount == lats.length) {
+                lats = ArrayUtil.grow(lats, pointCount + 1);
+                lons = ArrayUtil.growExact(lons, lats.length);
+            }
+            lats[pointCount] = lat;
+            lons[pointCount] = lon;
+            pointCount++;
+        }
+        ringEnds = ArrayUtil.grow(ringEnds, ringCount + 1);
+        ringEnds[ringCount++] = pointCount;
+    }
+
+    private double parseCoordinate(String position) throws ParseException {
+        if (isNumberStart(peek()) == false) {
+            throw newParseException("elements of coordinates array must [lat, lon] array, but " + position + " element is not a Double");
+        }
+        return parseNumber();
+    }
+
+    /**
+     * Consumes the separator before the next element of an array, or the end of the array
+     *
+     * @return true if there is another element
+     */
+    private boolean nextElement(boolean first) throws ParseException {
+        final byte ch = peek();
+        if (ch == ']') {
+            upto++;
+            return false;
+        }
+        if (first) {
+            return true;
+        }
+        if (ch != ',') {
+            throw newParseException("expected ',' separating list items, but got '" + (char) ch + "'");
+        }
+        upto++;
+        return true;
+    }
+
+    private static boolean isNumberStart(byte ch) {
+        return ch == '-' || ch == '.' || (ch >= '0' && ch <= '9');
+    }
+
+    private double parseNumber() throws ParseException {
+        final int start = upto;
+        skipNumber();
+        try {
+            return DoubleParser.parse(input, start, upto);
+        } catch (NumberFormatException nfe) {
+            upto = start;
+            throw newParseException("could not parse number as double");
+        }
+    }
+
+    /** Advances past the bytes of a number without converting it, for numbers outside of the coordinates */
+    private void skipNumber() {
+        while (upto < length) {
+            final byte ch = input.get(upto);
+            if (ch == '-' || ch == '+' || ch == '.' || (ch >= '0' && ch <= '9') || ch == 'e' || ch == 'E') {
+                upto++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private String parseString() throws ParseException {
+        scan('"');
+        StringBuilder builder = null;
+        int segmentStart = upto;
+        while (upto < length) {
+            final byte ch = input.get(upto);
+            if (ch == '"') {
+                final String segment = decode(segmentStart, upto);
+                upto++;
+                return builder == null ? segment : builder.append(segment).toString();
+            }
+            if (ch != '\\') {
+                upto++;
+                continue;
+            }
+
+            if (builder == null) {
+                builder = new StringBuilder();
+            }
+            builder.append(decode(segmentStart, upto));
+            upto++;
+            if (upto == length) {
+                throw newParseException("hit EOF inside string literal");
+            }
+            final byte escaped = input.get(upto++);
+            switch (escaped) {
+                case '"': builder.append('"'); break;
+                case '\\': builder.append('\\'); break;
+                case '/': builder.append('/'); break;
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    // 4 hex digit unicode BMP escape, surrogate pairs are just two of them
+                    if (upto + 4 > length) {
+                        throw newParseException("hit EOF inside string literal");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(decode(upto, upto + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw newParseException("invalid unicode escape");
+                    }
+                    upto += 4;
+                    break;
+                default:
+                    upto--;
+                    throw newParseException("unsupported string escape character \\" + (char) escaped);
+            }
+            segmentStart = upto;
+        }
+
+        throw newParseException("hit EOF inside string literal");
+    }
+
+    private void skipString() throws ParseException {
+        scan('"');
+        while (upto < length) {
+            final byte ch = input.get(upto++);
+            if (ch == '"') {
+                return;
+            } else if (ch == '\\') {
+                // whatever is escaped, it cannot end the string
+                upto++;
+            }
+        }
+        throw newParseException("hit EOF inside string literal");
+    }
+
+    private String decode(int start, int end) {
+        final ByteBuffer slice = input.duplicate();
+        slice.position(start).limit(end);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    private byte peek() throws ParseException {
+        while (upto < length) {
+            final byte ch = input.get(upto);
+            if (isJSONWhitespace(ch)) {
+                upto++;
+                continue;
+            }
+            return ch;
+        }
+
+        throw newParseException("unexpected EOF");
+    }
+
+    /** Scans across whitespace and consumes the expected character, or throws {@code ParseException} if the character is wrong */
+    private void scan(char expected) throws ParseException {
+        final byte ch = peek();
+        if (ch != expected) {
+            throw newParseException("expected '" + expected + "' but got '" + (char) ch + "'");
+        }
+        upto++;
+    }
+
+    /** Scans the expected literal, or throws {@code ParseException} */
+    private void scan(String expected) throws ParseException {
+        if (upto + expected.length() > length) {
+            throw newParseException("expected \"" + expected + "\" but hit EOF");
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (input.get(upto + i) != expected.charAt(i)) {
+                throw newParseException("expected \"" + expected + "\" but got \"" + decode(upto, upto + expected.length()) + "\"");
+            }
+        }
+        upto += expected.length();
+    }
+
+    private void readEnd() throws ParseException {
+        while (upto < length) {
+            final byte ch = input.get(upto);
+            if (isJSONWhitespace(ch) == false) {
+                throw newParseException("unexpected character '" + (char) ch + "' after end of GeoJSON object");
+            }
+            upto++;
+        }
+    }
+
+    private static boolean isJSONWhitespace(byte ch) {
+        return ch == 0x20 || // space
+                ch == 0x09 || // tab
+                ch == 0x0a || // line feed
+                ch == 0x0d;  // newline
+    }
+
+    /** When calling this, upto should be at the position of the incorrect character! */
+    private ParseException newParseException(String details) {
+        final int end = Math.min(length, upto + 1);
+        final int start = Math.max(input.position(), upto - 50);
+        final String fragment = (start > input.position() ? "..." : "") + decode(start, end);
+        return new ParseException(details + " at character offset " + upto + "; fragment leading to this:\n" + fragment, upto);
+    }
+}
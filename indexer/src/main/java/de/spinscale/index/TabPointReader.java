@@ -0,0 +1,200 @@
+package de.spinscale.index;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Streams the points of a tab separated OpenGeoDB file like DE.tab, one point at a time. The file is read through a
+ * fixed size buffer and split into fields on the bytes, so reading a file of any size only needs memory for the
+ * current line. Commented lines and lines without a name, coordinates or post code are skipped.
+ *
+ * <pre>
+ * try (TabPointReader reader = TabPointReader.fromFile(path)) {
+ *     while (reader.next()) {
+ *         reader.name(); reader.latitude(); reader.longitude();
+ *     }
+ * }
+ * </pre>
+ */
+final class TabPointReader implements Closeable {
+
+    private static final int NAME = 3;
+    private static final int LATITUDE = 4;
+    private static final int LONGITUDE = 5;
+    private static final int POST_CODE = 7;
+    private static final int FIELDS = POST_CODE + 1;
+
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer;
+    private boolean endOfInput;
+    private final int[] fieldStarts = new int[FIELDS];
+    private final int[] fieldEnds = new int[FIELDS];
+    private long lineNumber;
+    private long count;
+
+    private String name;
+    private double latitude;
+    private double longitude;
+
+    TabPointReader(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        // nothing has been read yet
+        this.buffer.limit(0);
+    }
+
+    static TabPointReader fromFile(Path path) throws IOException {
+        return new TabPointReader(FileChannel.open(path, StandardOpenOption.READ), 1 << 16);
+    }
+
+    static TabPointReader fromResource(String name) throws IOException {
+        final InputStream inputStream = TabPointReader.class.getResourceAsStream(name);
+        if (inputStream == null) {
+            throw new FileNotFoundException("resource [" + name + "] not found on the classpath");
+        }
+        return new TabPointReader(Channels.newChannel(inputStream), 1 << 16);
+    }
+
+    /**
+     * Moves to the next point
+     *
+     * @return false if there are no more points
+     */
+    boolean next() throws IOException {
+        while (true) {
+            final int lineEnd = nextLineEnd();
+            if (lineEnd == -1) {
+                return false;
+            }
+            final int lineStart = buffer.position();
+            buffer.position(Math.min(lineEnd + 1, buffer.limit()));
+            lineNumber++;
+            if (readPoint(lineStart, lineEnd)) {
+                count++;
+                return true;
+            }
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    double latitude() {
+        return latitude;
+    }
+
+    double longitude() {
+        return longitude;
+    }
+
+    /**
+     * The number of points read so far
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * Splits the line at the tabs, only the fields up to the post code are looked at
+     */
+    private boolean readPoint(int lineStart, int lineEnd) {
+        if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+        if (lineStart == lineEnd || buffer.get(lineStart) == '#') {
+            return false;
+        }
+
+        int field = 0;
+        fieldStarts[0] = lineStart;
+        for (int i = lineStart; i < lineEnd && field < FIELDS; i++) {
+            if (buffer.get(i) == '\t') {
+                fieldEnds[field++] = i;
+                if (field < FIELDS) {
+                    fieldStarts[field] = i + 1;
+                }
+            }
+        }
+        if (field < FIELDS - 1) {
+            return false;
+        } else if (field == FIELDS - 1) {
+            // the post code is the last field of the line
+            fieldEnds[field] = lineEnd;
+        }
+
+        if (isEmpty(NAME) || isEmpty(LATITUDE) || isEmpty(LONGITUDE) || isEmpty(POST_CODE)) {
+            return false;
+        }
+        try {
+            latitude = DoubleParser.parse(buffer, fieldStarts[LATITUDE], fieldEnds[LATITUDE]);
+            longitude = DoubleParser.parse(buffer, fieldStarts[LONGITUDE], fieldEnds[LONGITUDE]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT, "invalid coordinates in line %s", lineNumber), e);
+        }
+        final ByteBuffer nameBytes = buffer.duplicate();
+        nameBytes.limit(fieldEnds[NAME]).position(fieldStarts[NAME]);
+        name = StandardCharsets.UTF_8.decode(nameBytes).toString();
+        return true;
+    }
+
+    private boolean isEmpty(int field) {
+        return fieldStarts[field] == fieldEnds[field];
+    }
+
+    /**
+     * Returns the position of the line feed ending the current line, reading more input if needed. The last line
+     * of the input might not have a line feed, then the end of the input is returned.
+     *
+     * @return -1 if there is no more input
+     */
+    private int nextLineEnd() throws IOException {
+        int scanned = buffer.position();
+        while (true) {
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return i;
+                }
+            }
+            if (endOfInput) {
+                return buffer.hasRemaining() ? buffer.limit() : -1;
+            }
+            scanned = buffer.remaining();
+            fill();
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads as many bytes as fit behind them, a line longer
+     * than the buffer doubles its size
+     */
+    private void fill() throws IOException {
+        buffer.compact();
+        if (buffer.hasRemaining() == false) {
+            final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        final int read = channel.read(buffer);
+        if (read == -1) {
+            endOfInput = true;
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,183 @@
+package de.spinscale.index;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFormatTooNewException;
+import org.apache.lucene.index.IndexFormatTooOldException;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the tessellation of polygons on disk, as tessellating complex shapes like coastlines is the most expensive
+ * part of indexing. The encoded triangles are stored in one file per polygon, named by a hash of its coordinates,
+ * so an unchanged polygon is tessellated only once, no matter which shape it belongs to. The lucene version is part
+ * of the hash, as the tessellation or the encoding of triangles might change between versions.
+ */
+final class TessellationCache implements Closeable {
+
+    private static final String CODEC_NAME = "Tessellation";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+    private static final String EXTENSION = ".tri";
+
+    private final Directory directory;
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    TessellationCache(Path path) throws IOException {
+        this.directory = FSDirectory.open(path);
+    }
+
+    /**
+     * Returns the same fields as {@link LatLonShape#createIndexableFields(String, Polygon)}, from the cache
+     * if the polygon has been tessellated before
+     */
+    Field[] createIndexableFields(String fieldName, Polygon polygon) throws IOException {
+        final String fileName = hash(polygon) + EXTENSION;
+        used.add(fileName);
+
+        final Field[] cached = read(fieldName, fileName);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        final Field[] fields = LatLonShape.createIndexableFields(fieldName, polygon);
+        write(fileName, fields);
+        return fields;
+    }
+
+    private Field[] read(String fieldName, String fileName) throws IOException {
+        if (Arrays.asList(directory.listAll()).contains(fileName) == false) {
+            return null;
+        }
+        try (ChecksumIndexInput input = directory.openChecksumInput(fileName, IOContext.READONCE)) {
+            CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+            final int count = input.readVInt();
+            final Field[] fields = new Field[count];
+            for (int i = 0; i < count; i++) {
+                final byte[] bytes = new byte[TriangleFields.BYTES];
+                input.readBytes(bytes, 0, bytes.length);
+                // the same as the triangles created by LatLonShape, which just wrap the encoded bytes
+                fields[i] = TriangleFields.field(fieldName, bytes);
+            }
+            CodecUtil.checkFooter(input);
+            return fields;
+        } catch (CorruptIndexException | IndexFormatTooOldException | IndexFormatTooNewException | EOFException e) {
+            // tessellated again and overwritten
+            return null;
+        }
+    }
+
+    private void write(String fileName, Field[] fields) throws IOException {
+        // several threads might tessellate the same polygon, each one writes its own temporary file
+        final String tempFileName;
+        try (IndexOutput output = directory.createTempOutput(fileName, "tmp", IOContext.DEFAULT)) {
+            tempFileName = output.getName();
+            CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+            output.writeVInt(fields.length);
+            for (Field field : fields) {
+                final BytesRef bytes = field.binaryValue();
+                if (bytes.length != TriangleFields.BYTES) {
+                    throw new IllegalStateException("expected an encoded triangle of " + TriangleFields.BYTES + " bytes, got [" + bytes.length + "]");
+                }
+                output.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+            }
+            CodecUtil.writeFooter(output);
+        }
+        directory.sync(Arrays.asList(tempFileName));
+        try {
+            directory.rename(tempFileName, fileName);
+        } catch (FileAlreadyExistsException e) {
+            // only on platforms that do not replace files atomically, the existing file has the same content
+            directory.deleteFile(tempFileName);
+        }
+    }
+
+    /**
+     * Deletes all cached polygons that have not been used since the cache has been opened, only makes sense
+     * after all shapes have been tessellated
+     *
+     * @return the number of deleted files
+     */
+    int prune() throws IOException {
+        int deleted = 0;
+        for (String file : directory.listAll()) {
+            if (file.endsWith(EXTENSION) && used.contains(file) == false) {
+                directory.deleteFile(file);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Hashes all coordinates of the polygon and its holes
+     */
+    static String hash(Polygon polygon) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(Version.LATEST.toString().getBytes(StandardCharsets.UTF_8));
+        update(digest, polygon);
+        final byte[] hash = digest.digest();
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void update(MessageDigest digest, Polygon polygon) {
+        final ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + 2 * Double.BYTES * polygon.numPoints());
+        buffer.putInt(polygon.numPoints());
+        for (int i = 0; i < polygon.numPoints(); i++) {
+            buffer.putDouble(polygon.getPolyLat(i));
+            buffer.putDouble(polygon.getPolyLon(i));
+        }
+        buffer.putInt(polygon.numHoles());
+        digest.update(buffer.array());
+        for (Polygon hole : polygon.getHoles()) {
+            update(digest, hole);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "hits %s, misses %s", hits.get(), misses.get());
+    }
+
+    @Override
+    public void close() throws IOException {
+        directory.close();
+    }
+}
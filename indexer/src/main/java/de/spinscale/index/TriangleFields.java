@@ -0,0 +1,36 @@
+package de.spinscale.index;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Creates the triangle fields of a shape from encoded triangles, the same as {@link LatLonShape} does after
+ * tessellating a polygon. Lucene does not expose the field type of these triangles, so it is defined here the same way.
+ */
+final class TriangleFields {
+
+    /** the size of an encoded triangle, seven 4 byte integers for the three vertices, their edges and the encoding */
+    static final int BYTES = 7 * Integer.BYTES;
+
+    private static final FieldType TYPE = new FieldType();
+
+    static {
+        // 7 dimensions stored, the first 4 of them, the bounding box of the triangle, are indexed
+        TYPE.setDimensions(7, 4, Integer.BYTES);
+        TYPE.freeze();
+    }
+
+    private TriangleFields() {}
+
+    /**
+     * @param bytes an encoded triangle of {@link #BYTES} bytes, which is wrapped and must not be modified afterwards
+     */
+    static Field field(String fieldName, byte[] bytes) {
+        if (bytes.length != BYTES) {
+            throw new IllegalArgumentException("an encoded triangle has " + BYTES + " bytes, got [" + bytes.length + "]");
+        }
+        return new Field(fieldName, new BytesRef(bytes), TYPE);
+    }
+}
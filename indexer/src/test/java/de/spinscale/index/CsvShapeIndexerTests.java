@@ -0,0 +1,145 @@
+package de.spinscale.index;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.Bits;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CsvShapeIndexerTests {
+
+    // enough unchanged points that the deletes of an update do not merge away the previous segment
+    private static final int UNCHANGED_POINTS = 40;
+    private static final String POINTS = "#loc_id\tags\tascii\tname\tlat\tlon\tamt\tplz\tvorwahl\n" +
+            // east of shape a, within it once a grows
+            "1\t\tPA\tPa\t50.05\t7.15\t1\t10001\t01\n" +
+            // within shape b, outside of all shapes once b is removed
+            "2\t\tPB\tPb\t50.05\t8.05\t1\t10002\t01\n" +
+            // far away from every change
+            "3\t\tPC\tPc\t52.05\t10.05\t1\t10003\t01\n" +
+            // within shape d, which is only added later
+            "4\t\tPD\tPd\t53.05\t11.05\t1\t10004\t01\n";
+
+    @TempDir
+    Path path;
+
+    @Test
+    public void testUpdateOnlyReplacesChangedShapesAndTheirPoints() throws Exception {
+        final Path shapes = Files.createDirectories(path.resolve("shapes"));
+        final Path index = path.resolve("index");
+        final Path points = path.resolve("points.tab");
+        final StringBuilder pointLines = new StringBuilder(POINTS);
+        final Set<String> unchanged = new TreeSet<>(Arrays.asList("C", "Pc"));
+        for (int i = 0; i < UNCHANGED_POINTS; i++) {
+            pointLines.append(String.format(Locale.ROOT, "%s\t\tU%s\tU%s\t54.%s\t12.%s\t1\t2%04d\t01%n", 100 + i, i, i, 10 + i, 10 + i, i));
+            unchanged.add("U" + i);
+        }
+        Files.write(points, pointLines.toString().getBytes(StandardCharsets.UTF_8));
+        writeSquare(shapes, "A", 50, 50.1, 7, 7.1);
+        writeSquare(shapes, "B", 50, 50.1, 8, 8.1);
+        writeSquare(shapes, "C", 52, 52.1, 9, 9.1);
+
+        indexer(shapes, index, points, "A", "B", "C").createIndex();
+        final String segment;
+        try (Directory directory = new NIOFSDirectory(index); DirectoryReader reader = DirectoryReader.open(directory)) {
+            final Map<String, Set<String>> cities = liveCities(reader);
+            assertThat(cities).hasSize(1);
+            segment = cities.keySet().iterator().next();
+            final Set<String> expected = new TreeSet<>(unchanged);
+            expected.addAll(Arrays.asList("A", "B", "Pa", "Pd"));
+            assertThat(cities.get(segment)).isEqualTo(expected);
+        }
+
+        // a grows, b is removed, c stays the same and d is added
+        writeSquare(shapes, "A", 50, 50.1, 7, 7.2);
+        writeSquare(shapes, "D", 53, 53.1, 11, 11.1);
+        indexer(shapes, index, points, "A", "C", "D").createIndex();
+        try (Directory directory = new NIOFSDirectory(index); DirectoryReader reader = DirectoryReader.open(directory)) {
+            final Map<String, Set<String>> cities = liveCities(reader);
+            // the unchanged shape and the points far away are left in the previous segment
+            assertThat(cities.remove(segment)).isEqualTo(unchanged);
+            assertThat(deletedDocs(reader, segment)).isEqualTo(4);
+            // pa and pd are now within a shape, pb is outside of all shapes
+            final Set<String> added = new TreeSet<>();
+            cities.values().forEach(added::addAll);
+            assertThat(added).containsExactly("A", "D", "Pb");
+            assertThat(ShapeFingerprints.fromUserData(reader.getIndexCommit().getUserData()).entries().keySet())
+                    .containsExactlyInAnyOrder("A", "C", "D");
+        }
+
+        // nothing changed, nothing is written
+        final long generation;
+        final List<String> files;
+        try (Directory directory = new NIOFSDirectory(index)) {
+            generation = SegmentInfos.readLatestCommit(directory).getGeneration();
+            files = Arrays.asList(directory.listAll());
+        }
+        indexer(shapes, index, points, "A", "C", "D").createIndex();
+        try (Directory directory = new NIOFSDirectory(index)) {
+            assertThat(SegmentInfos.readLatestCommit(directory).getGeneration()).isEqualTo(generation);
+            assertThat(directory.listAll()).containsExactlyElementsOf(files);
+        }
+    }
+
+    private static CsvShapeIndexer indexer(Path shapes, Path index, Path points, String... ids) throws Exception {
+        final List<CsvShapeParser.Shape> list = new ArrayList<>();
+        for (String id : ids) {
+            final CsvShapeParser.Shape shape = new CsvShapeParser.Shape();
+            shape.id = id;
+            list.add(shape);
+        }
+        return new CsvShapeIndexer(list, shapes.toString(), index.toString()).pointsFile(points).threads(2);
+    }
+
+    private static void writeSquare(Path shapes, String id, double minLat, double maxLat, double minLon, double maxLon) throws Exception {
+        final String json = String.format(Locale.ROOT, "{\"type\": \"Polygon\", \"coordinates\": [[[%s, %s], [%s, %s], [%s, %s], [%s, %s], [%s, %s]]]}",
+                minLon, minLat, maxLon, minLat, maxLon, maxLat, minLon, maxLat, minLon, minLat);
+        Files.write(shapes.resolve(id.toLowerCase(Locale.ROOT) + ".json"), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The cities of all live documents by the name of their segment
+     */
+    private static Map<String, Set<String>> liveCities(DirectoryReader reader) throws Exception {
+        final Map<String, Set<String>> cities = new TreeMap<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            final LeafReader leaf = context.reader();
+            final Bits liveDocs = leaf.getLiveDocs();
+            final Set<String> segmentCities = cities.computeIfAbsent(((SegmentReader) leaf).getSegmentName(), name -> new TreeSet<>());
+            for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    segmentCities.add(leaf.document(doc).get("city"));
+                }
+            }
+        }
+        return cities;
+    }
+
+    private static int deletedDocs(DirectoryReader reader, String segment) {
+        for (LeafReaderContext context : reader.leaves()) {
+            if (((SegmentReader) context.reader()).getSegmentName().equals(segment)) {
+                return context.reader().numDeletedDocs();
+            }
+        }
+        throw new AssertionError("segment [" + segment + "] not found");
+    }
+}
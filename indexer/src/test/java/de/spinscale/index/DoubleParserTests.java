@@ -0,0 +1,55 @@
+package de.spinscale.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DoubleParserTests {
+
+    @Test
+    public void testSameResultAsParseDouble() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            final String number;
+            switch (i % 4) {
+                case 0:
+                    number = Double.toString((random.nextDouble() - 0.5) * 360);
+                    break;
+                case 1:
+                    number = String.format(Locale.ROOT, "%." + random.nextInt(10) + "f", (random.nextDouble() - 0.5) * 360);
+                    break;
+                case 2:
+                    number = Double.toString(random.nextGaussian() * Math.pow(10, random.nextInt(60) - 30));
+                    break;
+                default:
+                    number = random.nextInt(100_000) + "e-" + random.nextInt(30);
+            }
+            assertThat(parse(number)).withFailMessage("wrong value for %s", number).isEqualTo(Double.parseDouble(number));
+        }
+
+        assertThat(parse("0")).isEqualTo(0.0);
+        assertThat(parse("-0.0")).isEqualTo(-0.0);
+        assertThat(parse("000123.4500")).isEqualTo(123.45);
+        assertThat(parse("1E+3")).isEqualTo(1000.0);
+        assertThat(parse("12345678901234567890")).isEqualTo(12345678901234567890.0);
+    }
+
+    @Test
+    public void testInvalidNumbers() {
+        for (String number : new String[] { "", "-", ".", "1e", "1-2", "1.2.3", "abc" }) {
+            assertThatThrownBy(() -> parse(number)).isInstanceOf(NumberFormatException.class);
+        }
+    }
+
+    private static double parse(String number) {
+        // surrounding bytes must not be read
+        byte[] bytes = ("[" + number + "]").getBytes(StandardCharsets.US_ASCII);
+        return DoubleParser.parse(ByteBuffer.wrap(bytes), 1, bytes.length - 1);
+    }
+}
@@ -1,8 +1,12 @@
 package de.spinscale.index;
 
+import de.spinscale.query.BoundingBox;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocValuesFieldExistsQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.junit.jupiter.api.Test;
@@ -23,4 +27,49 @@ public class IndexerTests {
             assertThat(searcher.count(new MatchAllDocsQuery())).isGreaterThan(49000);
         }
     }
+
+    @Test
+    public void testEveryDocumentHasCityDocValues() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Directory directory = new NIOFSDirectory(indexPath); DirectoryReader reader = DirectoryReader.open(directory)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            assertThat(searcher.count(new DocValuesFieldExistsQuery("city"))).isEqualTo(reader.numDocs());
+        }
+    }
+
+    @Test
+    public void testBoundingBoxIsStoredInCommit() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Directory directory = new NIOFSDirectory(indexPath); DirectoryReader reader = DirectoryReader.open(directory)) {
+            BoundingBox boundingBox = BoundingBox.fromUserData(reader.getIndexCommit().getUserData());
+            assertThat(boundingBox).isNotNull();
+            // munich, helgoland and the most eastern point of germany
+            assertThat(boundingBox.contains(48.1374, 11.5755)).isTrue();
+            assertThat(boundingBox.contains(54.1837, 7.8833)).isTrue();
+            assertThat(boundingBox.contains(51.2724, 15.0419)).isTrue();
+            // new york
+            assertThat(boundingBox.contains(40.7128, -74.0060)).isFalse();
+        }
+    }
+
+    @Test
+    public void testShapeFingerprintsAreStoredInCommit() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Directory directory = new NIOFSDirectory(indexPath); DirectoryReader reader = DirectoryReader.open(directory)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            ShapeFingerprints fingerprints = ShapeFingerprints.fromUserData(reader.getIndexCommit().getUserData());
+            assertThat(fingerprints).isNotNull();
+            assertThat(fingerprints.entries()).containsKey("München");
+            assertThat(fingerprints.get("München").boundingBox.contains(48.1374, 11.5755)).isTrue();
+
+            // every document is either a shape or a post code location
+            int shapes = searcher.count(new TermQuery(new Term(CsvShapeIndexer.TYPE_FIELD, CsvShapeIndexer.TYPE_SHAPE)));
+            int points = searcher.count(new TermQuery(new Term(CsvShapeIndexer.TYPE_FIELD, CsvShapeIndexer.TYPE_POINT)));
+            assertThat(shapes).isEqualTo(fingerprints.entries().size());
+            assertThat(shapes + points).isEqualTo(reader.numDocs());
+        }
+    }
 }
@@ -1,9 +1,26 @@
 package de.spinscale.index;
 
+import org.apache.lucene.geo.Polygon;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class PolygonParserTests {
 
+    private static final String POLYGON_WITH_HOLE = "[ [ [100.0, 0.0], [101.0, 0.0], [101.0, 1.0], [100.0, 1.0], [100.0, 0.0] ], " +
+            "[ [100.2, 0.2], [100.8, 0.2], [100.8, 0.8], [100.2, 0.8], [100.2, 0.2] ] ]";
+    private static final String SECOND_POLYGON = "[ [ [102.0, 2.0], [103.0, 2.0], [103.0, 3.0], [102.0, 3.0], [102.0, 2.0] ] ]";
+
+    @TempDir
+    Path tempDir;
+
     @Test
     public void testArrayParsingWithEscapedStrings() throws Exception {
         StringBuilder b = new StringBuilder();
@@ -19,5 +36,93 @@ public class PolygonParserTests {
         b.append("}\n");
 
         new SimpleGeoJSONPolygonParser(b.toString()).parse();
+        assertSameResult(b.toString());
+    }
+
+    @Test
+    public void testStreamingParserPolygonWithHoles() throws Exception {
+        Polygon[] polygons = assertSameResult("{\"type\": \"Polygon\", \"coordinates\": " + POLYGON_WITH_HOLE + "}");
+        assertThat(polygons).hasSize(1);
+        assertThat(polygons[0].numHoles()).isEqualTo(1);
+        assertThat(polygons[0].getPolyLat(1)).isEqualTo(0.0);
+        assertThat(polygons[0].getPolyLon(1)).isEqualTo(101.0);
+    }
+
+    @Test
+    public void testStreamingParserMultiPolygonInFeature() throws Exception {
+        String json = "{ \"type\": \"Feature\",\n" +
+                "  \"properties\": { \"name\": \"K\\u00f6ln \\\"x\\\"\", \"wd:latitude\": 50.94, \"lbl:latitude\": 1, " +
+                "\"lbl:longitude\": 6.95, \"nested\": { \"coordinates\": [1, 2] }, \"list\": [\"a\", -1.5e3, [0.5]] },\n" +
+                "  \"geometry\": { \"coordinates\": [ " + POLYGON_WITH_HOLE + ", " + SECOND_POLYGON + " ], \"type\": \"MultiPolygon\" }\n" +
+                "}";
+        Polygon[] polygons = assertSameResult(json);
+        assertThat(polygons).hasSize(2);
+
+        StreamingGeoJSONPolygonParser parser = new StreamingGeoJSONPolygonParser(json.getBytes(StandardCharsets.UTF_8));
+        parser.parse();
+        assertThat(parser.getGeomLatitude()).isEqualTo(50.94);
+        assertThat(parser.getGeomLongitude()).isEqualTo(6.95);
+    }
+
+    @Test
+    public void testStreamingParserFeatureCollection() throws Exception {
+        String json = "{ \"type\": \"FeatureCollection\", \"features\": [ { \"type\": \"Feature\", \"properties\": {}, " +
+                "\"geometry\": { \"type\": \"Polygon\", \"coordinates\": " + SECOND_POLYGON + " } } ], " +
+                "\"crs\": { \"type\": \"name\", \"properties\": { \"name\": \"urn:ogc:def:crs:OGC:1.3:CRS84\" } } }";
+        assertThat(assertSameResult(json)).hasSize(1);
+    }
+
+    @Test
+    public void testStreamingParserFromFile() throws Exception {
+        // larger files are mapped instead of read, both must return the same polygons
+        StringBuilder ring = new StringBuilder("[");
+        int points = 10_000;
+        for (int i = 0; i < points; i++) {
+            double angle = 2 * Math.PI * i / points;
+            ring.append('[').append(10 + Math.cos(angle)).append(", ").append(50 + Math.sin(angle)).append("], ");
+        }
+        ring.append("[11.0, 50.0]]");
+        String json = "{\"type\": \"Polygon\", \"coordinates\": [" + ring + "]}";
+        assertThat(json.length()).isGreaterThan(StreamingGeoJSONPolygonParser.MAX_HEAP_READ_BYTES);
+
+        String[] contents = new String[] { json, "{\"type\": \"Polygon\", \"coordinates\": " + POLYGON_WITH_HOLE + "}" };
+        for (int i = 0; i < contents.length; i++) {
+            String content = contents[i];
+            Path file = tempDir.resolve(i + ".geojson");
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+            Polygon[] polygons = StreamingGeoJSONPolygonParser.fromFile(file).parse();
+            assertThat(polygons).isEqualTo(new SimpleGeoJSONPolygonParser(content).parse());
+        }
+    }
+
+    @Test
+    public void testStreamingParserErrors() {
+        assertParseException("{\"type\": \"Polygon\"}", "did not see any polygon coordinates");
+        assertParseException("{\"coordinates\": " + POLYGON_WITH_HOLE + "}", "did not see type");
+        assertParseException("{\"type\": \"Point\", \"coordinates\": [1, 2]}", "can only handle type");
+        assertParseException("{\"type\": \"Polygon\", \"coordinates\": [" + POLYGON_WITH_HOLE + "]}", "coordinates of a Polygon");
+        assertParseException("{\"type\": \"Polygon\", \"coordinates\": [[[1, 2, 3]]]}", "wrong element count");
+        assertParseException("{\"type\": \"Polygon\", \"coordinates\": [[[1, \"2\"]]]}", "second element is not a Double");
+        assertParseException("{\"type\": \"Polygon\", \"coordinates\": [[[1, 2-3]]]}", "could not parse number");
+        assertParseException("{\"crs\": {\"properties\": {\"name\": \"urn:ogc:def:crs:EPSG::4326\"}}}", "crs must be CRS84");
+        assertParseException("{\"type\": \"Polygon\", \"coordinates\": " + POLYGON_WITH_HOLE + "} x", "after end of GeoJSON object");
+        assertParseException("{\"type\": \"Polygon\", \"coordinates\": [[[1, 2]", "unexpected EOF");
+    }
+
+    private static Polygon[] assertSameResult(String json) throws ParseException {
+        SimpleGeoJSONPolygonParser simple = new SimpleGeoJSONPolygonParser(json);
+        Polygon[] expected = simple.parse();
+        StreamingGeoJSONPolygonParser streaming = new StreamingGeoJSONPolygonParser(json.getBytes(StandardCharsets.UTF_8));
+        Polygon[] polygons = streaming.parse();
+        assertThat(polygons).isEqualTo(expected);
+        assertThat(streaming.getGeomLatitude()).isEqualTo(simple.getGeomLatitude());
+        assertThat(streaming.getGeomLongitude()).isEqualTo(simple.getGeomLongitude());
+        return polygons;
+    }
+
+    private static void assertParseException(String json, String message) {
+        assertThatThrownBy(() -> new StreamingGeoJSONPolygonParser(json.getBytes(StandardCharsets.UTF_8)).parse())
+                .isInstanceOf(ParseException.class)
+                .hasMessageContaining(message);
     }
 }
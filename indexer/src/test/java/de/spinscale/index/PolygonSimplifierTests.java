@@ -0,0 +1,183 @@
+package de.spinscale.index;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.geo.Polygon;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PolygonSimplifierTests {
+
+    private static final int BORDER_POINTS = 200;
+
+    @Test
+    public void testNeighboursKeepTheSameBorder() {
+        // two shapes sharing a jagged border along longitude 7, which deviates up to ~35m from a straight line
+        final double[][] border = border(new Random(42));
+        final Polygon west = ring(border, 6, false);
+        final Polygon east = ring(border, 8, true);
+
+        final PolygonSimplifier simplifier = new PolygonSimplifier(20);
+        simplifier.register("west", west);
+        simplifier.register("east", east);
+        final Polygon simplifiedWest = simplifier.simplify(west);
+        final Polygon simplifiedEast = simplifier.simplify(east);
+
+        assertThat(simplifiedWest.numPoints()).isLessThan(west.numPoints());
+        assertThat(borderPoints(simplifiedWest)).isEqualTo(borderPoints(simplifiedEast));
+        // the corners where the border starts and ends are always kept
+        assertThat(borderPoints(simplifiedWest)).contains("50.0,7.0", "51.0,7.0");
+        assertThat(LatLonShape.createIndexableFields("geoshape", simplifiedWest).length)
+                .isLessThan(LatLonShape.createIndexableFields("geoshape", west).length);
+    }
+
+    @Test
+    public void testOnlyOwnBordersFallBackToFullResolution() throws Exception {
+        final double[][] border = border(new Random(42));
+        final Polygon west = ring(border, 6, false);
+        // the east shape has a jagged border of its own along longitude 8
+        final Polygon east = eastWithJaggedEdge(border, border(new Random(7)));
+
+        final PolygonSimplifier simplifier = new PolygonSimplifier(20);
+        simplifier.register("west", west);
+        simplifier.register("east", east);
+        final Polygon simplifiedWest = simplifier.simplify(west);
+        final Polygon simplifiedEast = simplifier.simplify(east);
+        assertThat(edgePoints(simplifiedEast, 8)).isNotEqualTo(edgePoints(east, 8));
+
+        // the simplified east shape cannot be tessellated
+        final PolygonSimplifier.Tessellator tessellator = polygon -> {
+            if (polygon == simplifiedEast) {
+                throw new IllegalArgumentException("cannot tessellate");
+            }
+            return LatLonShape.createIndexableFields("geoshape", polygon);
+        };
+        final List<Field> fields = new ArrayList<>();
+        assertThat(simplifier.tessellate(west, simplifiedWest, tessellator, fields)).isSameAs(simplifiedWest);
+        // the triangles before simplifying are counted, not estimated
+        assertThat(simplifier.toString()).contains("triangles " + LatLonShape.createIndexableFields("geoshape", west).length + " -> " + fields.size() + ",");
+        assertThat(fields.size()).isLessThan(LatLonShape.createIndexableFields("geoshape", west).length);
+        final Polygon indexedEast = simplifier.tessellate(east, simplifiedEast, tessellator, fields);
+
+        // only the border of its own is back at full resolution, the shared one still matches the neighbour
+        assertThat(edgePoints(indexedEast, 8)).isEqualTo(edgePoints(east, 8));
+        assertThat(edgePoints(indexedEast, 7)).isEqualTo(edgePoints(simplifiedWest, 7)).isNotEqualTo(edgePoints(east, 7));
+        assertThat(simplifier.toString()).contains("1 polygons only simplified on shared borders, 0 polygons not simplified");
+
+        // if even that fails, the original polygon is indexed
+        final PolygonSimplifier.Tessellator originalOnly = polygon -> {
+            if (polygon != east) {
+                throw new IllegalArgumentException("cannot tessellate");
+            }
+            return LatLonShape.createIndexableFields("geoshape", polygon);
+        };
+        assertThat(simplifier.tessellate(east, simplifiedEast, originalOnly, fields)).isSameAs(east);
+        assertThat(simplifier.toString()).contains("1 polygons not simplified");
+    }
+
+    @Test
+    public void testToleranceLimitsSimplification() {
+        final Polygon west = ring(border(new Random(42)), 6, false);
+
+        final PolygonSimplifier coarse = new PolygonSimplifier(100);
+        coarse.register("west", west);
+        // the border collapses to a straight line
+        assertThat(coarse.simplify(west).numPoints()).isEqualTo(5);
+
+        final PolygonSimplifier fine = new PolygonSimplifier(0.01);
+        fine.register("west", west);
+        assertThat(fine.simplify(west).numPoints()).isEqualTo(west.numPoints());
+    }
+
+    @Test
+    public void testCollapsingRingIsKept() {
+        final Polygon triangle = new Polygon(new double[] { 50, 50, 50.0001, 50 }, new double[] { 7, 7.0001, 7, 7 });
+        final PolygonSimplifier simplifier = new PolygonSimplifier(1000);
+        simplifier.register("triangle", triangle);
+        assertThat(simplifier.simplify(triangle).numPoints()).isEqualTo(4);
+    }
+
+    private static double[][] border(Random random) {
+        final double[] lats = new double[BORDER_POINTS + 1];
+        final double[] lons = new double[BORDER_POINTS + 1];
+        for (int i = 0; i <= BORDER_POINTS; i++) {
+            lats[i] = 50 + i / (double) BORDER_POINTS;
+            lons[i] = i == 0 || i == BORDER_POINTS ? 7 : 7 + random.nextDouble() * 0.0005;
+        }
+        return new double[][] { lats, lons };
+    }
+
+    /**
+     * A counter clockwise ring from the border to the given longitude and back
+     */
+    private static Polygon ring(double[][] border, double longitude, boolean east) {
+        final int size = BORDER_POINTS + 4;
+        final double[] lats = new double[size];
+        final double[] lons = new double[size];
+        int j = 0;
+        if (east) {
+            lats[j] = 50;
+            lons[j++] = longitude;
+            lats[j] = 51;
+            lons[j++] = longitude;
+            for (int i = BORDER_POINTS; i >= 0; i--) {
+                lats[j] = border[0][i];
+                lons[j++] = border[1][i];
+            }
+        } else {
+            lats[j] = 51;
+            lons[j++] = longitude;
+            lats[j] = 50;
+            lons[j++] = longitude;
+            for (int i = 0; i <= BORDER_POINTS; i++) {
+                lats[j] = border[0][i];
+                lons[j++] = border[1][i];
+            }
+        }
+        lats[j] = lats[0];
+        lons[j] = lons[0];
+        return new Polygon(lats, lons);
+    }
+
+    /**
+     * A counter clockwise ring east of the border, whose eastern edge is the other border moved to longitude 8
+     */
+    private static Polygon eastWithJaggedEdge(double[][] border, double[][] edge) {
+        final int size = 2 * (BORDER_POINTS + 1) + 1;
+        final double[] lats = new double[size];
+        final double[] lons = new double[size];
+        int j = 0;
+        for (int i = 0; i <= BORDER_POINTS; i++) {
+            lats[j] = edge[0][i];
+            lons[j++] = edge[1][i] + 1;
+        }
+        for (int i = BORDER_POINTS; i >= 0; i--) {
+            lats[j] = border[0][i];
+            lons[j++] = border[1][i];
+        }
+        lats[j] = lats[0];
+        lons[j] = lons[0];
+        return new Polygon(lats, lons);
+    }
+
+    private static Set<String> borderPoints(Polygon polygon) {
+        return edgePoints(polygon, 7);
+    }
+
+    private static Set<String> edgePoints(Polygon polygon, double longitude) {
+        final Set<String> points = new TreeSet<>();
+        for (int i = 0; i < polygon.numPoints(); i++) {
+            if (Math.abs(polygon.getPolyLon(i) - longitude) < 0.01) {
+                points.add(polygon.getPolyLat(i) + "," + polygon.getPolyLon(i));
+            }
+        }
+        return points;
+    }
+}
@@ -0,0 +1,148 @@
+package de.spinscale.index;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShapeDownloaderTests {
+
+    @TempDir
+    Path directory;
+
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.shutdown();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    @Test
+    public void testConditionalRefresh() throws Exception {
+        CsvShapeParser.Shape shape = shape("Köln");
+        server.enqueue(new MockResponse().setBody("{\"v\": 1}").setHeader("ETag", "\"v1\"")
+                .setHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT"));
+        server.enqueue(new MockResponse().setResponseCode(304));
+        server.enqueue(new MockResponse().setBody("{\"v\": 2}").setHeader("ETag", "\"v2\""));
+
+        ShapeDownloader downloader = new ShapeDownloader(client, directory);
+        ShapeDownloader.Result result = downloader.download(Collections.singletonList(shape), false);
+        assertThat(result.downloaded()).isEqualTo(1);
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isNull();
+        assertThat(content(shape)).isEqualTo("{\"v\": 1}");
+        assertThat(directory.resolve(shape.getFilename() + ShapeDownloader.METADATA_SUFFIX)).exists();
+
+        // existing files are not checked without refreshing
+        result = downloader.download(Collections.singletonList(shape), false);
+        assertThat(result.skipped()).isEqualTo(1);
+        assertThat(server.getRequestCount()).isEqualTo(1);
+
+        result = downloader.download(Collections.singletonList(shape), true);
+        assertThat(result.unchanged()).isEqualTo(1);
+        RecordedRequest request = server.takeRequest();
+        assertThat(request.getHeader("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(request.getHeader("If-Modified-Since")).isEqualTo("Wed, 21 Oct 2015 07:28:00 GMT");
+        assertThat(content(shape)).isEqualTo("{\"v\": 1}");
+
+        result = downloader.download(Collections.singletonList(shape), true);
+        assertThat(result.downloaded()).isEqualTo(1);
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(content(shape)).isEqualTo("{\"v\": 2}");
+    }
+
+    @Test
+    public void testRetriesServerErrors() throws Exception {
+        CsvShapeParser.Shape shape = shape("Bonn");
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        ShapeDownloader.Result result = new ShapeDownloader(client, directory).retries(2, 1)
+                .download(Collections.singletonList(shape), false);
+        assertThat(result.downloaded()).isEqualTo(1);
+        assertThat(result.failures()).isEmpty();
+        assertThat(server.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        CsvShapeParser.Shape missing = shape("Missing");
+        CsvShapeParser.Shape broken = shape("Broken");
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(request.getPath().contains("missing") ? 404 : 500);
+            }
+        });
+
+        List<CsvShapeParser.Shape> shapes = new ArrayList<>();
+        shapes.add(missing);
+        shapes.add(broken);
+        ShapeDownloader.Result result = new ShapeDownloader(client, directory).retries(2, 1).download(shapes, false);
+        assertThat(result.downloaded()).isEqualTo(0);
+        assertThat(result.failures()).hasSize(2);
+        // client errors are not retried
+        assertThat(server.getRequestCount()).isEqualTo(1 + 3);
+        assertThat(directory.resolve(missing.getFilename())).doesNotExist();
+    }
+
+    @Test
+    public void testParallelismIsBounded() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                running.decrementAndGet();
+                return new MockResponse().setBody("{}");
+            }
+        });
+
+        List<CsvShapeParser.Shape> shapes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            shapes.add(shape("Shape" + i));
+        }
+        ShapeDownloader.Result result = new ShapeDownloader(client, directory).threads(3).download(shapes, false);
+        assertThat(result.downloaded()).isEqualTo(20);
+        assertThat(maxRunning.get()).isBetween(1, 3);
+    }
+
+    private CsvShapeParser.Shape shape(String id) {
+        CsvShapeParser.Shape shape = new CsvShapeParser.Shape();
+        shape.id = id;
+        shape.url = server.url("/" + id.toLowerCase(Locale.ROOT) + ".geojson").toString();
+        return shape;
+    }
+
+    private String content(CsvShapeParser.Shape shape) throws Exception {
+        return new String(Files.readAllBytes(directory.resolve(shape.getFilename())), StandardCharsets.UTF_8);
+    }
+}
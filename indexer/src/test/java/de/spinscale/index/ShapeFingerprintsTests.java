@@ -0,0 +1,53 @@
+package de.spinscale.index;
+
+import de.spinscale.query.BoundingBox;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShapeFingerprintsTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testFingerprintChangesWithRowAndContent() throws Exception {
+        CsvShapeParser.Shape shape = new CsvShapeParser.Shape();
+        shape.id = "Köln";
+        shape.url = "https://example.org/koeln.geojson";
+        Path file = tempDir.resolve(shape.getFilename());
+        Files.write(file, "{\"type\": \"Polygon\"}".getBytes(StandardCharsets.UTF_8));
+
+        String fingerprint = ShapeFingerprints.fingerprint(shape, file);
+        assertThat(ShapeFingerprints.fingerprint(shape, file)).isEqualTo(fingerprint);
+
+        shape.points = "50.9375|6.9603";
+        String withPoints = ShapeFingerprints.fingerprint(shape, file);
+        assertThat(withPoints).isNotEqualTo(fingerprint);
+
+        Files.write(file, "{\"type\": \"MultiPolygon\"}".getBytes(StandardCharsets.UTF_8));
+        assertThat(ShapeFingerprints.fingerprint(shape, file)).isNotEqualTo(withPoints);
+    }
+
+    @Test
+    public void testUserDataRoundTrip() {
+        ShapeFingerprints fingerprints = new ShapeFingerprints();
+        fingerprints.put("Köln", new ShapeFingerprints.Entry("abc", new BoundingBox(50.8, 51.1, 6.7, 7.2)));
+        fingerprints.put("München", new ShapeFingerprints.Entry("def", new BoundingBox(48.0, 48.3, 11.3, 11.8)));
+
+        ShapeFingerprints read = ShapeFingerprints.fromUserData(
+                Collections.singletonMap(ShapeFingerprints.USER_DATA_KEY, fingerprints.toString()));
+        assertThat(read.entries()).containsOnlyKeys("Köln", "München");
+        assertThat(read.get("Köln").fingerprint).isEqualTo("abc");
+        assertThat(read.get("München").boundingBox.toString()).isEqualTo("48.0,48.3,11.3,11.8");
+        assertThat(read.toString()).isEqualTo(fingerprints.toString());
+
+        assertThat(ShapeFingerprints.fromUserData(Collections.emptyMap())).isNull();
+    }
+}
@@ -0,0 +1,126 @@
+package de.spinscale.index;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.document.ShapeField;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShapeTilerTests {
+
+    // roughly 30km x 20km with a notch, so that some tiles are only partially covered
+    private static final Polygon POLYGON = new Polygon(
+            new double[] { 52.4, 52.4, 52.6, 52.6, 52.5, 52.6, 52.6, 52.4 },
+            new double[] { 13.2, 13.6, 13.6, 13.45, 13.4, 13.35, 13.2, 13.2 });
+
+    @Test
+    public void testSmallPolygonsAreNotTiled() {
+        final List<Field> triangles = Arrays.asList(LatLonShape.createIndexableFields("geoshape", POLYGON));
+        final List<List<Field>> tiles = new ShapeTiler(10_000).tile("geoshape", POLYGON, triangles);
+        assertThat(tiles).containsExactly(triangles);
+    }
+
+    @Test
+    public void testTilesCoverThePolygon() throws Exception {
+        final List<Field> triangles = Arrays.asList(LatLonShape.createIndexableFields("geoshape", POLYGON));
+        final ShapeTiler tiler = new ShapeTiler(20);
+        final List<List<Field>> tiles = tiler.tile("geoshape", POLYGON, triangles);
+        assertThat(tiles.size()).isGreaterThan(10);
+        assertThat(tiler.toString()).startsWith("tiled 1 polygons into " + tiles.size() + " tiles");
+
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                for (List<Field> tile : tiles) {
+                    assertThat(tile).allSatisfy(field -> assertThat(field.binaryValue().length).isEqualTo(TriangleFields.BYTES));
+                    final Document document = new Document();
+                    tile.forEach(document::add);
+                    writer.addDocument(document);
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final Random random = new Random(7);
+                for (int i = 0; i < 1000; i++) {
+                    final double latitude = 52.35 + random.nextDouble() * 0.3;
+                    final double longitude = 13.15 + random.nextDouble() * 0.5;
+                    final Boolean contains = contains(latitude, longitude);
+                    if (contains == null) {
+                        continue;
+                    }
+                    final int hits = searcher.count(LatLonShape.newPointQuery("geoshape", ShapeField.QueryRelation.INTERSECTS,
+                            new double[] { latitude, longitude }));
+                    if (contains) {
+                        // a point on a tile boundary is in several tiles
+                        assertThat(hits).as("%s/%s", latitude, longitude).isGreaterThanOrEqualTo(1);
+                    } else {
+                        assertThat(hits).as("%s/%s", latitude, longitude).isEqualTo(0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTilesHaveTightBoundingBoxes() {
+        final List<Field> triangles = Arrays.asList(LatLonShape.createIndexableFields("geoshape", POLYGON));
+        final List<List<Field>> tiles = new ShapeTiler(20).tile("geoshape", POLYGON, triangles);
+
+        final long polygonArea = boundingBoxArea(triangles);
+        for (List<Field> tile : tiles) {
+            assertThat(boundingBoxArea(tile)).isLessThan(polygonArea / 10);
+        }
+    }
+
+    private static long boundingBoxArea(List<Field> triangles) {
+        final ShapeField.DecodedTriangle triangle = new ShapeField.DecodedTriangle();
+        long minX = Integer.MAX_VALUE;
+        long maxX = Integer.MIN_VALUE;
+        long minY = Integer.MAX_VALUE;
+        long maxY = Integer.MIN_VALUE;
+        for (Field field : triangles) {
+            ShapeField.decodeTriangle(field.binaryValue().bytes, triangle);
+            minX = Math.min(minX, Math.min(triangle.aX, Math.min(triangle.bX, triangle.cX)));
+            maxX = Math.max(maxX, Math.max(triangle.aX, Math.max(triangle.bX, triangle.cX)));
+            minY = Math.min(minY, Math.min(triangle.aY, Math.min(triangle.bY, triangle.cY)));
+            maxY = Math.max(maxY, Math.max(triangle.aY, Math.max(triangle.bY, triangle.cY)));
+        }
+        return (maxX - minX) * (maxY - minY);
+    }
+
+    /**
+     * @return null for coordinates too close to the boundary to be sure about the quantized index
+     */
+    private static Boolean contains(double latitude, double longitude) {
+        final double margin = 1e-5;
+        if (Math.abs(latitude - 52.4) < margin || Math.abs(latitude - 52.6) < margin
+                || Math.abs(longitude - 13.2) < margin || Math.abs(longitude - 13.6) < margin) {
+            return null;
+        }
+        if (latitude < 52.4 || latitude > 52.6 || longitude < 13.2 || longitude > 13.6) {
+            return false;
+        }
+        // the notch widens from a point at 52.5/13.4 to 13.35 - 13.45 at the top
+        final double notchHalfWidth = (latitude - 52.5) * 0.5;
+        if (notchHalfWidth <= 0) {
+            return true;
+        }
+        final double distance = Math.abs(longitude - 13.4) - notchHalfWidth;
+        if (Math.abs(distance) < margin) {
+            return null;
+        }
+        return distance > 0;
+    }
+}
@@ -0,0 +1,51 @@
+package de.spinscale.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TabPointReaderTests {
+
+    private static final String FILE = "#loc_id\tags\tascii\tname\tlat\tlon\tamt\tplz\tvorwahl\n" +
+            "14\t\tMUENCHEN\tMünchen\t48.1374\t11.5755\t09162\t80331,80333\t089\n" +
+            "# a comment with\ttabs\t\t\t\t\t\t\n" +
+            "15\t\tNOPLZ\tNo post code\t48.1\t11.5\t09162\t\t089\n" +
+            "\n" +
+            "16\t\tSHORT\tToo short\t48.1\t11.5\n" +
+            "17\t\tKOELN\tKöln\t50.9375\t6.9603\t05315\t50667\r\n" +
+            "18\t\tHELGOLAND\tHelgoland\t54.1837\t7.8833\t01056\t27498";
+
+    @Test
+    public void testReadsValidPoints() throws Exception {
+        // a tiny buffer makes lines span several reads and forces the buffer to grow
+        for (int bufferSize : new int[] { 1, 7, 64, 1 << 16 }) {
+            List<String> points = new ArrayList<>();
+            try (TabPointReader reader = reader(FILE, bufferSize)) {
+                while (reader.next()) {
+                    points.add(reader.name() + " " + reader.latitude() + " " + reader.longitude());
+                }
+                assertThat(reader.count()).isEqualTo(3);
+            }
+            assertThat(points).containsExactly("München 48.1374 11.5755", "Köln 50.9375 6.9603", "Helgoland 54.1837 7.8833");
+        }
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        try (TabPointReader reader = reader("", 16)) {
+            assertThat(reader.next()).isFalse();
+            assertThat(reader.next()).isFalse();
+        }
+    }
+
+    private static TabPointReader reader(String content, int bufferSize) {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        return new TabPointReader(Channels.newChannel(inputStream), bufferSize);
+    }
+}
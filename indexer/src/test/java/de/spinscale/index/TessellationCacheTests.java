@@ -0,0 +1,131 @@
+package de.spinscale.index;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.document.ShapeField;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TessellationCacheTests {
+
+    private static final Polygon SQUARE = new Polygon(new double[] { 50, 50, 51, 51, 50 }, new double[] { 6, 7, 7, 6, 6 });
+    private static final Polygon HOLE = new Polygon(new double[] { 50.4, 50.4, 50.6, 50.6, 50.4 }, new double[] { 6.4, 6.6, 6.6, 6.4, 6.4 });
+    private static final Polygon SQUARE_WITH_HOLE = new Polygon(SQUARE.getPolyLats(), SQUARE.getPolyLons(), HOLE);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testHashDependsOnAllCoordinates() {
+        assertThat(TessellationCache.hash(SQUARE)).isEqualTo(TessellationCache.hash(
+                new Polygon(new double[] { 50, 50, 51, 51, 50 }, new double[] { 6, 7, 7, 6, 6 })));
+        assertThat(TessellationCache.hash(SQUARE)).isNotEqualTo(TessellationCache.hash(SQUARE_WITH_HOLE));
+        assertThat(TessellationCache.hash(SQUARE)).isNotEqualTo(TessellationCache.hash(
+                new Polygon(new double[] { 50, 50, 51.1, 51, 50 }, new double[] { 6, 7, 7, 6, 6 })));
+    }
+
+    @Test
+    public void testCachedFieldsMatchTessellation() throws Exception {
+        final Field[] expected = LatLonShape.createIndexableFields("geoshape", SQUARE_WITH_HOLE);
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            assertSameFields(cache.createIndexableFields("geoshape", SQUARE_WITH_HOLE), expected);
+            assertThat(cache.toString()).isEqualTo("hits 0, misses 1");
+        }
+
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            assertSameFields(cache.createIndexableFields("geoshape", SQUARE_WITH_HOLE), expected);
+            assertThat(cache.toString()).isEqualTo("hits 1, misses 0");
+        }
+    }
+
+    @Test
+    public void testCachedFieldsCanBeSearched() throws Exception {
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            cache.createIndexableFields("geoshape", SQUARE_WITH_HOLE);
+        }
+        try (TessellationCache cache = new TessellationCache(directory);
+             Directory index = new ByteBuffersDirectory()) {
+            final Document document = new Document();
+            for (Field field : cache.createIndexableFields("geoshape", SQUARE_WITH_HOLE)) {
+                document.add(field);
+            }
+            assertThat(cache.toString()).isEqualTo("hits 1, misses 0");
+            try (IndexWriter writer = new IndexWriter(index, new IndexWriterConfig())) {
+                writer.addDocument(document);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(index)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                assertThat(searcher.count(pointQuery(50.2, 6.2))).isEqualTo(1);
+                // within the hole and outside of the square
+                assertThat(searcher.count(pointQuery(50.5, 6.5))).isEqualTo(0);
+                assertThat(searcher.count(pointQuery(52, 6.5))).isEqualTo(0);
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptFileIsTessellatedAgain() throws Exception {
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            cache.createIndexableFields("geoshape", SQUARE);
+        }
+        final Path file = directory.resolve(TessellationCache.hash(SQUARE) + ".tri");
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            assertSameFields(cache.createIndexableFields("geoshape", SQUARE), LatLonShape.createIndexableFields("geoshape", SQUARE));
+            assertThat(cache.toString()).isEqualTo("hits 0, misses 1");
+        }
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            cache.createIndexableFields("geoshape", SQUARE);
+            assertThat(cache.toString()).isEqualTo("hits 1, misses 0");
+        }
+    }
+
+    @Test
+    public void testPruneDeletesUnusedPolygons() throws Exception {
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            cache.createIndexableFields("geoshape", SQUARE);
+            cache.createIndexableFields("geoshape", SQUARE_WITH_HOLE);
+        }
+        try (TessellationCache cache = new TessellationCache(directory)) {
+            cache.createIndexableFields("geoshape", SQUARE);
+            assertThat(cache.prune()).isEqualTo(1);
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).containsExactly(directory.resolve(TessellationCache.hash(SQUARE) + ".tri"));
+        }
+    }
+
+    private static Query pointQuery(double latitude, double longitude) {
+        return LatLonShape.newPointQuery("geoshape", ShapeField.QueryRelation.INTERSECTS, new double[] { latitude, longitude });
+    }
+
+    private static void assertSameFields(Field[] actual, Field[] expected) {
+        assertThat(actual).hasSameSizeAs(expected);
+        for (int i = 0; i < expected.length; i++) {
+            assertThat(actual[i].name()).isEqualTo(expected[i].name());
+            assertThat(actual[i].binaryValue()).isEqualTo(expected[i].binaryValue());
+            assertThat(actual[i].binaryValue().length).isEqualTo(TriangleFields.BYTES);
+            assertThat(actual[i].fieldType().pointDimensionCount()).isEqualTo(expected[i].fieldType().pointDimensionCount());
+            assertThat(actual[i].fieldType().pointIndexDimensionCount()).isEqualTo(expected[i].fieldType().pointIndexDimensionCount());
+            assertThat(actual[i].fieldType().pointNumBytes()).isEqualTo(expected[i].fieldType().pointNumBytes());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package de.spinscale.query;
+
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.util.NumericUtils;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The area covered by an index, enclosing all indexed shapes and points. The indexer stores it in the
+ * user data of the commit, so it can be read without opening the index.
+ */
+public final class BoundingBox {
+
+    public static final String USER_DATA_KEY = "bbox";
+    private static final double TOLERANCE = 1e-6;
+
+    public final double minLatitude;
+    public final double maxLatitude;
+    public final double minLongitude;
+    public final double maxLongitude;
+
+    public BoundingBox(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+        this.minLatitude = minLatitude;
+        this.maxLatitude = maxLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLongitude = maxLongitude;
+    }
+
+    public boolean contains(double latitude, double longitude) {
+        return latitude >= minLatitude && latitude <= maxLatitude && longitude >= minLongitude && longitude <= maxLongitude;
+    }
+
+    /**
+     * A rough distance in degrees of a coordinate to this box, 0 if the box contains the coordinate. Only meant to
+     * compare boxes with each other, longitudes are scaled by the latitude of the coordinate.
+     */
+    public double distance(double latitude, double longitude) {
+        final double latitudeDistance = Math.max(0, Math.max(minLatitude - latitude, latitude - maxLatitude));
+        final double longitudeDistance = Math.max(0, Math.max(minLongitude - longitude, longitude - maxLongitude))
+                * Math.cos(Math.toRadians(latitude));
+        return Math.sqrt(latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance);
+    }
+
+    public boolean intersects(BoundingBox other) {
+        return minLatitude <= other.maxLatitude && maxLatitude >= other.minLatitude
+                && minLongitude <= other.maxLongitude && maxLongitude >= other.minLongitude;
+    }
+
+    public double area() {
+        return (maxLatitude - minLatitude) * (maxLongitude - minLongitude);
+    }
+
+    /**
+     * Reads the bounding box from commit user data, as written by {@link #toString()}
+     *
+     * @return the bounding box, null if the user data does not contain one
+     */
+    public static BoundingBox fromUserData(Map<String, String> userData) {
+        final String value = userData.get(USER_DATA_KEY);
+        if (value == null) {
+            return null;
+        }
+        return parse(value);
+    }
+
+    /**
+     * Parses a bounding box as written by {@link #toString()}
+     */
+    public static BoundingBox parse(String value) {
+        final String[] parts = value.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("invalid bounding box [" + value + "]");
+        }
+        return new BoundingBox(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+    }
+
+    /**
+     * Computes the bounding box from the point values of the shape and location fields
+     *
+     * @return the bounding box, null if the index contains neither shapes nor points
+     */
+    public static BoundingBox compute(IndexReader reader, String shapeField, String locationField) throws IOException {
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        boolean found = false;
+        for (LeafReaderContext context : reader.leaves()) {
+            // the first four dimensions of a triangle are its bounding box: min latitude, min longitude, max latitude, max longitude
+            final PointValues shapes = context.reader().getPointValues(shapeField);
+            if (shapes != null && shapes.size() > 0) {
+                found = true;
+                minY = Math.min(minY, NumericUtils.sortableBytesToInt(shapes.getMinPackedValue(), 0));
+                minX = Math.min(minX, NumericUtils.sortableBytesToInt(shapes.getMinPackedValue(), Integer.BYTES));
+                maxY = Math.max(maxY, NumericUtils.sortableBytesToInt(shapes.getMaxPackedValue(), 2 * Integer.BYTES));
+                maxX = Math.max(maxX, NumericUtils.sortableBytesToInt(shapes.getMaxPackedValue(), 3 * Integer.BYTES));
+            }
+            final PointValues points = context.reader().getPointValues(locationField);
+            if (points != null && points.size() > 0) {
+                found = true;
+                minY = Math.min(minY, NumericUtils.sortableBytesToInt(points.getMinPackedValue(), 0));
+                minX = Math.min(minX, NumericUtils.sortableBytesToInt(points.getMinPackedValue(), Integer.BYTES));
+                maxY = Math.max(maxY, NumericUtils.sortableBytesToInt(points.getMaxPackedValue(), 0));
+                maxX = Math.max(maxX, NumericUtils.sortableBytesToInt(points.getMaxPackedValue(), Integer.BYTES));
+            }
+        }
+        if (found == false) {
+            return null;
+        }
+        // enlarged by roughly 10cm, decoding rounds down, so the original coordinates may be slightly bigger
+        return new BoundingBox(Math.max(-90, GeoEncodingUtils.decodeLatitude(minY) - TOLERANCE),
+                Math.min(90, GeoEncodingUtils.decodeLatitude(maxY) + TOLERANCE),
+                Math.max(-180, GeoEncodingUtils.decodeLongitude(minX) - TOLERANCE),
+                Math.min(180, GeoEncodingUtils.decodeLongitude(maxX) + TOLERANCE));
+    }
+
+    /**
+     * The format stored in the commit user data
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s,%s,%s,%s", minLatitude, maxLatitude, minLongitude, maxLongitude);
+    }
+}
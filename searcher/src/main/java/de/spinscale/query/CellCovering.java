@@ -0,0 +1,150 @@
+package de.spinscale.query;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A precomputed covering of morton cells, that are either fully within a single shape or outside of all shapes.
+ * Every cell is stored as a range of morton codes on the finest level, so that a lookup is a single binary search.
+ * Coordinates not covered by any range are close to a shape boundary and need to be resolved against the index.
+ * The covering is stored as a separate file next to the lucene index.
+ */
+public final class CellCovering {
+
+    public static final String FILE_NAME = "cell_covering";
+    /** the coordinate is in a cell that is outside of all shapes */
+    public static final int OUTSIDE = -1;
+    /** the coordinate is in a cell that touches a shape boundary */
+    public static final int UNKNOWN = -2;
+
+    private static final String CODEC_NAME = "CellCovering";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+
+    private final String[] cities;
+    private final long[] starts;
+    private final long[] ends;
+    private final int[] ordinals;
+
+    CellCovering(String[] cities, long[] starts, long[] ends, int[] ordinals) {
+        this.cities = cities;
+        this.starts = starts;
+        this.ends = ends;
+        this.ordinals = ordinals;
+    }
+
+    /**
+     * Returns the city ordinal of a morton code as returned by {@link MortonCode#encode(double, double)},
+     * {@link #OUTSIDE} or {@link #UNKNOWN}
+     */
+    public int find(long code) {
+        int index = Arrays.binarySearch(starts, code);
+        if (index < 0) {
+            // the range starting right before the code
+            index = -index - 2;
+        }
+        if (index < 0 || code > ends[index]) {
+            return UNKNOWN;
+        }
+        return ordinals[index];
+    }
+
+    public String city(int ordinal) {
+        return cities[ordinal];
+    }
+
+    String[] cities() {
+        return cities;
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Reads the covering from the directory, returns null if it does not exist
+     */
+    public static CellCovering read(Directory directory) throws IOException {
+        if (Arrays.asList(directory.listAll()).contains(FILE_NAME) == false) {
+            return null;
+        }
+
+        try (ChecksumIndexInput input = directory.openChecksumInput(FILE_NAME, IOContext.READONCE)) {
+            CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+            final String[] cities = new String[input.readVInt()];
+            for (int i = 0; i < cities.length; i++) {
+                cities[i] = input.readString();
+            }
+
+            final int size = input.readVInt();
+            final long[] starts = new long[size];
+            final long[] ends = new long[size];
+            final int[] ordinals = new int[size];
+            long previousEnd = -1;
+            for (int i = 0; i < size; i++) {
+                // ranges are sorted and never overlap, so deltas are stored
+                starts[i] = previousEnd + 1 + input.readVLong();
+                ends[i] = starts[i] + input.readVLong();
+                // shifted by one to store OUTSIDE as zero
+                ordinals[i] = input.readVInt() - 1;
+                previousEnd = ends[i];
+            }
+            CodecUtil.checkFooter(input);
+            return new CellCovering(cities, starts, ends, ordinals);
+        }
+    }
+
+    /**
+     * Builds a covering from sorted ranges of morton codes on the finest level and writes it to the directory.
+     * Adjacent ranges of the same city are merged.
+     *
+     * @param directory The directory of the index
+     * @param cities All the cities of the covering
+     * @param ranges Tuples of start, end (inclusive) and city ordinal or {@link #OUTSIDE}, sorted by start
+     */
+    public static void write(Directory directory, List<String> cities, List<long[]> ranges) throws IOException {
+        if (Arrays.asList(directory.listAll()).contains(FILE_NAME)) {
+            directory.deleteFile(FILE_NAME);
+        }
+
+        // merge adjacent ranges first, as the size is written upfront
+        final long[][] merged = new long[ranges.size()][];
+        int size = 0;
+        for (long[] range : ranges) {
+            if (size > 0 && merged[size - 1][1] + 1 == range[0] && merged[size - 1][2] == range[2]) {
+                merged[size - 1][1] = range[1];
+            } else if (size > 0 && range[0] <= merged[size - 1][1]) {
+                throw new IllegalArgumentException("ranges must be sorted and must not overlap, got " + Arrays.toString(range)
+                        + " after " + Arrays.toString(merged[size - 1]));
+            } else {
+                merged[size++] = range.clone();
+            }
+        }
+
+        try (IndexOutput output = directory.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+            output.writeVInt(cities.size());
+            for (String city : cities) {
+                output.writeString(city);
+            }
+
+            output.writeVInt(size);
+            long previousEnd = -1;
+            for (int i = 0; i < size; i++) {
+                output.writeVLong(merged[i][0] - previousEnd - 1);
+                output.writeVLong(merged[i][1] - merged[i][0]);
+                output.writeVInt((int) merged[i][2] + 1);
+                previousEnd = merged[i][1];
+            }
+            CodecUtil.writeFooter(output);
+        }
+        directory.sync(Arrays.asList(FILE_NAME));
+    }
+}
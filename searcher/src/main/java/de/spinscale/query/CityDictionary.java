@@ -0,0 +1,136 @@
+package de.spinscale.query;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * All city names of an index and the city ordinal of every document, loaded once when the index is opened,
+ * so that resolving the city of a hit is an array lookup instead of loading the stored document
+ */
+final class CityDictionary {
+
+    static final String FIELD_NAME = "city";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String[] cities;
+    // the cities as quoted and escaped JSON strings, so that a response does not need to encode them again
+    private final byte[][] jsonCities;
+    private final int[] docOrdinals;
+
+    private CityDictionary(String[] cities, int[] docOrdinals) {
+        this.cities = cities;
+        this.docOrdinals = docOrdinals;
+        this.jsonCities = new byte[cities.length][];
+        for (int i = 0; i < cities.length; i++) {
+            jsonCities[i] = json(cities[i]);
+        }
+    }
+
+    /**
+     * The city ordinal of a top level document id, -1 if the document has no city
+     */
+    int ordinal(int docId) {
+        return docOrdinals[docId];
+    }
+
+    String city(int ordinal) {
+        return cities[ordinal];
+    }
+
+    /**
+     * The city as UTF-8 encoded JSON string including the quotes, shared by all searches so it must not be modified
+     */
+    byte[] json(int ordinal) {
+        return jsonCities[ordinal];
+    }
+
+    static byte[] json(String value) {
+        final StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c == '\n') {
+                json.append("\\n");
+            } else if (c == '\r') {
+                json.append("\\r");
+            } else if (c == '\t') {
+                json.append("\\t");
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                // the line separators are valid JSON, but not valid in javascript strings
+                json.append("\\u").append(HEX[c >> 12 & 0xF]).append(HEX[c >> 8 & 0xF]).append(HEX[c >> 4 & 0xF]).append(HEX[c & 0xF]);
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The ordinal of a city, a negative value if the city is unknown
+     */
+    int ordinal(String city) {
+        return Arrays.binarySearch(cities, city);
+    }
+
+    int size() {
+        return cities.length;
+    }
+
+    /**
+     * A dictionary of sorted cities without any documents
+     */
+    static CityDictionary of(String[] cities) {
+        return new CityDictionary(cities, new int[0]);
+    }
+
+    static CityDictionary load(IndexReader reader) throws IOException {
+        final String[] docCities = new String[reader.maxDoc()];
+        for (LeafReaderContext context : reader.leaves()) {
+            final LeafReader leafReader = context.reader();
+            if (leafReader.getFieldInfos().fieldInfo(FIELD_NAME) == null) {
+                continue;
+            }
+
+            if (leafReader.getSortedDocValues(FIELD_NAME) != null) {
+                final SortedDocValues values = DocValues.getSorted(leafReader, FIELD_NAME);
+                final String[] segmentCities = new String[values.getValueCount()];
+                for (int ord = 0; ord < segmentCities.length; ord++) {
+                    segmentCities[ord] = values.lookupOrd(ord).utf8ToString();
+                }
+                for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+                    docCities[context.docBase + doc] = segmentCities[values.ordValue()];
+                }
+            } else {
+                // indices written before the city was stored as doc value
+                for (int doc = 0; doc < leafReader.maxDoc(); doc++) {
+                    docCities[context.docBase + doc] = leafReader.document(doc).get(FIELD_NAME);
+                }
+            }
+        }
+
+        final TreeSet<String> uniqueCities = new TreeSet<>();
+        for (String city : docCities) {
+            if (city != null) {
+                uniqueCities.add(city);
+            }
+        }
+        final String[] cities = uniqueCities.toArray(new String[0]);
+
+        final int[] docOrdinals = new int[docCities.length];
+        for (int doc = 0; doc < docCities.length; doc++) {
+            docOrdinals[doc] = docCities[doc] == null ? -1 : Arrays.binarySearch(cities, docCities[doc]);
+        }
+        return new CityDictionary(cities, docOrdinals);
+    }
+}
@@ -0,0 +1,75 @@
+package de.spinscale.query;
+
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NoLockFactory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The different ways a read only index can be opened
+ */
+public enum DirectoryType {
+
+    /** positional reads on demand, lowest memory usage, every read is a syscall */
+    NIO {
+        @Override
+        Directory open(Path path) throws IOException {
+            return new NIOFSDirectory(path, NoLockFactory.INSTANCE);
+        }
+    },
+
+    /** memory mapped files, reads are served from the page cache, good for long running processes */
+    MMAP {
+        @Override
+        Directory open(Path path) throws IOException {
+            return new MMapDirectory(path, NoLockFactory.INSTANCE);
+        }
+    },
+
+    /**
+     * the files of the latest commit and the cell covering are copied onto the heap on startup, no disk access
+     * after that. Other files next to the index, like the raster, are not copied
+     */
+    HEAP {
+        @Override
+        Directory open(Path path) throws IOException {
+            final ByteBuffersDirectory heapDirectory = new ByteBuffersDirectory(NoLockFactory.INSTANCE);
+            try (Directory fsDirectory = new NIOFSDirectory(path, NoLockFactory.INSTANCE)) {
+                final List<String> files = new ArrayList<>(SegmentInfos.readLatestCommit(fsDirectory).files(true));
+                if (Arrays.asList(fsDirectory.listAll()).contains(CellCovering.FILE_NAME)) {
+                    files.add(CellCovering.FILE_NAME);
+                }
+                for (String file : files) {
+                    heapDirectory.copyFrom(fsDirectory, file, file, IOContext.READONCE);
+                }
+            } catch (IOException e) {
+                IOUtils.closeWhileHandlingException(heapDirectory);
+                throw e;
+            }
+            return heapDirectory;
+        }
+    };
+
+    abstract Directory open(Path path) throws IOException;
+
+    /**
+     * Parses a directory type like <code>mmap</code>, returns the default type if the input is null or empty
+     */
+    public static DirectoryType fromString(String input, DirectoryType defaultType) {
+        if (input == null || input.isEmpty()) {
+            return defaultType;
+        }
+        return DirectoryType.valueOf(input.trim().toUpperCase(Locale.ROOT));
+    }
+}
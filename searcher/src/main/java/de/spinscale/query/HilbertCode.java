@@ -0,0 +1,41 @@
+package de.spinscale.query;
+
+/**
+ * Maps a latitude/longitude onto a hilbert curve. Unlike the {@link MortonCode}, the curve never jumps, two
+ * consecutive codes are always neighbouring cells, so sorting by this code keeps coordinates close to each other
+ * in long runs.
+ */
+public final class HilbertCode {
+
+    private HilbertCode() {}
+
+    /**
+     * @return a positive code, using {@link MortonCode#BITS_PER_DIMENSION} bits per dimension
+     */
+    public static long encode(double latitude, double longitude) {
+        return encode(MortonCode.encodeLongitude(longitude), MortonCode.encodeLatitude(latitude), MortonCode.BITS_PER_DIMENSION);
+    }
+
+    /**
+     * The position of a cell of a 2^bits x 2^bits grid on the hilbert curve
+     */
+    static long encode(int x, int y, int bits) {
+        long code = 0;
+        for (int s = 1 << (bits - 1); s > 0; s >>>= 1) {
+            final int rx = (x & s) != 0 ? 1 : 0;
+            final int ry = (y & s) != 0 ? 1 : 0;
+            code += (long) s * s * ((3 * rx) ^ ry);
+            // rotates the quadrant, so that the curve of the next level connects to this one
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - (x & (s - 1));
+                    y = s - 1 - (y & (s - 1));
+                }
+                final int tmp = x;
+                x = y;
+                y = tmp;
+            }
+        }
+        return code;
+    }
+}
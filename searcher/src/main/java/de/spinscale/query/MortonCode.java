@@ -0,0 +1,72 @@
+package de.spinscale.query;
+
+import org.apache.lucene.util.BitUtil;
+
+/**
+ * Maps a latitude/longitude onto a z-order (morton) curve, so that coordinates close to each other
+ * usually end up with numerically close codes
+ */
+public final class MortonCode {
+
+    /** number of bits used per dimension, keeps the interleaved code positive */
+    public static final int BITS_PER_DIMENSION = 31;
+
+    private MortonCode() {}
+
+    public static long encode(double latitude, double longitude) {
+        return BitUtil.interleave(encodeLongitude(longitude), encodeLatitude(latitude));
+    }
+
+    /**
+     * Returns the cell of the given level the coordinate falls into. A level has 2^level x 2^level cells,
+     * each cell of a level contains four cells of the next level
+     */
+    public static long cell(double latitude, double longitude, int level) {
+        return cell(encode(latitude, longitude), level);
+    }
+
+    public static long cell(long code, int level) {
+        checkLevel(level);
+        return code >>> (2 * (BITS_PER_DIMENSION - level));
+    }
+
+    public static double cellMinLatitude(long cell, int level) {
+        return -90 + 180 * fraction(BitUtil.deinterleave(cell >>> 1), level);
+    }
+
+    public static double cellMaxLatitude(long cell, int level) {
+        return -90 + 180 * fraction(BitUtil.deinterleave(cell >>> 1) + 1, level);
+    }
+
+    public static double cellMinLongitude(long cell, int level) {
+        return -180 + 360 * fraction(BitUtil.deinterleave(cell), level);
+    }
+
+    public static double cellMaxLongitude(long cell, int level) {
+        return -180 + 360 * fraction(BitUtil.deinterleave(cell) + 1, level);
+    }
+
+    private static double fraction(long value, int level) {
+        return (double) value / (1L << level);
+    }
+
+    private static void checkLevel(int level) {
+        if (level < 1 || level > BITS_PER_DIMENSION) {
+            throw new IllegalArgumentException("level must be between 1 and " + BITS_PER_DIMENSION + ", but was " + level);
+        }
+    }
+
+    static int encodeLatitude(double latitude) {
+        return quantize((latitude + 90) / 180);
+    }
+
+    static int encodeLongitude(double longitude) {
+        return quantize((longitude + 180) / 360);
+    }
+
+    private static int quantize(double fraction) {
+        final long max = (1L << BITS_PER_DIMENSION) - 1;
+        final long value = (long) Math.floor(fraction * (1L << BITS_PER_DIMENSION));
+        return (int) Math.max(0, Math.min(max, value));
+    }
+}
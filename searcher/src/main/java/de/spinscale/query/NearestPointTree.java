@@ -0,0 +1,265 @@
+package de.spinscale.query;
+
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IntroSelector;
+import org.apache.lucene.util.SloppyMath;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An in memory KD-tree over all points of a {@link org.apache.lucene.document.LatLonPoint} field, stored in primitive
+ * arrays. The tree is implicit: the point in the middle of a range splits that range, the left half is before the
+ * middle, the right half after it. Returns the same haversine nearest document as
+ * {@link org.apache.lucene.search.LatLonPointPrototypeQueries#nearest}, including breaking ties by document id.
+ */
+final class NearestPointTree {
+
+    private static final byte SPLIT_LATITUDE = 0;
+    private static final byte SPLIT_LONGITUDE = 1;
+    private static final double EARTH_MEAN_RADIUS_METERS = 6_371_008.7714;
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final int[] docs;
+    private final byte[] splits;
+    // longitude distances can only be used for pruning, if all points are close enough
+    private final boolean pruneByLongitude;
+    private final ThreadLocal<Nearest> nearest = ThreadLocal.withInitial(Nearest::new);
+
+    private NearestPointTree(double[] latitudes, double[] longitudes, int[] docs, byte[] splits, boolean pruneByLongitude) {
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.docs = docs;
+        this.splits = splits;
+        this.pruneByLongitude = pruneByLongitude;
+    }
+
+    int size() {
+        return docs.length;
+    }
+
+    double latitude(int index) {
+        return latitudes[index];
+    }
+
+    double longitude(int index) {
+        return longitudes[index];
+    }
+
+    /**
+     * The top level document id of the point at the given index
+     */
+    int doc(int index) {
+        return docs[index];
+    }
+
+    /**
+     * Returns the top level document id of the point closest to the coordinate, -1 if there are no points
+     */
+    int nearestDoc(double latitude, double longitude) {
+        final int index = nearest(latitude, longitude);
+        return index == -1 ? -1 : docs[index];
+    }
+
+    /**
+     * Returns the index of the point closest to the coordinate, -1 if there are no points
+     */
+    int nearest(double latitude, double longitude) {
+        if (docs.length == 0) {
+            return -1;
+        }
+        final Nearest state = nearest.get();
+        state.index = -1;
+        state.sortKey = Double.POSITIVE_INFINITY;
+        state.meters = Double.POSITIVE_INFINITY;
+        search(0, docs.length, latitude, longitude, state);
+        return state.index;
+    }
+
+    private void search(int from, int to, double latitude, double longitude, Nearest state) {
+        if (from >= to) {
+            return;
+        }
+
+        final int mid = (from + to) >>> 1;
+        final double sortKey = SloppyMath.haversinSortKey(latitude, longitude, latitudes[mid], longitudes[mid]);
+        if (sortKey < state.sortKey || (sortKey == state.sortKey && docs[mid] < docs[state.index])) {
+            state.index = mid;
+            state.sortKey = sortKey;
+            state.meters = SloppyMath.haversinMeters(sortKey);
+        }
+
+        final double delta = splits[mid] == SPLIT_LATITUDE ? latitude - latitudes[mid] : longitude - longitudes[mid];
+        final boolean left = delta < 0;
+        search(left ? from : mid + 1, left ? mid : to, latitude, longitude, state);
+        if (lowerBoundMeters(splits[mid], delta, latitude) <= state.meters) {
+            search(left ? mid + 1 : from, left ? to : mid, latitude, longitude, state);
+        }
+    }
+
+    /**
+     * The minimum distance of any point on the other side of the split to the coordinate. This is slightly
+     * reduced, to stay a lower bound of the sloppy haversine distance used for comparisons.
+     */
+    private double lowerBoundMeters(byte split, double delta, double latitude) {
+        final double radians;
+        if (split == SPLIT_LATITUDE) {
+            // no point with a different latitude can be closer than the distance along the meridian
+            radians = Math.toRadians(Math.abs(delta));
+        } else if (pruneByLongitude && Math.abs(delta) < 90) {
+            // distance to the great circle of the splitting meridian
+            radians = Math.asin(Math.min(1, Math.abs(Math.sin(Math.toRadians(delta))) * Math.cos(Math.toRadians(latitude))));
+        } else {
+            return 0;
+        }
+        return radians * EARTH_MEAN_RADIUS_METERS * 0.999 - 1;
+    }
+
+    /**
+     * Builds a tree from all live documents of a point field, returns a tree without points if the field does not exist
+     */
+    static NearestPointTree build(IndexReader reader, String field) throws IOException {
+        final int[] count = new int[1];
+        double[] latitudes = new double[1024];
+        double[] longitudes = new double[1024];
+        int[] docs = new int[1024];
+
+        for (LeafReaderContext context : reader.leaves()) {
+            final PointValues values = context.reader().getPointValues(field);
+            if (values == null) {
+                continue;
+            }
+            final Bits liveDocs = context.reader().getLiveDocs();
+            final int size = count[0] + Math.toIntExact(values.size());
+            if (size > docs.length) {
+                latitudes = Arrays.copyOf(latitudes, size);
+                longitudes = Arrays.copyOf(longitudes, size);
+                docs = Arrays.copyOf(docs, size);
+            }
+            final double[] leafLatitudes = latitudes;
+            final double[] leafLongitudes = longitudes;
+            final int[] leafDocs = docs;
+
+            values.intersect(new PointValues.IntersectVisitor() {
+                @Override
+                public void visit(int docID) {
+                    throw new IllegalStateException("all cells are crossing, expected to visit values");
+                }
+
+                @Override
+                public void visit(int docID, byte[] packedValue) {
+                    if (liveDocs != null && liveDocs.get(docID) == false) {
+                        return;
+                    }
+                    leafLatitudes[count[0]] = GeoEncodingUtils.decodeLatitude(packedValue, 0);
+                    leafLongitudes[count[0]] = GeoEncodingUtils.decodeLongitude(packedValue, Integer.BYTES);
+                    leafDocs[count[0]] = context.docBase + docID;
+                    count[0]++;
+                }
+
+                @Override
+                public PointValues.Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+                    return PointValues.Relation.CELL_CROSSES_QUERY;
+                }
+            });
+        }
+
+        final int size = count[0];
+        latitudes = Arrays.copyOf(latitudes, size);
+        longitudes = Arrays.copyOf(longitudes, size);
+        docs = Arrays.copyOf(docs, size);
+        final byte[] splits = new byte[size];
+
+        double minLongitude = Double.POSITIVE_INFINITY;
+        double maxLongitude = Double.NEGATIVE_INFINITY;
+        for (double longitude : longitudes) {
+            minLongitude = Math.min(minLongitude, longitude);
+            maxLongitude = Math.max(maxLongitude, longitude);
+        }
+
+        new Builder(latitudes, longitudes, docs, splits).build(0, size);
+        return new NearestPointTree(latitudes, longitudes, docs, splits, maxLongitude - minLongitude <= 90);
+    }
+
+    private static final class Builder extends IntroSelector {
+
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final int[] docs;
+        private final byte[] splits;
+        private byte split;
+        private double pivot;
+
+        private Builder(double[] latitudes, double[] longitudes, int[] docs, byte[] splits) {
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.docs = docs;
+            this.splits = splits;
+        }
+
+        private void build(int from, int to) {
+            if (to - from <= 0) {
+                return;
+            }
+
+            double minLatitude = Double.POSITIVE_INFINITY;
+            double maxLatitude = Double.NEGATIVE_INFINITY;
+            double minLongitude = Double.POSITIVE_INFINITY;
+            double maxLongitude = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                minLatitude = Math.min(minLatitude, latitudes[i]);
+                maxLatitude = Math.max(maxLatitude, latitudes[i]);
+                minLongitude = Math.min(minLongitude, longitudes[i]);
+                maxLongitude = Math.max(maxLongitude, longitudes[i]);
+            }
+            // split along the dimension with the bigger extent, longitude degrees get shorter towards the poles
+            final double cos = Math.cos(Math.toRadians((minLatitude + maxLatitude) / 2));
+            split = (maxLongitude - minLongitude) * cos > maxLatitude - minLatitude ? SPLIT_LONGITUDE : SPLIT_LATITUDE;
+
+            final int mid = (from + to) >>> 1;
+            select(from, to, mid);
+            splits[mid] = split;
+
+            build(from, mid);
+            build(mid + 1, to);
+        }
+
+        private double value(int i) {
+            return split == SPLIT_LATITUDE ? latitudes[i] : longitudes[i];
+        }
+
+        @Override
+        protected void setPivot(int i) {
+            pivot = value(i);
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+            return Double.compare(pivot, value(j));
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+            final double latitude = latitudes[i];
+            latitudes[i] = latitudes[j];
+            latitudes[j] = latitude;
+            final double longitude = longitudes[i];
+            longitudes[i] = longitudes[j];
+            longitudes[j] = longitude;
+            final int doc = docs[i];
+            docs[i] = docs[j];
+            docs[j] = doc;
+        }
+    }
+
+    private static final class Nearest {
+        private int index;
+        private double sortKey;
+        private double meters;
+    }
+}
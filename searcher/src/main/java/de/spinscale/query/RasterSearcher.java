@@ -0,0 +1,347 @@
+package de.spinscale.query;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Answers searches approximately from a precomputed raster instead of the index. The indexer resolves the centre
+ * of every cell of a grid over the bounding box of the index, so a lookup is a few reads from a memory mapped file.
+ *
+ * The answer for a coordinate is the exact answer for the centre of its cell, which is at most
+ * {@link #getMaxErrorMeters()} away, that is half the diagonal of a cell. Coordinates outside of the grid are
+ * answered by the closest cell on its border, without any error bound.
+ *
+ * The grid is split into tiles of 64 x 64 cells. A tile with a single value only stores that value, all other tiles
+ * store a palette of their values and one bit packed palette index per cell.
+ */
+public final class RasterSearcher implements ReverseGeocoder, Closeable {
+
+    public static final String FILE_NAME = "raster";
+
+    private static final String CODEC_NAME = "Raster";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+    private static final double METERS_PER_DEGREE_LATITUDE = 6_371_008.7714 * Math.PI / 180;
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    private final Directory directory;
+    private final IndexInput input;
+    private final RandomAccessInput data;
+    private final Grid grid;
+    private final CityDictionary dictionary;
+    private final long[] tileOffsets;
+
+    private RasterSearcher(Directory directory, IndexInput input, Grid grid, CityDictionary dictionary, long[] tileOffsets) throws IOException {
+        this.directory = directory;
+        this.input = input;
+        this.data = input.randomAccessSlice(0, input.length());
+        this.grid = grid;
+        this.dictionary = dictionary;
+        this.tileOffsets = tileOffsets;
+    }
+
+    public double getResolutionMeters() {
+        return grid.resolutionMeters;
+    }
+
+    /**
+     * The maximum distance between a coordinate within the grid and the coordinate its answer has been computed for
+     */
+    public double getMaxErrorMeters() {
+        return grid.resolutionMeters * Math.sqrt(2) / 2;
+    }
+
+    @Override
+    public SearchResult search(double latitude, double longitude) throws IOException {
+        final long start = System.nanoTime();
+        final int value = value(latitude, longitude);
+        final SearchResult result = value == 0 ? SearchResult.empty(SearchResult.Hint.Point)
+                : new SearchResult(dictionary.city(ordinal(value)), hint(value));
+        result.setTook(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    @Override
+    public void search(double latitude, double longitude, ReusableSearchResult result) throws IOException {
+        final long start = System.nanoTime();
+        final int value = value(latitude, longitude);
+        result.set(dictionary, value == 0 ? -1 : ordinal(value), hint(value));
+        result.setTookNanos(System.nanoTime() - start);
+    }
+
+    private int value(double latitude, double longitude) throws IOException {
+        final int row = grid.row(latitude);
+        final int column = grid.column(longitude);
+        final long offset = tileOffsets[(row >>> TILE_SHIFT) * grid.tileColumns + (column >>> TILE_SHIFT)];
+
+        final int bits = data.readByte(offset);
+        if (bits == 0) {
+            return data.readInt(offset + 1);
+        }
+        final int paletteSize = data.readInt(offset + 1);
+        final long paletteStart = offset + 1 + Integer.BYTES;
+        final long packedStart = paletteStart + (long) paletteSize * Integer.BYTES;
+        // bits is a power of two, so values never span two words
+        final int index = ((row & TILE_MASK) << TILE_SHIFT) | (column & TILE_MASK);
+        final int valuesPerWord = Long.SIZE / bits;
+        final long word = data.readLong(packedStart + (long) (index / valuesPerWord) * Long.BYTES);
+        final int paletteIndex = (int) ((word >>> ((index % valuesPerWord) * bits)) & ((1L << bits) - 1));
+        return data.readInt(paletteStart + (long) paletteIndex * Integer.BYTES);
+    }
+
+    // cells store the city ordinal shifted by one, so that zero is an empty result, and the hint in the lowest bit
+    private static int encode(ReusableSearchResult result) {
+        return result.isEmpty() ? 0 : ((result.getCityOrdinal() + 1) << 1) | (result.getHint() == SearchResult.Hint.Shape ? 1 : 0);
+    }
+
+    private static int ordinal(int value) {
+        return (value >>> 1) - 1;
+    }
+
+    private static SearchResult.Hint hint(int value) {
+        return (value & 1) == 1 ? SearchResult.Hint.Shape : SearchResult.Hint.Point;
+    }
+
+    // package private for testing, the centre of the cell a coordinate is answered by
+    double cellCenterLatitude(double latitude) {
+        return grid.latitude(grid.row(latitude));
+    }
+
+    double cellCenterLongitude(double longitude) {
+        return grid.longitude(grid.column(longitude));
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(input, directory);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "raster [%sx%s cells], resolution [%sm], max error [%.1fm], tiles [%s]",
+                grid.rows, grid.columns, grid.resolutionMeters, getMaxErrorMeters(), tileOffsets.length);
+    }
+
+    /**
+     * Memory maps the raster stored next to an index
+     *
+     * @param path The directory of the index
+     */
+    public static RasterSearcher open(Path path) throws IOException {
+        final Directory directory = new MMapDirectory(path);
+        IndexInput input = null;
+        try {
+            input = directory.openInput(FILE_NAME, IOContext.READ);
+            CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+            final Grid grid = new Grid(Double.longBitsToDouble(input.readLong()), Double.longBitsToDouble(input.readLong()),
+                    Double.longBitsToDouble(input.readLong()), Double.longBitsToDouble(input.readLong()),
+                    Double.longBitsToDouble(input.readLong()), input.readVInt(), input.readVInt());
+            final String[] cities = new String[input.readVInt()];
+            for (int i = 0; i < cities.length; i++) {
+                cities[i] = input.readString();
+            }
+
+            // verifies the structure of the footer, without reading the whole file
+            CodecUtil.retrieveChecksum(input);
+            input.seek(input.length() - CodecUtil.footerLength() - Long.BYTES);
+            input.seek(input.readLong());
+            final long[] tileOffsets = new long[input.readVInt()];
+            for (int i = 0; i < tileOffsets.length; i++) {
+                tileOffsets[i] = input.readLong();
+            }
+            return new RasterSearcher(directory, input, grid, CityDictionary.of(cities), tileOffsets);
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(input, directory);
+            throw e;
+        }
+    }
+
+    /**
+     * Resolves the centre of every cell of a grid over the bounding box with the searcher and writes the raster
+     * next to the index. Tiles are resolved in parallel.
+     *
+     * @param directory The directory of the index
+     * @param searcher A searcher on the same index
+     * @param boundingBox The area to cover, usually the bounding box of the index
+     * @param resolutionMeters The maximum height and width of a cell
+     */
+    public static void write(Directory directory, Searcher searcher, BoundingBox boundingBox, double resolutionMeters) throws IOException {
+        if (resolutionMeters <= 0) {
+            throw new IllegalArgumentException("resolution must be positive, got [" + resolutionMeters + "]");
+        }
+        if (Arrays.asList(directory.listAll()).contains(FILE_NAME)) {
+            directory.deleteFile(FILE_NAME);
+        }
+
+        final Grid grid = Grid.create(boundingBox, resolutionMeters);
+        final CityDictionary dictionary = searcher.getCityDictionary();
+        final ThreadLocal<ReusableSearchResult> results = ThreadLocal.withInitial(ReusableSearchResult::new);
+        final long[] tileOffsets = new long[grid.tileRows * grid.tileColumns];
+
+        try (IndexOutput output = directory.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+            output.writeLong(Double.doubleToLongBits(grid.minLatitude));
+            output.writeLong(Double.doubleToLongBits(grid.minLongitude));
+            output.writeLong(Double.doubleToLongBits(grid.latitudeStep));
+            output.writeLong(Double.doubleToLongBits(grid.longitudeStep));
+            output.writeLong(Double.doubleToLongBits(grid.resolutionMeters));
+            output.writeVInt(grid.rows);
+            output.writeVInt(grid.columns);
+            output.writeVInt(dictionary.size());
+            for (int i = 0; i < dictionary.size(); i++) {
+                output.writeString(dictionary.city(i));
+            }
+
+            for (int tileRow = 0; tileRow < grid.tileRows; tileRow++) {
+                final int row = tileRow;
+                final int[][] tiles = new int[grid.tileColumns][];
+                try {
+                    IntStream.range(0, grid.tileColumns).parallel().forEach(tileColumn -> {
+                        try {
+                            tiles[tileColumn] = resolveTile(searcher, grid, row, tileColumn, results.get());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                for (int tileColumn = 0; tileColumn < grid.tileColumns; tileColumn++) {
+                    tileOffsets[tileRow * grid.tileColumns + tileColumn] = output.getFilePointer();
+                    writeTile(output, tiles[tileColumn]);
+                }
+            }
+
+            final long tileOffsetsStart = output.getFilePointer();
+            output.writeVInt(tileOffsets.length);
+            for (long tileOffset : tileOffsets) {
+                output.writeLong(tileOffset);
+            }
+            output.writeLong(tileOffsetsStart);
+            CodecUtil.writeFooter(output);
+        }
+        directory.sync(Arrays.asList(FILE_NAME));
+    }
+
+    private static int[] resolveTile(Searcher searcher, Grid grid, int tileRow, int tileColumn, ReusableSearchResult result) throws IOException {
+        final int[] values = new int[TILE_SIZE * TILE_SIZE];
+        for (int i = 0; i < values.length; i++) {
+            final int row = (tileRow << TILE_SHIFT) + (i >>> TILE_SHIFT);
+            final int column = (tileColumn << TILE_SHIFT) + (i & TILE_MASK);
+            // cells beyond the grid repeat the first cell, so they do not add to the palette
+            if (row >= grid.rows || column >= grid.columns) {
+                values[i] = values[0];
+                continue;
+            }
+            searcher.search(grid.latitude(row), grid.longitude(column), result);
+            values[i] = encode(result);
+        }
+        return values;
+    }
+
+    private static void writeTile(IndexOutput output, int[] values) throws IOException {
+        final int[] palette = Arrays.stream(values).distinct().sorted().toArray();
+        if (palette.length == 1) {
+            output.writeByte((byte) 0);
+            output.writeInt(palette[0]);
+            return;
+        }
+
+        // rounded up to a power of two, so that no value spans two words
+        final int requiredBits = 32 - Integer.numberOfLeadingZeros(palette.length - 1);
+        final int bits = requiredBits == 1 ? 1 : Integer.highestOneBit(requiredBits - 1) << 1;
+        final int valuesPerWord = Long.SIZE / bits;
+        output.writeByte((byte) bits);
+        output.writeInt(palette.length);
+        for (int value : palette) {
+            output.writeInt(value);
+        }
+        long word = 0;
+        for (int i = 0; i < values.length; i++) {
+            final long paletteIndex = Arrays.binarySearch(palette, values[i]);
+            word |= paletteIndex << ((i % valuesPerWord) * bits);
+            if (i % valuesPerWord == valuesPerWord - 1 || i == values.length - 1) {
+                output.writeLong(word);
+                word = 0;
+            }
+        }
+    }
+
+    /**
+     * The geometry of the raster, cells are addressed by row from the south and column from the west
+     */
+    private static final class Grid {
+
+        private final double minLatitude;
+        private final double minLongitude;
+        private final double latitudeStep;
+        private final double longitudeStep;
+        private final double resolutionMeters;
+        private final int rows;
+        private final int columns;
+        private final int tileRows;
+        private final int tileColumns;
+
+        private Grid(double minLatitude, double minLongitude, double latitudeStep, double longitudeStep,
+                     double resolutionMeters, int rows, int columns) {
+            this.minLatitude = minLatitude;
+            this.minLongitude = minLongitude;
+            this.latitudeStep = latitudeStep;
+            this.longitudeStep = longitudeStep;
+            this.resolutionMeters = resolutionMeters;
+            this.rows = rows;
+            this.columns = columns;
+            this.tileRows = (rows + TILE_MASK) >>> TILE_SHIFT;
+            this.tileColumns = (columns + TILE_MASK) >>> TILE_SHIFT;
+        }
+
+        private static Grid create(BoundingBox boundingBox, double resolutionMeters) {
+            final double latitudeStep = resolutionMeters / METERS_PER_DEGREE_LATITUDE;
+            // a degree of longitude is the longest at the latitude closest to the equator, cells are at most that wide
+            final double closestToEquator = boundingBox.minLatitude <= 0 && boundingBox.maxLatitude >= 0 ? 0
+                    : Math.min(Math.abs(boundingBox.minLatitude), Math.abs(boundingBox.maxLatitude));
+            final double longitudeStep = resolutionMeters / (METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(closestToEquator)));
+            final long rows = Math.max(1, (long) Math.ceil((boundingBox.maxLatitude - boundingBox.minLatitude) / latitudeStep));
+            final long columns = Math.max(1, (long) Math.ceil((boundingBox.maxLongitude - boundingBox.minLongitude) / longitudeStep));
+            if (rows * columns > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(String.format(Locale.ROOT, "resolution of [%sm] results in too many cells [%sx%s]",
+                        resolutionMeters, rows, columns));
+            }
+            return new Grid(boundingBox.minLatitude, boundingBox.minLongitude, latitudeStep, longitudeStep, resolutionMeters,
+                    (int) rows, (int) columns);
+        }
+
+        private int row(double latitude) {
+            return (int) Math.max(0, Math.min(rows - 1, Math.floor((latitude - minLatitude) / latitudeStep)));
+        }
+
+        private int column(double longitude) {
+            return (int) Math.max(0, Math.min(columns - 1, Math.floor((longitude - minLongitude) / longitudeStep)));
+        }
+
+        private double latitude(int row) {
+            return minLatitude + (row + 0.5) * latitudeStep;
+        }
+
+        private double longitude(int column) {
+            return minLongitude + (column + 0.5) * longitudeStep;
+        }
+    }
+}
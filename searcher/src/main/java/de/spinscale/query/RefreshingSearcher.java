@@ -0,0 +1,132 @@
+package de.spinscale.query;
+
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Keeps track of the current {@link Searcher} of an index directory, in the style of lucene's SearcherManager.
+ * Every request acquires the current searcher and releases it when done. {@link #maybeRefresh()} checks if a new
+ * commit has landed in the directory, opens and warms a new searcher and then atomically swaps it in. The previous
+ * searcher is closed once the last request using it has released it.
+ *
+ * As the new searcher is opened from scratch, an index can be replaced by a completely rebuilt one. Replacing it
+ * should be atomic, for example by switching a symlink, as a partially copied index cannot be opened.
+ */
+public class RefreshingSearcher extends ReferenceManager<Searcher> implements ReverseGeocoder {
+
+    private final Path path;
+    private final DirectoryType directoryType;
+    private final int warmSearches;
+    private volatile int resultCacheLevel;
+    private volatile int resultCacheSize;
+
+    /**
+     * Opens the index, the initial searcher is not warmed
+     *
+     * @param path The path to the directory
+     * @param directoryType How to access the index files
+     * @param warmSearches The number of searches to warm a new searcher with before it is swapped in, see {@link Searcher#warm(int)}
+     */
+    public RefreshingSearcher(Path path, DirectoryType directoryType, int warmSearches) throws IOException {
+        this.path = path;
+        this.directoryType = directoryType;
+        this.warmSearches = warmSearches;
+        this.current = Searcher.open(path, directoryType);
+    }
+
+    /**
+     * Enables the result cache on the current and all future searchers. A new searcher starts with an empty cache,
+     * as cached results are only valid for the index they have been computed with.
+     */
+    public void enableResultCache(int level, int maxEntries) throws IOException {
+        this.resultCacheLevel = level;
+        this.resultCacheSize = maxEntries;
+        final Searcher searcher = acquire();
+        try {
+            searcher.enableResultCache(level, maxEntries);
+        } finally {
+            release(searcher);
+        }
+    }
+
+    /**
+     * Runs a single search against the current searcher
+     */
+    @Override
+    public SearchResult search(double latitude, double longitude) throws IOException {
+        final Searcher searcher = acquire();
+        try {
+            return searcher.search(latitude, longitude);
+        } finally {
+            release(searcher);
+        }
+    }
+
+    /**
+     * Runs a single search against the current searcher, see {@link Searcher#search(double, double, ReusableSearchResult)}
+     */
+    @Override
+    public void search(double latitude, double longitude, ReusableSearchResult result) throws IOException {
+        final Searcher searcher = acquire();
+        try {
+            searcher.search(latitude, longitude, result);
+        } finally {
+            release(searcher);
+        }
+    }
+
+    /**
+     * Runs a batch search against the current searcher, see {@link Searcher#searchBatch(double[], double[])}
+     */
+    @Override
+    public SearchResult[] searchBatch(double[] latitudes, double[] longitudes) throws IOException {
+        final Searcher searcher = acquire();
+        try {
+            return searcher.searchBatch(latitudes, longitudes);
+        } finally {
+            release(searcher);
+        }
+    }
+
+    @Override
+    protected void decRef(Searcher reference) {
+        reference.decRef();
+    }
+
+    @Override
+    protected Searcher refreshIfNeeded(Searcher referenceToRefresh) throws IOException {
+        final String commitId;
+        try (Directory directory = FSDirectory.open(path)) {
+            commitId = Searcher.readCommitId(directory, null);
+        }
+        if (commitId.equals(referenceToRefresh.getCommitId())) {
+            return null;
+        }
+
+        final Searcher searcher = Searcher.open(path, directoryType);
+        try {
+            searcher.warm(warmSearches);
+            if (resultCacheSize > 0) {
+                searcher.enableResultCache(resultCacheLevel, resultCacheSize);
+            }
+        } catch (IOException e) {
+            searcher.close();
+            throw e;
+        }
+        return searcher;
+    }
+
+    @Override
+    protected boolean tryIncRef(Searcher reference) {
+        return reference.tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(Searcher reference) {
+        return reference.getRefCount();
+    }
+}
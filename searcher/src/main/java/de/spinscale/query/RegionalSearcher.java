@@ -0,0 +1,287 @@
+package de.spinscale.query;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Routes searches to several regional indices, each in its own sub directory, for example one per country.
+ * Only the bounding boxes of the regions are kept in memory, a region is opened on its first search and closed
+ * again, once it has not been searched for a while, see {@link #evictIdle()}.
+ *
+ * A coordinate is searched in all regions whose bounding box contains it, smallest region first, until one of them
+ * has a shape containing the coordinate. If no region has such a shape, the nearest point among all regions containing
+ * the coordinate is returned. Coordinates outside of all regions are searched in the region with the closest bounding box.
+ */
+public class RegionalSearcher implements ReverseGeocoder, Closeable {
+
+    private final Region[] regions;
+    private final DirectoryType directoryType;
+    private final int warmSearches;
+    private final long idleTimeoutNanos;
+    private volatile int resultCacheLevel;
+    private volatile int resultCacheSize;
+    // the result of a single region, compared against the best result so far
+    private final ThreadLocal<ReusableSearchResult> candidates = ThreadLocal.withInitial(ReusableSearchResult::new);
+
+    /**
+     * Reads the bounding boxes of all regions, without opening them
+     *
+     * @param path The directory containing one index directory per region
+     * @param directoryType How to access the index files of a region
+     * @param warmSearches The number of searches to warm a region with, see {@link Searcher#warm(int)}
+     * @param idleTimeout How long a region stays open without being searched
+     * @param unit The unit of the idle timeout
+     */
+    public RegionalSearcher(Path path, DirectoryType directoryType, int warmSearches, long idleTimeout, TimeUnit unit) throws IOException {
+        this.directoryType = directoryType;
+        this.warmSearches = warmSearches;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+
+        final List<Region> regions = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(path)) {
+            for (Path regionPath : (Iterable<Path>) paths.sorted()::iterator) {
+                if (Files.isDirectory(regionPath) == false) {
+                    continue;
+                }
+                try (Directory directory = FSDirectory.open(regionPath)) {
+                    if (DirectoryReader.indexExists(directory) == false) {
+                        continue;
+                    }
+                    final BoundingBox boundingBox = readBoundingBox(directory);
+                    if (boundingBox != null) {
+                        regions.add(new Region(regionPath.getFileName().toString(), regionPath, boundingBox));
+                    }
+                }
+            }
+        }
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("no regional indices found in [" + path + "]");
+        }
+        // smaller regions are more specific, so they are searched first
+        regions.sort(Comparator.comparingDouble(region -> region.boundingBox.area()));
+        this.regions = regions.toArray(new Region[0]);
+    }
+
+    /**
+     * Reads the bounding box from the commit user data, indices written before it was stored there
+     * are opened once to compute it
+     */
+    private static BoundingBox readBoundingBox(Directory directory) throws IOException {
+        final BoundingBox boundingBox = BoundingBox.fromUserData(SegmentInfos.readLatestCommit(directory).getUserData());
+        if (boundingBox != null) {
+            return boundingBox;
+        }
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return BoundingBox.compute(reader, Searcher.FIELD_NAME_SHAPE, Searcher.FIELD_NAME_LOCATION);
+        }
+    }
+
+    /**
+     * Enables the result cache for every region, see {@link Searcher#enableResultCache(int, int)}
+     */
+    public void enableResultCache(int level, int maxEntries) throws IOException {
+        this.resultCacheLevel = level;
+        this.resultCacheSize = maxEntries;
+        for (Region region : regions) {
+            final RefreshingSearcher manager = region.manager;
+            if (manager != null) {
+                try {
+                    manager.enableResultCache(level, maxEntries);
+                } catch (AlreadyClosedException e) {
+                    // evicted in the meantime, gets the cache when opened again
+                }
+            }
+        }
+    }
+
+    @Override
+    public SearchResult search(double latitude, double longitude) throws IOException {
+        final long start = System.nanoTime();
+        final ReusableSearchResult result = new ReusableSearchResult();
+        search(latitude, longitude, result);
+        final SearchResult searchResult = result.isEmpty() ? SearchResult.empty(result.getHint()) :
+                new SearchResult(result.getCity(), result.getHint());
+        searchResult.setTook(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return searchResult;
+    }
+
+    @Override
+    public void search(double latitude, double longitude, ReusableSearchResult result) throws IOException {
+        final long start = System.nanoTime();
+        final ReusableSearchResult candidate = candidates.get();
+        boolean found = false;
+        for (Region region : regions) {
+            if (region.boundingBox.contains(latitude, longitude) == false) {
+                continue;
+            }
+            search(region, latitude, longitude, candidate);
+            if (candidate.getHint() == SearchResult.Hint.Shape && candidate.isEmpty() == false) {
+                result.copyFrom(candidate);
+                result.setTookNanos(System.nanoTime() - start);
+                return;
+            }
+            // keep the point that is actually closest, not the one of the smallest region
+            if (found == false || candidate.getDistanceMeters() < result.getDistanceMeters()) {
+                result.copyFrom(candidate);
+                found = true;
+            }
+        }
+        if (found == false) {
+            search(closestRegion(latitude, longitude), latitude, longitude, result);
+        }
+        result.setTookNanos(System.nanoTime() - start);
+    }
+
+    private void search(Region region, double latitude, double longitude, ReusableSearchResult result) throws IOException {
+        while (true) {
+            final RefreshingSearcher manager = region.open();
+            try {
+                manager.search(latitude, longitude, result);
+                return;
+            } catch (AlreadyClosedException e) {
+                // evicted between opening and searching, open it again
+            }
+        }
+    }
+
+    private Region closestRegion(double latitude, double longitude) {
+        Region closest = regions[0];
+        double closestDistance = Double.POSITIVE_INFINITY;
+        for (Region region : regions) {
+            final double distance = region.boundingBox.distance(latitude, longitude);
+            if (distance < closestDistance) {
+                closest = region;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Checks the open regions for a new index, see {@link RefreshingSearcher#maybeRefresh()}
+     */
+    public void maybeRefresh() throws IOException {
+        for (Region region : regions) {
+            final RefreshingSearcher manager = region.manager;
+            if (manager != null) {
+                try {
+                    manager.maybeRefresh();
+                } catch (AlreadyClosedException e) {
+                    // evicted in the meantime
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all regions that have not been searched within the idle timeout. Searches that are still running
+     * finish on the closed region, as the underlying searcher is only closed once they are done.
+     *
+     * @return the names of the closed regions
+     */
+    public List<String> evictIdle() throws IOException {
+        final List<String> evicted = new ArrayList<>();
+        final long now = System.nanoTime();
+        for (Region region : regions) {
+            if (region.manager != null && now - region.lastAccessNanos > idleTimeoutNanos && region.close()) {
+                evicted.add(region.name);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * The names of the regions that are currently open
+     */
+    public List<String> getOpenRegions() {
+        final List<String> open = new ArrayList<>();
+        for (Region region : regions) {
+            if (region.manager != null) {
+                open.add(region.name);
+            }
+        }
+        return open;
+    }
+
+    public int getRegionCount() {
+        return regions.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (Region region : regions) {
+            try {
+                region.close();
+            } catch (IOException e) {
+                exception = IOUtils.useOrSuppress(exception, e);
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "regions %s, open %s", regions.length, getOpenRegions());
+    }
+
+    private final class Region {
+
+        private final String name;
+        private final Path path;
+        private final BoundingBox boundingBox;
+        private volatile RefreshingSearcher manager;
+        private volatile long lastAccessNanos;
+
+        private Region(String name, Path path, BoundingBox boundingBox) {
+            this.name = name;
+            this.path = path;
+            this.boundingBox = boundingBox;
+        }
+
+        private RefreshingSearcher open() throws IOException {
+            lastAccessNanos = System.nanoTime();
+            RefreshingSearcher current = manager;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                if (manager == null) {
+                    final RefreshingSearcher opened = new RefreshingSearcher(path, directoryType, warmSearches);
+                    if (resultCacheSize > 0) {
+                        opened.enableResultCache(resultCacheLevel, resultCacheSize);
+                    }
+                    manager = opened;
+                }
+                return manager;
+            }
+        }
+
+        private synchronized boolean close() throws IOException {
+            final RefreshingSearcher current = manager;
+            if (current == null) {
+                return false;
+            }
+            manager = null;
+            current.close();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package de.spinscale.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size bounded LRU cache of search results, keyed by a morton cell of the searched coordinate.
+ * Only cells that are fully contained in a single shape hold a city, cells crossing a shape boundary
+ * are remembered as not cacheable, so that they do not need to be checked again.
+ *
+ * The cells are split across independent segments, each with its own lock and LRU order, so that concurrent
+ * searches do not contend on a single lock. The least recently used cell is evicted per segment, which is only
+ * an approximation of the least recently used cell of the whole cache. Small caches use a single segment.
+ */
+public final class ResultCache {
+
+    // city names never contain a null character, so this can be used as marker
+    static final String NOT_CACHEABLE = "\u0000";
+    // a power of two, so that a segment can be selected by masking the hash
+    private static final int MAX_SEGMENTS = 16;
+    // segments are only added, if each of them can hold at least this many cells
+    private static final int MIN_SEGMENT_ENTRIES = 256;
+
+    private final int level;
+    private final int maxEntries;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param level The morton level of a cell, between 1 and 31. Level 20 roughly equals 38m x 19m cells
+     * @param maxEntries The maximum number of cells held in memory
+     */
+    public ResultCache(int level, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive, but was " + maxEntries);
+        }
+        // validates the level
+        MortonCode.cell(0, level);
+        this.level = level;
+        this.maxEntries = maxEntries;
+        final int count = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, maxEntries / MIN_SEGMENT_ENTRIES)));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // the capacities add up to maxEntries
+            segments[i] = new Segment(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    long cell(double latitude, double longitude) {
+        return MortonCode.cell(latitude, longitude, level);
+    }
+
+    /**
+     * Returns the city of the cell, {@link #NOT_CACHEABLE} if the cell crosses a boundary or null if the cell is unknown
+     */
+    String get(long cell) {
+        final Segment segment = segment(cell);
+        final String city;
+        synchronized (segment) {
+            city = segment.get(cell);
+        }
+        if (city == null || city.equals(NOT_CACHEABLE)) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return city;
+    }
+
+    void put(long cell, String city) {
+        final Segment segment = segment(cell);
+        synchronized (segment) {
+            segment.put(cell, city);
+        }
+    }
+
+    private Segment segment(long cell) {
+        // neighbouring cells only differ in their lowest bits, so these are spread across the high bits first
+        final long hash = cell * 0x9E3779B97F4A7C15L;
+        return segments[(int) (hash >>> 32) & (segments.length - 1)];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "cache level [" + level + "], entries [" + size() + "/" + maxEntries + "], hits [" + getHits() + "], misses [" + getMisses() + "]";
+    }
+
+    /**
+     * An access ordered map evicting its least recently used cell, only accessed while holding its lock
+     */
+    private static final class Segment extends LinkedHashMap<Long, String> {
+
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package de.spinscale.query;
+
+/**
+ * A mutable search result, that is meant to be reused for many searches by the same thread, see
+ * {@link Searcher#search(double, double, ReusableSearchResult)}. The city is stored as an ordinal into the
+ * dictionary of the index that has been searched, so no object is created for a search.
+ */
+public final class ReusableSearchResult {
+
+    private CityDictionary dictionary;
+    private int cityOrdinal = -1;
+    private SearchResult.Hint hint;
+    private double distanceMeters = Double.POSITIVE_INFINITY;
+    private long tookNanos;
+
+    /**
+     * Sets a result without a known distance, 0 if a city has been found
+     */
+    void set(CityDictionary dictionary, int cityOrdinal, SearchResult.Hint hint) {
+        set(dictionary, cityOrdinal, hint, cityOrdinal < 0 ? Double.POSITIVE_INFINITY : 0);
+    }
+
+    void set(CityDictionary dictionary, int cityOrdinal, SearchResult.Hint hint, double distanceMeters) {
+        this.dictionary = dictionary;
+        this.cityOrdinal = cityOrdinal;
+        this.hint = hint;
+        this.distanceMeters = distanceMeters;
+    }
+
+    void copyFrom(ReusableSearchResult other) {
+        set(other.dictionary, other.cityOrdinal, other.hint, other.distanceMeters);
+        this.tookNanos = other.tookNanos;
+    }
+
+    void setTookNanos(long tookNanos) {
+        this.tookNanos = tookNanos;
+    }
+
+    /**
+     * The ordinal of the city in the searched index, -1 if nothing has been found. Ordinals of different indices
+     * or of a reloaded index are not comparable.
+     */
+    public int getCityOrdinal() {
+        return cityOrdinal;
+    }
+
+    /**
+     * Resolves the city from the dictionary of the searched index, null if nothing has been found
+     */
+    public String getCity() {
+        return cityOrdinal < 0 ? null : dictionary.city(cityOrdinal);
+    }
+
+    /**
+     * The city as UTF-8 encoded JSON string including the quotes, null if nothing has been found. The array is
+     * encoded once when the index is opened and shared by all searches, so it must not be modified.
+     */
+    public byte[] getCityJson() {
+        return cityOrdinal < 0 ? null : dictionary.json(cityOrdinal);
+    }
+
+    /**
+     * The distance to the nearest point for a {@link SearchResult.Hint#Point} result, 0 for a shape containing the
+     * coordinate and infinity if nothing has been found
+     */
+    public double getDistanceMeters() {
+        return distanceMeters;
+    }
+
+    public SearchResult.Hint getHint() {
+        return hint;
+    }
+
+    public long getTookNanos() {
+        return tookNanos;
+    }
+
+    public boolean isEmpty() {
+        return cityOrdinal < 0;
+    }
+}
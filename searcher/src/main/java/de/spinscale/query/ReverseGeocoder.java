@@ -0,0 +1,31 @@
+package de.spinscale.query;
+
+import java.io.IOException;
+
+/**
+ * Resolves coordinates to a city, implemented by a single index as well as by the managers on top of it
+ */
+public interface ReverseGeocoder {
+
+    SearchResult search(double latitude, double longitude) throws IOException;
+
+    /**
+     * Resolves a coordinate into a result that is reused by the caller, so that no result has to be created,
+     * see {@link Searcher#search(double, double, ReusableSearchResult)}
+     */
+    void search(double latitude, double longitude, ReusableSearchResult result) throws IOException;
+
+    /**
+     * Resolves many coordinates in one call, the returned results have the same order as the input
+     */
+    default SearchResult[] searchBatch(double[] latitudes, double[] longitudes) throws IOException {
+        if (latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException("got " + latitudes.length + " latitudes, but " + longitudes.length + " longitudes");
+        }
+        final SearchResult[] results = new SearchResult[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++) {
+            results[i] = search(latitudes[i], longitudes[i]);
+        }
+        return results;
+    }
+}
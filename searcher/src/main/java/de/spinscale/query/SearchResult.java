@@ -1,14 +1,12 @@
 package de.spinscale.query;
 
-import org.apache.lucene.util.SetOnce;
-
 public class SearchResult {
 
     public enum Hint { Point, Shape }
 
     public final String city;
     public final Hint hint;
-    private final SetOnce<Long> took = new SetOnce<>();
+    private long took = -1;
 
     SearchResult(String city, Hint hint) {
         this.city = city;
@@ -26,11 +24,14 @@ public class SearchResult {
     }
 
     public long getTook() {
-        return this.took.get();
+        return this.took;
     }
 
     public void setTook(long took) {
-        this.took.set(took);
+        if (this.took != -1) {
+            throw new IllegalStateException("took has already been set");
+        }
+        this.took = took;
     }
 
     public static final SearchResult empty(Hint hint) {
@@ -1,100 +1,470 @@
 package de.spinscale.query;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.document.LatLonShape;
 import org.apache.lucene.document.ShapeField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.LatLonPointPrototypeQueries;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.NIOFSDirectory;
-import org.apache.lucene.store.NoLockFactory;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.SloppyMath;
+import org.apache.lucene.util.StringHelper;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A wrapper class against lucene to search for a latitude/longitude
+ * A wrapper class against lucene to search for a latitude/longitude.
+ * A searcher is reference counted, the index is closed once the last reference has been released, see
+ * {@link RefreshingSearcher} for swapping searchers while they are in use.
  */
-public class Searcher implements Closeable  {
+public class Searcher implements ReverseGeocoder, Closeable  {
 
-    private static final String FIELD_NAME_SHAPE = "geoshape";
+    static final String FIELD_NAME_SHAPE = "geoshape";
+    static final String FIELD_NAME_LOCATION = "location";
+    // in degrees, roughly 10cm, way above the quantization of the index
+    private static final double CELL_TOLERANCE = 1e-6;
     private final IndexSearcher searcher;
     private final DirectoryReader reader;
+    private OpenStats openStats;
+    private volatile ResultCache resultCache;
+    private final CellCovering cellCovering;
+    private final CityDictionary cityDictionary;
+    private final NearestPointTree nearestPointTree;
+    // maps the city ordinals of the covering to the ones of the dictionary
+    private final int[] coveringOrdinals;
+    private final ThreadLocal<ShapePointVisitor> shapePointVisitor = ThreadLocal.withInitial(ShapePointVisitor::new);
+    private final String commitId;
+    // the initial reference is released by close()
+    private final AtomicInteger refCount = new AtomicInteger(1);
 
-    Searcher(DirectoryReader reader) {
+    Searcher(DirectoryReader reader) throws IOException {
         this.searcher = new IndexSearcher(reader);
         this.reader = reader;
+        this.commitId = readCommitId(reader.directory(), reader.getIndexCommit().getSegmentsFileName());
+        this.cellCovering = CellCovering.read(reader.directory());
+        this.cityDictionary = CityDictionary.load(reader);
+        this.nearestPointTree = NearestPointTree.build(reader, FIELD_NAME_LOCATION);
+        this.coveringOrdinals = cellCovering == null ? new int[0] : new int[cellCovering.cities().length];
+        for (int i = 0; i < coveringOrdinals.length; i++) {
+            // negative for cities missing in the index, those are resolved against the index instead
+            coveringOrdinals[i] = cityDictionary.ordinal(cellCovering.city(i));
+        }
+    }
+
+    /**
+     * The unique id of the commit this searcher has been opened on. A rebuilt index has a different id, even if
+     * it has the same generation
+     */
+    public String getCommitId() {
+        return commitId;
+    }
+
+    CityDictionary getCityDictionary() {
+        return cityDictionary;
+    }
+
+    /**
+     * Statistics about opening the index, null if the searcher has not been created by {@link #open(Path, DirectoryType)}
+     */
+    public OpenStats getOpenStats() {
+        return openStats;
+    }
+
+    /**
+     * Enables caching of search results in front of the index, see {@link ResultCache}
+     *
+     * @param level The morton level of a cached cell, see {@link ResultCache#ResultCache(int, int)}
+     * @param maxEntries The maximum number of cached cells
+     */
+    public void enableResultCache(int level, int maxEntries) {
+        this.resultCache = new ResultCache(level, maxEntries);
+    }
+
+    /**
+     * The result cache including its statistics, null if caching is disabled
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
     }
 
+    @Override
     public SearchResult search(double latitude, double longitude) throws IOException {
         long start = System.nanoTime();
-        SearchResult searchResult = search(SearchResult.Hint.Shape, latitude, longitude);
-        if (searchResult.isEmpty()) {
-            searchResult = search(SearchResult.Hint.Point, latitude, longitude);
+        final ResultCache cache = this.resultCache;
+        SearchResult searchResult;
+        if (cache == null) {
+            searchResult = searchIndex(latitude, longitude);
+        } else {
+            searchResult = searchCached(cache, latitude, longitude);
         }
         long end = System.nanoTime();
         searchResult.setTook(TimeUnit.NANOSECONDS.toMillis(end - start));
         return searchResult;
     }
 
-    private SearchResult search(SearchResult.Hint hint, double latitude, double longitude) throws IOException {
-        TopDocs docs;
-        if (hint == SearchResult.Hint.Shape) {
-            Query query = LatLonShape.newPointQuery(FIELD_NAME_SHAPE,  ShapeField.QueryRelation.INTERSECTS,
-                    new double[] { latitude, longitude });
-            docs = searcher.search(query, 1);
+    /**
+     * Resolves a coordinate into a result that is reused by the caller. Neither this method nor any of the in
+     * memory structures it uses create objects, with the exception of walking the BKD tree of the shapes for
+     * coordinates close to a shape boundary. An enabled result cache is still used, but creates objects.
+     *
+     * @param latitude The latitude of the coordinate
+     * @param longitude The longitude of the coordinate
+     * @param result The result to overwrite
+     */
+    @Override
+    public void search(double latitude, double longitude, ReusableSearchResult result) throws IOException {
+        final long start = System.nanoTime();
+        final ResultCache cache = this.resultCache;
+        if (cache == null) {
+            resolve(latitude, longitude, result);
         } else {
-            docs = LatLonPointPrototypeQueries.nearest(searcher, "location", latitude, longitude, 1);
+            resolveCached(cache, latitude, longitude, result);
         }
+        result.setTookNanos(System.nanoTime() - start);
+    }
+
+    private SearchResult searchIndex(double latitude, double longitude) throws IOException {
+        final ReusableSearchResult result = new ReusableSearchResult();
+        resolve(latitude, longitude, result);
+        return result.isEmpty() ? SearchResult.empty(result.getHint()) : new SearchResult(result.getCity(), result.getHint());
+    }
 
-        if (docs.totalHits.value == 0) {
-            return SearchResult.empty(hint);
+    /**
+     * Resolves a coordinate in a single pass. Covered cells are answered directly, otherwise the BKD tree of the shapes
+     * is walked until the first containing document is found and if there is none, the nearest point is taken from
+     * the in memory tree.
+     */
+    private void resolve(double latitude, double longitude, ReusableSearchResult result) throws IOException {
+        int ordinal = CellCovering.UNKNOWN;
+        // coordinates far away from any shape boundary do not need to query the shapes
+        if (cellCovering != null) {
+            ordinal = cellCovering.find(MortonCode.encode(latitude, longitude));
+            if (ordinal >= 0 && coveringOrdinals[ordinal] >= 0) {
+                result.set(cityDictionary, coveringOrdinals[ordinal], SearchResult.Hint.Shape);
+                return;
+            }
         }
 
-        ScoreDoc scoreDoc = docs.scoreDocs[0];
-        Document doc = searcher.doc(scoreDoc.doc);
-        String city = doc.getField("city").stringValue();
-        return new SearchResult(city, hint);
+        if (ordinal != CellCovering.OUTSIDE) {
+            final int shapeDocId = shapePointVisitor.get().find(reader.leaves(), FIELD_NAME_SHAPE, latitude, longitude);
+            if (shapeDocId != -1) {
+                result.set(cityDictionary, cityDictionary.ordinal(shapeDocId), SearchResult.Hint.Shape);
+                return;
+            }
+        }
+
+        final int point = nearestPointTree.nearest(latitude, longitude);
+        if (point == -1) {
+            result.set(cityDictionary, -1, SearchResult.Hint.Point);
+        } else {
+            final double meters = SloppyMath.haversinMeters(latitude, longitude, nearestPointTree.latitude(point), nearestPointTree.longitude(point));
+            result.set(cityDictionary, cityDictionary.ordinal(nearestPointTree.doc(point)), SearchResult.Hint.Point, meters);
+        }
+    }
+
+    private SearchResult searchCached(ResultCache cache, double latitude, double longitude) throws IOException {
+        final ReusableSearchResult result = new ReusableSearchResult();
+        resolveCached(cache, latitude, longitude, result);
+        return result.isEmpty() ? SearchResult.empty(result.getHint()) : new SearchResult(result.getCity(), result.getHint());
+    }
+
+    private void resolveCached(ResultCache cache, double latitude, double longitude, ReusableSearchResult result) throws IOException {
+        final long cell = cache.cell(latitude, longitude);
+        final String cachedCity = cache.get(cell);
+        if (cachedCity != null && cachedCity.equals(ResultCache.NOT_CACHEABLE) == false) {
+            result.set(cityDictionary, Math.max(-1, cityDictionary.ordinal(cachedCity)), SearchResult.Hint.Shape);
+            return;
+        }
+
+        resolve(latitude, longitude, result);
+        // first time this cell is seen, figure out if it can be cached at all
+        if (cachedCity == null) {
+            boolean cacheable = result.getHint() == SearchResult.Hint.Shape && result.isEmpty() == false
+                    && isCellWithinSingleShape(cell, cache.getLevel(), result.getCity());
+            cache.put(cell, cacheable ? result.getCity() : ResultCache.NOT_CACHEABLE);
+        }
+    }
+
+    /**
+     * A cell can only be cached, if it is fully contained in the shape of the city and does not touch any other shape,
+     * otherwise a cached answer could differ from the answer of the index for some coordinates within the cell.
+     * The cell is slightly enlarged to be on the safe side regarding the quantization of the index.
+     */
+    private boolean isCellWithinSingleShape(long cell, int level, String city) throws IOException {
+        final double minLatitude = Math.max(-90, MortonCode.cellMinLatitude(cell, level) - CELL_TOLERANCE);
+        final double maxLatitude = Math.min(90, MortonCode.cellMaxLatitude(cell, level) + CELL_TOLERANCE);
+        final double minLongitude = Math.max(-180, MortonCode.cellMinLongitude(cell, level) - CELL_TOLERANCE);
+        final double maxLongitude = Math.min(180, MortonCode.cellMaxLongitude(cell, level) + CELL_TOLERANCE);
+
+        Query intersects = LatLonShape.newBoxQuery(FIELD_NAME_SHAPE, ShapeField.QueryRelation.INTERSECTS,
+                minLatitude, maxLatitude, minLongitude, maxLongitude);
+        if (searcher.count(intersects) != 1) {
+            return false;
+        }
+
+        Query contains = LatLonShape.newBoxQuery(FIELD_NAME_SHAPE, ShapeField.QueryRelation.CONTAINS,
+                minLatitude, maxLatitude, minLongitude, maxLongitude);
+        TopDocs docs = searcher.search(contains, 1);
+        return docs.totalHits.value == 1 && city.equals(loadCity(docs.scoreDocs[0].doc));
     }
 
+    /**
+     * Resolves many coordinates in one call. The coordinates are visited along a morton curve, so that
+     * subsequent lookups hit the same index blocks, and duplicate coordinates are only resolved once.
+     * The returned results have the same order as the input, duplicates share the same result instance
+     */
+    @Override
+    public SearchResult[] searchBatch(double[] latitudes, double[] longitudes) throws IOException {
+        if (latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException("got " + latitudes.length + " latitudes, but " + longitudes.length + " longitudes");
+        }
+
+        final int size = latitudes.length;
+        final int[] order = new int[size];
+        final long[] codes = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            codes[i] = MortonCode.encode(latitudes[i], longitudes[i]);
+        }
+
+        new IntroSorter() {
+            private int pivot;
+
+            @Override
+            protected void setPivot(int i) {
+                pivot = order[i];
+            }
+
+            @Override
+            protected int comparePivot(int j) {
+                return compareCoordinates(pivot, order[j]);
+            }
+
+            @Override
+            protected int compare(int i, int j) {
+                return compareCoordinates(order[i], order[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                final int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+
+            // ties on the code are broken by the coordinates, so that duplicates are always next to each other
+            private int compareCoordinates(int a, int b) {
+                int cmp = Long.compare(codes[a], codes[b]);
+                if (cmp == 0) {
+                    cmp = Double.compare(latitudes[a], latitudes[b]);
+                }
+                if (cmp == 0) {
+                    cmp = Double.compare(longitudes[a], longitudes[b]);
+                }
+                return cmp;
+            }
+        }.sort(0, size);
+
+        final SearchResult[] results = new SearchResult[size];
+        SearchResult previous = null;
+        for (int i = 0; i < size; i++) {
+            final int index = order[i];
+            if (previous != null && latitudes[index] == latitudes[order[i - 1]] && longitudes[index] == longitudes[order[i - 1]]) {
+                results[index] = previous;
+            } else {
+                previous = search(latitudes[index], longitudes[index]);
+                results[index] = previous;
+            }
+        }
+        return results;
+    }
+
+    private String loadCity(int docId) {
+        final int ordinal = cityDictionary.ordinal(docId);
+        return ordinal < 0 ? null : cityDictionary.city(ordinal);
+    }
+
+    /**
+     * Runs searches on a sample of the indexed point locations, so that the parts of the index that are used
+     * most are loaded before the searcher receives any traffic
+     *
+     * @param maxSearches The maximum number of searches to run
+     * @return the number of searches that have been run
+     */
+    public int warm(int maxSearches) throws IOException {
+        final int points = nearestPointTree.size();
+        final int searches = Math.min(points, maxSearches);
+        final ReusableSearchResult result = new ReusableSearchResult();
+        for (int i = 0; i < searches; i++) {
+            final int index = (int) ((long) i * points / searches);
+            resolve(nearestPointTree.latitude(index), nearestPointTree.longitude(index), result);
+        }
+        return searches;
+    }
+
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    /**
+     * Increments the reference count, fails if the searcher has been closed already
+     */
+    public void incRef() {
+        if (tryIncRef() == false) {
+            throw new AlreadyClosedException("searcher for commit [" + commitId + "] is already closed");
+        }
+    }
+
+    /**
+     * Increments the reference count, unless the searcher has been closed already
+     *
+     * @return true if the reference count has been incremented
+     */
+    public boolean tryIncRef() {
+        int count;
+        while ((count = refCount.get()) > 0) {
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decrements the reference count, closes the index when no references are left
+     */
+    public void decRef() {
+        final int count = refCount.decrementAndGet();
+        if (count == 0) {
+            IOUtils.closeWhileHandlingException(reader.directory(), reader);
+        } else if (count < 0) {
+            throw new IllegalStateException("too many decRef calls, searcher for commit [" + commitId + "] is already closed");
+        }
+    }
+
+    /**
+     * Releases the initial reference, the index is closed once all acquired references have been released as well
+     */
     @Override
     public void close() {
-        IOUtils.closeWhileHandlingException(reader.directory(), reader);
+        decRef();
+    }
+
+    /**
+     * Reads the unique id of a commit, see {@link #getCommitId()}
+     *
+     * @param directory The directory containing the index
+     * @param segmentsFileName The segments file of the commit, null for the latest commit
+     */
+    static String readCommitId(Directory directory, String segmentsFileName) throws IOException {
+        final SegmentInfos segmentInfos = segmentsFileName == null ? SegmentInfos.readLatestCommit(directory)
+                : SegmentInfos.readCommit(directory, segmentsFileName);
+        return StringHelper.idToString(segmentInfos.getId());
     }
 
     private static final ConcurrentHashMap<Path, Searcher> searchers = new ConcurrentHashMap<>();
 
     /**
-     * Get a searcher. The searcher may have been precreated already
+     * Get a searcher using NIO to read the index. The searcher may have been precreated already
      *
      * @param path The path to the directory
      */
     public static Searcher getSearcher(Path path) throws IOException {
+        return getSearcher(path, DirectoryType.NIO);
+    }
+
+    /**
+     * Get a searcher. The searcher may have been precreated already, in that case the directory type it has
+     * been opened with initially is kept
+     *
+     * @param path The path to the directory
+     * @param directoryType How to access the index files
+     */
+    public static Searcher getSearcher(Path path, DirectoryType directoryType) throws IOException {
         if (searchers.containsKey(path) == false) {
-            Directory directory = new NIOFSDirectory(path, NoLockFactory.INSTANCE);
-            DirectoryReader reader = DirectoryReader.open(directory);
-            Searcher searcher = new Searcher(reader);
+            Searcher searcher = open(path, directoryType);
             Searcher putIfAbsentSearcher = searchers.putIfAbsent(path, searcher);
             // if these two differ, close the reader/directories to not leak
             // and use searcher that has been added in the meantime instead
             if (putIfAbsentSearcher != null && searcher.equals(putIfAbsentSearcher) == false) {
-                IOUtils.closeWhileHandlingException(reader, directory);
+                searcher.close();
             }
         }
 
         return searchers.get(path);
     }
 
+    /**
+     * Opens a new searcher, that is not cached
+     *
+     * @param path The path to the directory
+     * @param directoryType How to access the index files
+     */
+    public static Searcher open(Path path, DirectoryType directoryType) throws IOException {
+        long start = System.nanoTime();
+        Directory directory = directoryType.open(path);
+        try {
+            long indexSizeInBytes = 0;
+            for (String file : directory.listAll()) {
+                indexSizeInBytes += directory.fileLength(file);
+            }
+            DirectoryReader reader = DirectoryReader.open(directory);
+            Searcher searcher;
+            try {
+                searcher = new Searcher(reader);
+            } catch (IOException e) {
+                IOUtils.closeWhileHandlingException(reader);
+                throw e;
+            }
+            long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // only the nio directory reads on demand, the others map or copy the whole index
+            long mappedOrCopiedBytes = directoryType == DirectoryType.NIO ? 0 : indexSizeInBytes;
+            searcher.openStats = new OpenStats(directoryType, indexSizeInBytes, mappedOrCopiedBytes, tookMillis);
+            return searcher;
+        } catch (IOException e) {
+            IOUtils.closeWhileHandlingException(directory);
+            throw e;
+        }
+    }
+
     public static void closeAll() {
         searchers.values().forEach(Searcher::close);
     }
 
+    /**
+     * How an index has been opened, and how many bytes the directory type maps or copies into memory to do so.
+     * These bytes follow from the directory type and the index size, they are not measured. How much of a mapped
+     * index is actually read from disk is up to the page cache.
+     */
+    public static final class OpenStats {
+
+        public final DirectoryType directoryType;
+        public final long indexSizeInBytes;
+        /** the whole index for mmap and heap, 0 for nio, which only reads on demand */
+        public final long mappedOrCopiedBytes;
+        public final long tookMillis;
+
+        OpenStats(DirectoryType directoryType, long indexSizeInBytes, long mappedOrCopiedBytes, long tookMillis) {
+            this.directoryType = directoryType;
+            this.indexSizeInBytes = indexSizeInBytes;
+            this.mappedOrCopiedBytes = mappedOrCopiedBytes;
+            this.tookMillis = tookMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "directory type [%s], index size [%s bytes], mapped or copied [%s bytes], took [%sms]",
+                    directoryType.name().toLowerCase(Locale.ROOT), indexSizeInBytes, mappedOrCopiedBytes, tookMillis);
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package de.spinscale.query;
+
+import org.apache.lucene.document.ShapeField;
+import org.apache.lucene.geo.GeoEncodingUtils;
+import org.apache.lucene.geo.GeoUtils;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.NumericUtils;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Walks the BKD tree of a {@link org.apache.lucene.document.LatLonShape} field directly and stops at the first live
+ * document that has a triangle containing the point, skipping query, weight and scorer creation as well as
+ * collecting all matching documents. Matches the semantics of an intersecting point query, with the exception that
+ * a point exactly on the shared boundary of two shapes returns either of them.
+ * Holds scratch state, so an instance must only be used by one thread at a time.
+ */
+final class ShapePointVisitor implements PointValues.IntersectVisitor {
+
+    // offsets of the bounding box dimensions of an encoded triangle
+    private static final int MIN_Y_OFFSET = 0;
+    private static final int MIN_X_OFFSET = Integer.BYTES;
+    private static final int MAX_Y_OFFSET = 2 * Integer.BYTES;
+    private static final int MAX_X_OFFSET = 3 * Integer.BYTES;
+
+    private final ShapeField.DecodedTriangle triangle = new ShapeField.DecodedTriangle();
+    private int x;
+    private int y;
+    private Bits liveDocs;
+    private int found;
+
+    /**
+     * Returns the top level document id of the first live document containing the point or -1
+     */
+    int find(List<LeafReaderContext> leaves, String field, double latitude, double longitude) throws IOException {
+        // quantized the same way as a lucene point query does
+        this.y = latitude == GeoUtils.MAX_LAT_INCL ? GeoEncodingUtils.encodeLatitude(latitude) : GeoEncodingUtils.encodeLatitudeCeil(latitude);
+        this.x = longitude == GeoUtils.MAX_LON_INCL ? GeoEncodingUtils.encodeLongitude(longitude) : GeoEncodingUtils.encodeLongitudeCeil(longitude);
+
+        for (LeafReaderContext context : leaves) {
+            final PointValues values = context.reader().getPointValues(field);
+            if (values == null) {
+                continue;
+            }
+            this.found = -1;
+            this.liveDocs = context.reader().getLiveDocs();
+            values.intersect(this);
+            if (found != -1) {
+                this.liveDocs = null;
+                return context.docBase + found;
+            }
+        }
+        this.liveDocs = null;
+        return -1;
+    }
+
+    @Override
+    public PointValues.Relation compare(byte[] minPackedValue, byte[] maxPackedValue) {
+        // prune everything once a document has been found
+        if (found != -1) {
+            return PointValues.Relation.CELL_OUTSIDE_QUERY;
+        }
+        if (NumericUtils.sortableBytesToInt(minPackedValue, MIN_Y_OFFSET) > y
+                || NumericUtils.sortableBytesToInt(minPackedValue, MIN_X_OFFSET) > x
+                || NumericUtils.sortableBytesToInt(maxPackedValue, MAX_Y_OFFSET) < y
+                || NumericUtils.sortableBytesToInt(maxPackedValue, MAX_X_OFFSET) < x) {
+            return PointValues.Relation.CELL_OUTSIDE_QUERY;
+        }
+        // never return inside, every triangle needs to be checked
+        return PointValues.Relation.CELL_CROSSES_QUERY;
+    }
+
+    @Override
+    public void visit(int docID) {
+        throw new IllegalStateException("cells are never fully inside, expected to visit triangles");
+    }
+
+    @Override
+    public void visit(int docID, byte[] packedValue) {
+        if (found != -1 || (liveDocs != null && liveDocs.get(docID) == false)) {
+            return;
+        }
+        if (NumericUtils.sortableBytesToInt(packedValue, MIN_Y_OFFSET) > y
+                || NumericUtils.sortableBytesToInt(packedValue, MIN_X_OFFSET) > x
+                || NumericUtils.sortableBytesToInt(packedValue, MAX_Y_OFFSET) < y
+                || NumericUtils.sortableBytesToInt(packedValue, MAX_X_OFFSET) < x) {
+            return;
+        }
+        ShapeField.decodeTriangle(packedValue, triangle);
+        if (containsPoint(triangle, x, y)) {
+            found = docID;
+        }
+    }
+
+    /**
+     * Point in triangle including its edges, the bounding box check above filters points on the extension of
+     * degenerated triangles like lines
+     */
+    static boolean containsPoint(ShapeField.DecodedTriangle triangle, int x, int y) {
+        final int a = orient(x, y, triangle.aX, triangle.aY, triangle.bX, triangle.bY);
+        final int b = orient(x, y, triangle.bX, triangle.bY, triangle.cX, triangle.cY);
+        if (a == 0 || b == 0 || a < 0 == b < 0) {
+            final int c = orient(x, y, triangle.cX, triangle.cY, triangle.aX, triangle.aY);
+            return c == 0 || (c < 0 == (b < 0 || a < 0));
+        }
+        return false;
+    }
+
+    // exact orientation of three encoded points, products of int differences need up to 65 bits, so compare as 128 bits
+    private static int orient(long ax, long ay, long bx, long by, long cx, long cy) {
+        final long dx1 = bx - ax;
+        final long dy1 = cy - ay;
+        final long dx2 = cx - ax;
+        final long dy2 = by - ay;
+        final int cmp = Long.compare(Math.multiplyHigh(dx1, dy1), Math.multiplyHigh(dx2, dy2));
+        return cmp != 0 ? cmp : Long.compareUnsigned(dx1 * dy1, dx2 * dy2);
+    }
+}
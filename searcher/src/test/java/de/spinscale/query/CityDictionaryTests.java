@@ -0,0 +1,22 @@
+package de.spinscale.query;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CityDictionaryTests {
+
+    @Test
+    public void testCitiesAreEncodedAsJson() {
+        final CityDictionary dictionary = CityDictionary.of(new String[] { "Frankfurt \"am\" Main", "München", "a\\b\n\u0001" });
+        assertThat(json(dictionary, 0)).isEqualTo("\"Frankfurt \\\"am\\\" Main\"");
+        assertThat(dictionary.json(1)).isEqualTo("\"München\"".getBytes(StandardCharsets.UTF_8));
+        assertThat(json(dictionary, 2)).isEqualTo("\"a\\\\b\\n\\u0001\"");
+    }
+
+    private static String json(CityDictionary dictionary, int ordinal) {
+        return new String(dictionary.json(ordinal), StandardCharsets.UTF_8);
+    }
+}
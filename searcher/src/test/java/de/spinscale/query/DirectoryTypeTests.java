@@ -0,0 +1,49 @@
+package de.spinscale.query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DirectoryTypeTests {
+
+    @TempDir
+    Path path;
+
+    @Test
+    public void testHeapOnlyCopiesIndexFiles() throws Exception {
+        try (Directory directory = FSDirectory.open(path);
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            final Document document = new Document();
+            document.add(new StringField("city", "Köln", Field.Store.YES));
+            writer.addDocument(document);
+            writer.commit();
+            writeFile(directory, CellCovering.FILE_NAME);
+            writeFile(directory, RasterSearcher.FILE_NAME);
+        }
+
+        try (Directory directory = DirectoryType.HEAP.open(path); DirectoryReader reader = DirectoryReader.open(directory)) {
+            assertThat(reader.numDocs()).isEqualTo(1);
+            assertThat(directory.listAll()).contains(CellCovering.FILE_NAME, reader.getIndexCommit().getSegmentsFileName())
+                    .doesNotContain(RasterSearcher.FILE_NAME, IndexWriter.WRITE_LOCK_NAME);
+        }
+    }
+
+    private static void writeFile(Directory directory, String name) throws Exception {
+        try (IndexOutput output = directory.createOutput(name, IOContext.DEFAULT)) {
+            output.writeInt(42);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package de.spinscale.query;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HilbertCodeTests {
+
+    @Test
+    public void testEveryCellHasItsOwnCode() {
+        final int bits = 5;
+        final int size = 1 << bits;
+        final Set<Long> codes = new HashSet<>();
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                final long code = HilbertCode.encode(x, y, bits);
+                assertThat(code).isBetween(0L, (long) size * size - 1);
+                codes.add(code);
+            }
+        }
+        assertThat(codes).hasSize(size * size);
+    }
+
+    @Test
+    public void testConsecutiveCodesAreNeighbours() {
+        final int bits = 5;
+        final int size = 1 << bits;
+        final int[][] cells = new int[size * size][];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                cells[(int) HilbertCode.encode(x, y, bits)] = new int[] { x, y };
+            }
+        }
+        for (int i = 1; i < cells.length; i++) {
+            final int distance = Math.abs(cells[i][0] - cells[i - 1][0]) + Math.abs(cells[i][1] - cells[i - 1][1]);
+            assertThat(distance).as("code %s", i).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testCloseCoordinatesHaveCloseCodes() {
+        // Berlin and Potsdam are close to each other, Munich is far away
+        final long berlin = HilbertCode.encode(52.52, 13.40);
+        final long potsdam = HilbertCode.encode(52.40, 13.06);
+        final long munich = HilbertCode.encode(48.14, 11.58);
+        assertThat(berlin).isPositive();
+        assertThat(Math.abs(berlin - potsdam)).isLessThan(Math.abs(berlin - munich));
+    }
+}
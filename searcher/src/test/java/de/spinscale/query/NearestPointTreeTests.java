@@ -0,0 +1,68 @@
+package de.spinscale.query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LatLonPoint;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LatLonPointPrototypeQueries;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NearestPointTreeTests {
+
+    @Test
+    public void testSameResultsAsPrototypeQuery() throws Exception {
+        final Random random = new Random(42);
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                // roughly the bounding box of germany, with a few segments
+                for (int i = 0; i < 5000; i++) {
+                    Document document = new Document();
+                    document.add(new LatLonPoint("location", 47 + random.nextDouble() * 8, 5.5 + random.nextDouble() * 10));
+                    writer.addDocument(document);
+                    if (i % 1000 == 0) {
+                        writer.commit();
+                    }
+                }
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final NearestPointTree tree = NearestPointTree.build(reader, "location");
+                assertThat(tree.size()).isEqualTo(5000);
+
+                for (int i = 0; i < 1000; i++) {
+                    // also query outside of the bounding box
+                    final double latitude = 45 + random.nextDouble() * 12;
+                    final double longitude = 3 + random.nextDouble() * 15;
+                    final TopDocs expected = LatLonPointPrototypeQueries.nearest(searcher, "location", latitude, longitude, 1);
+                    assertThat(tree.nearestDoc(latitude, longitude))
+                            .withFailMessage("wrong nearest point for %s/%s", latitude, longitude)
+                            .isEqualTo(expected.scoreDocs[0].doc);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMissingField() throws Exception {
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                writer.addDocument(new Document());
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                final NearestPointTree tree = NearestPointTree.build(reader, "location");
+                assertThat(tree.size()).isEqualTo(0);
+                assertThat(tree.nearestDoc(48.1374, 11.5755)).isEqualTo(-1);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package de.spinscale.query;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.SloppyMath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+public class RasterSearcherTests {
+
+    @TempDir
+    Path rasterPath;
+
+    @Test
+    public void testRasterAnswersWithCellCentre() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Searcher searcher = new Searcher(DirectoryReader.open(new NIOFSDirectory(indexPath)))) {
+            // the area around munich, including city boundaries and points outside of shapes
+            BoundingBox boundingBox = new BoundingBox(47.9, 48.4, 11.3, 11.9);
+            try (Directory directory = FSDirectory.open(rasterPath)) {
+                RasterSearcher.write(directory, searcher, boundingBox, 200);
+            }
+
+            try (RasterSearcher raster = RasterSearcher.open(rasterPath)) {
+                assertThat(raster.getResolutionMeters()).isEqualTo(200.0);
+                assertThat(raster.getMaxErrorMeters()).isCloseTo(141.4, offset(0.1));
+                assertThat(raster.search(48.1374, 11.5755).city).isEqualTo("München");
+
+                Random random = new Random(42);
+                ReusableSearchResult result = new ReusableSearchResult();
+                for (int i = 0; i < 2000; i++) {
+                    double latitude = 47.9 + random.nextDouble() * 0.5;
+                    double longitude = 11.3 + random.nextDouble() * 0.6;
+                    double centreLatitude = raster.cellCenterLatitude(latitude);
+                    double centreLongitude = raster.cellCenterLongitude(longitude);
+                    assertThat(SloppyMath.haversinMeters(latitude, longitude, centreLatitude, centreLongitude))
+                            .isLessThanOrEqualTo(raster.getMaxErrorMeters());
+
+                    SearchResult expected = searcher.search(centreLatitude, centreLongitude);
+                    raster.search(latitude, longitude, result);
+                    assertThat(result.getCity())
+                            .withFailMessage("wrong city for %s/%s", latitude, longitude)
+                            .isEqualTo(expected.city);
+                    assertThat(result.getHint()).isEqualTo(expected.hint);
+                }
+
+                // outside of the grid, the closest cell on the border
+                SearchResult outside = raster.search(48.1374, 20);
+                assertThat(outside.city).isEqualTo(searcher.search(raster.cellCenterLatitude(48.1374), raster.cellCenterLongitude(20)).city);
+            }
+        }
+    }
+}
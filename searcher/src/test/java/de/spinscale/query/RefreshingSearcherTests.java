@@ -0,0 +1,68 @@
+package de.spinscale.query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonPoint;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RefreshingSearcherTests {
+
+    @TempDir
+    Path indexPath;
+
+    @Test
+    public void testSwapsRebuiltIndex() throws Exception {
+        writeIndex("Berlin");
+
+        try (RefreshingSearcher manager = new RefreshingSearcher(indexPath, DirectoryType.NIO, 10)) {
+            assertThat(manager.search(48.1374, 11.5755).city).isEqualTo("Berlin");
+
+            // nothing has changed
+            final Searcher initial = manager.acquire();
+            manager.maybeRefresh();
+            final Searcher unchanged = manager.acquire();
+            assertThat(unchanged).isSameAs(initial);
+            manager.release(unchanged);
+
+            // a rebuilt index, while a search still holds the previous searcher
+            writeIndex("München");
+            manager.maybeRefresh();
+            assertThat(manager.search(48.1374, 11.5755).city).isEqualTo("München");
+
+            final Searcher swapped = manager.acquire();
+            assertThat(swapped.getCommitId()).isNotEqualTo(initial.getCommitId());
+            manager.release(swapped);
+
+            assertThat(initial.search(48.1374, 11.5755).city).isEqualTo("Berlin");
+            assertThat(initial.getRefCount()).isEqualTo(1);
+            manager.release(initial);
+            assertThat(initial.getRefCount()).isEqualTo(0);
+            assertThatThrownBy(initial::incRef).isInstanceOf(AlreadyClosedException.class);
+        }
+    }
+
+    private void writeIndex(String city) throws Exception {
+        final IndexWriterConfig config = new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (Directory directory = FSDirectory.open(indexPath); IndexWriter writer = new IndexWriter(directory, config)) {
+            final Document document = new Document();
+            document.add(new StringField("city", city, Field.Store.YES));
+            document.add(new SortedDocValuesField("city", new BytesRef(city)));
+            document.add(new LatLonPoint("location", 48.1, 11.5));
+            writer.addDocument(document);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package de.spinscale.query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonPoint;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RegionalSearcherTests {
+
+    @TempDir
+    Path path;
+
+    @Test
+    public void testRoutesToRegions() throws Exception {
+        // a big region with a small one inside of it, the small one without a stored bounding box
+        writeRegion("big", "Outer", 40, 50, 0, 10, true);
+        writeRegion("small", "Inner", 44, 46, 4, 6, false);
+
+        try (RegionalSearcher searcher = new RegionalSearcher(path, DirectoryType.NIO, 0, 1, TimeUnit.HOURS)) {
+            assertThat(searcher.getRegionCount()).isEqualTo(2);
+            assertThat(searcher.getOpenRegions()).isEmpty();
+
+            // only the big region contains the coordinate
+            assertThat(searcher.search(41, 1).city).isEqualTo("Outer");
+            assertThat(searcher.getOpenRegions()).containsExactly("big");
+
+            // both contain the coordinate, the shape of the small region wins
+            assertThat(searcher.search(45, 5).city).isEqualTo("Inner");
+            assertThat(searcher.getOpenRegions()).containsExactlyInAnyOrder("big", "small");
+
+            // outside of all regions, closest bounding box and its nearest point
+            final SearchResult result = searcher.search(60, 5);
+            assertThat(result.city).isEqualTo("Outer");
+            assertThat(result.hint).isEqualTo(SearchResult.Hint.Point);
+
+            // nothing is idle yet
+            assertThat(searcher.evictIdle()).isEmpty();
+        }
+    }
+
+    @Test
+    public void testReturnsClosestPointOfAllContainingRegions() throws Exception {
+        // neither shape contains the coordinate, the point of the bigger region is closer
+        writeRegion("a", "A", new BoundingBox(40, 41, 0, 1), 41, 1, new BoundingBox(40, 50, 0, 10));
+        writeRegion("b", "B", new BoundingBox(51, 52, 11, 12), 49.5, 9.5, new BoundingBox(40, 52, 0, 12));
+
+        try (RegionalSearcher searcher = new RegionalSearcher(path, DirectoryType.NIO, 0, 1, TimeUnit.HOURS)) {
+            final SearchResult result = searcher.search(49, 9);
+            assertThat(result.city).isEqualTo("B");
+            assertThat(result.hint).isEqualTo(SearchResult.Hint.Point);
+
+            final ReusableSearchResult reusableResult = new ReusableSearchResult();
+            searcher.search(49, 9, reusableResult);
+            assertThat(reusableResult.getCity()).isEqualTo("B");
+            assertThat(reusableResult.getDistanceMeters()).isLessThan(100_000);
+
+            // closer to the point of the smaller region
+            searcher.search(41.5, 1.5, reusableResult);
+            assertThat(reusableResult.getCity()).isEqualTo("A");
+            assertThat(reusableResult.getHint()).isEqualTo(SearchResult.Hint.Point);
+        }
+    }
+
+    @Test
+    public void testEvictsIdleRegions() throws Exception {
+        writeRegion("big", "Outer", 40, 50, 0, 10, true);
+
+        try (RegionalSearcher searcher = new RegionalSearcher(path, DirectoryType.NIO, 0, 0, TimeUnit.MILLISECONDS)) {
+            assertThat(searcher.search(41, 1).city).isEqualTo("Outer");
+            assertThat(searcher.getOpenRegions()).containsExactly("big");
+
+            Thread.sleep(5);
+            assertThat(searcher.evictIdle()).containsExactly("big");
+            assertThat(searcher.getOpenRegions()).isEmpty();
+
+            // opened again on the next search
+            assertThat(searcher.search(41, 1).city).isEqualTo("Outer");
+            assertThat(searcher.getOpenRegions()).containsExactly("big");
+        }
+    }
+
+    private void writeRegion(String name, String city, double minLat, double maxLat, double minLon, double maxLon,
+                             boolean storeBoundingBox) throws Exception {
+        final BoundingBox boundingBox = new BoundingBox(minLat, maxLat, minLon, maxLon);
+        writeRegion(name, city, boundingBox, (minLat + maxLat) / 2, (minLon + maxLon) / 2, storeBoundingBox ? boundingBox : null);
+    }
+
+    private void writeRegion(String name, String city, BoundingBox shape, double pointLat, double pointLon,
+                             BoundingBox storedBoundingBox) throws Exception {
+        final IndexWriterConfig config = new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (Directory directory = FSDirectory.open(path.resolve(name)); IndexWriter writer = new IndexWriter(directory, config)) {
+            final Document document = new Document();
+            document.add(new StringField("city", city, Field.Store.YES));
+            document.add(new SortedDocValuesField("city", new BytesRef(city)));
+            final Polygon polygon = new Polygon(new double[] { shape.minLatitude, shape.minLatitude, shape.maxLatitude, shape.maxLatitude, shape.minLatitude },
+                    new double[] { shape.minLongitude, shape.maxLongitude, shape.maxLongitude, shape.minLongitude, shape.minLongitude });
+            for (Field field : LatLonShape.createIndexableFields(Searcher.FIELD_NAME_SHAPE, polygon)) {
+                document.add(field);
+            }
+            document.add(new LatLonPoint(Searcher.FIELD_NAME_LOCATION, pointLat, pointLon));
+            writer.addDocument(document);
+            if (storedBoundingBox != null) {
+                writer.setLiveCommitData(Collections.singletonMap(BoundingBox.USER_DATA_KEY, storedBoundingBox.toString()).entrySet());
+            }
+        }
+    }
+}
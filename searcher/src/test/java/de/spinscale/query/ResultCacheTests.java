@@ -0,0 +1,103 @@
+package de.spinscale.query;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ResultCacheTests {
+
+    @Test
+    public void testCellsAreEvicted() {
+        ResultCache cache = new ResultCache(20, 2);
+        cache.put(1, "München");
+        cache.put(2, "Berlin");
+        // access the first cell, so the second one is the least recently used one
+        assertThat(cache.get(1)).isEqualTo("München");
+        cache.put(3, "Hamburg");
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(2)).isNull();
+        assertThat(cache.get(3)).isEqualTo("Hamburg");
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        ResultCache cache = new ResultCache(20, 10);
+        cache.put(1, "München");
+        cache.put(2, ResultCache.NOT_CACHEABLE);
+
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+
+        assertThat(cache.getHits()).isEqualTo(2);
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final int maxEntries = 4096;
+        final int threads = 8;
+        final int operations = 50_000;
+        final ResultCache cache = new ResultCache(20, maxEntries);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> running = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int j = 0; j < operations; j++) {
+                        // more cells than fit, so that cells are evicted while being read
+                        final long cell = random.nextLong(maxEntries * 4);
+                        final String city = cache.get(cell);
+                        if (city == null) {
+                            cache.put(cell, "city-" + cell);
+                        } else {
+                            assertThat(city).isEqualTo("city-" + cell);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            thread.start();
+            running.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : running) {
+            thread.join();
+        }
+
+        assertThat(failure.get()).isNull();
+        assertThat(cache.getHits() + cache.getMisses()).isEqualTo((long) threads * operations);
+        assertThat(cache.getHits()).isPositive();
+        assertThat(cache.size()).isLessThanOrEqualTo(maxEntries).isGreaterThan(maxEntries / 2);
+    }
+
+    @Test
+    public void testCellsNestAcrossLevels() {
+        long cell = MortonCode.cell(48.1374, 11.5755, 20);
+        assertThat(MortonCode.cell(48.1374, 11.5755, 19)).isEqualTo(cell >>> 2);
+
+        assertThat(MortonCode.cellMinLatitude(cell, 20)).isLessThanOrEqualTo(48.1374);
+        assertThat(MortonCode.cellMaxLatitude(cell, 20)).isGreaterThan(48.1374);
+        assertThat(MortonCode.cellMinLongitude(cell, 20)).isLessThanOrEqualTo(11.5755);
+        assertThat(MortonCode.cellMaxLongitude(cell, 20)).isGreaterThan(11.5755);
+    }
+
+    @Test
+    public void testInvalidLevel() {
+        assertThatThrownBy(() -> new ResultCache(0, 10)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new ResultCache(32, 10)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -1,15 +1,23 @@
 package de.spinscale.query;
 
+import com.sun.management.ThreadMXBean;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.document.ShapeField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import static de.spinscale.query.SearchResult.Hint.Point;
 import static de.spinscale.query.SearchResult.Hint.Shape;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class SearcherTests {
 
@@ -37,6 +45,162 @@ public class SearcherTests {
         }
     }
 
+    @Test
+    public void testSearchBatch() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Searcher searcher = new Searcher(DirectoryReader.open(new NIOFSDirectory(indexPath)))) {
+            double[] latitudes = new double[] { 48.1374, 53.7200, 48.1028, 48.1374, 51.4699, 53.6846, 48.1028 };
+            double[] longitudes = new double[] { 11.5755, 7.3287, 11.4230, 11.5755, 7.1022, 7.0945, 11.4230 };
+
+            SearchResult[] results = searcher.searchBatch(latitudes, longitudes);
+            assertThat(results).hasSize(latitudes.length);
+            for (int i = 0; i < latitudes.length; i++) {
+                SearchResult expected = searcher.search(latitudes[i], longitudes[i]);
+                assertThat(results[i].city).isEqualTo(expected.city);
+                assertThat(results[i].hint).isEqualTo(expected.hint);
+            }
+
+            // duplicate coordinates are only resolved once
+            assertThat(results[3]).isSameAs(results[0]);
+            assertThat(results[6]).isSameAs(results[2]);
+        }
+    }
+
+    @Test
+    public void testDirectoryTypes() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        for (DirectoryType directoryType : DirectoryType.values()) {
+            try (Searcher searcher = Searcher.open(indexPath, directoryType)) {
+                assertLatitudeLongitude(48.1374, 11.5755, "München", Shape, searcher);
+                assertLatitudeLongitude(48.1028, 11.4230, "Planegg", Point, searcher);
+
+                Searcher.OpenStats stats = searcher.getOpenStats();
+                assertThat(stats.directoryType).isEqualTo(directoryType);
+                assertThat(stats.indexSizeInBytes).isGreaterThan(0L);
+                if (directoryType == DirectoryType.NIO) {
+                    assertThat(stats.mappedOrCopiedBytes).isEqualTo(0L);
+                } else {
+                    assertThat(stats.mappedOrCopiedBytes).isEqualTo(stats.indexSizeInBytes);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Searcher searcher = new Searcher(DirectoryReader.open(new NIOFSDirectory(indexPath)))) {
+            searcher.enableResultCache(20, 100);
+            for (int i = 0; i < 3; i++) {
+                assertLatitudeLongitude(48.1374, 11.5755, "München", Shape, searcher);
+                assertLatitudeLongitude(48.1028, 11.4230, "Planegg", Point, searcher);
+            }
+
+            // only munich city centre is cached, points are never cached
+            ResultCache cache = searcher.getResultCache();
+            assertThat(cache.getHits()).isEqualTo(2);
+            assertThat(cache.getMisses()).isEqualTo(4);
+            assertThat(cache.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testCellCoveringMatchesShapes() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Directory directory = new NIOFSDirectory(indexPath); DirectoryReader reader = DirectoryReader.open(directory)) {
+            CellCovering covering = CellCovering.read(directory);
+            assertThat(covering).isNotNull();
+            IndexSearcher searcher = new IndexSearcher(reader);
+
+            // grid around munich, containing interior, boundary and outside cells
+            int interior = 0;
+            int outside = 0;
+            for (double latitude = 47.9; latitude < 48.4; latitude += 0.01) {
+                for (double longitude = 11.3; longitude < 11.9; longitude += 0.01) {
+                    int ordinal = covering.find(MortonCode.encode(latitude, longitude));
+                    if (ordinal == CellCovering.UNKNOWN) {
+                        continue;
+                    }
+
+                    TopDocs docs = searcher.search(LatLonShape.newPointQuery("geoshape", ShapeField.QueryRelation.INTERSECTS,
+                            new double[] { latitude, longitude }), 1);
+                    if (ordinal == CellCovering.OUTSIDE) {
+                        assertThat(docs.totalHits.value).isEqualTo(0L);
+                        outside++;
+                    } else {
+                        assertThat(docs.totalHits.value).isEqualTo(1L);
+                        String city = searcher.doc(docs.scoreDocs[0].doc).getField("city").stringValue();
+                        assertThat(city).isEqualTo(covering.city(ordinal));
+                        interior++;
+                    }
+                }
+            }
+            assertThat(interior).isGreaterThan(0);
+            assertThat(outside).isGreaterThan(0);
+        }
+    }
+
+    @Test
+    public void testReusableSearch() throws Exception {
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Searcher searcher = new Searcher(DirectoryReader.open(new NIOFSDirectory(indexPath)))) {
+            double[] latitudes = new double[] { 48.1374, 48.2162, 48.2697, 48.1028, 51.7447, 53.7200, 55.5, 0 };
+            double[] longitudes = new double[] { 11.5755, 11.5580, 11.5712, 11.4230, 14.6243, 7.3287, 5.0, 0 };
+
+            ReusableSearchResult result = new ReusableSearchResult();
+            for (int i = 0; i < latitudes.length; i++) {
+                SearchResult expected = searcher.search(latitudes[i], longitudes[i]);
+                searcher.search(latitudes[i], longitudes[i], result);
+                assertThat(result.getCity()).isEqualTo(expected.city);
+                assertThat(result.getHint()).isEqualTo(expected.hint);
+                assertThat(result.getCityOrdinal()).isGreaterThanOrEqualTo(0);
+                assertThat(result.getTookNanos()).isGreaterThan(0L);
+            }
+        }
+    }
+
+    @Test
+    public void testReusableSearchDoesNotAllocate() throws Exception {
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled());
+        Path indexPath = Paths.get(System.getProperty("user.dir"), "..", "indexer", "build", "indices");
+
+        try (Searcher searcher = new Searcher(DirectoryReader.open(new NIOFSDirectory(indexPath)))) {
+            // walking the BKD tree allocates within lucene, so these are resolved by the covering or the point tree:
+            // munich city centre, the north sea and a point far outside of germany
+            double[] latitudes = new double[] { 48.1374, 55.5, 0 };
+            double[] longitudes = new double[] { 11.5755, 5.0, 0 };
+            ReusableSearchResult result = new ReusableSearchResult();
+
+            // reach a steady state, so that thread locals exist and the code is compiled
+            for (int i = 0; i < 20_000; i++) {
+                searcher.search(latitudes[i % 3], longitudes[i % 3], result);
+            }
+
+            // reading the allocated bytes allocates itself, so measure that first
+            long overhead = 0;
+            for (int i = 0; i < 10; i++) {
+                long before = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long after = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                overhead = Math.max(overhead, after - before);
+            }
+
+            long before = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < 10_000; i++) {
+                searcher.search(latitudes[i % 3], longitudes[i % 3], result);
+            }
+            long after = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+            assertThat(after - before - overhead).isLessThanOrEqualTo(0L);
+            assertThat(result.getCity()).isEqualTo("München");
+        }
+    }
+
     private void assertLatitudeLongitude(double latitude, double longitude, String expectedCity, SearchResult.Hint expectedHint,
                                          Searcher searcher) throws Exception {
         SearchResult searchResult = searcher.search(latitude, longitude);
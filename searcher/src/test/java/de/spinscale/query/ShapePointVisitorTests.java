@@ -0,0 +1,73 @@
+package de.spinscale.query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.document.ShapeField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShapePointVisitorTests {
+
+    @Test
+    public void testSameResultsAsPointQuery() throws Exception {
+        final Random random = new Random(42);
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                // non overlapping boxes on a grid, every third one is left out
+                for (int i = 0; i < 20; i++) {
+                    for (int j = 0; j < 20; j++) {
+                        final Document document = new Document();
+                        document.add(new StringField("id", j == 5 ? "deleted" : "live", Field.Store.NO));
+                        if ((i + j) % 3 != 0) {
+                            final double minLat = 47 + i * 0.4;
+                            final double minLon = 6 + j * 0.4;
+                            final Polygon polygon = new Polygon(
+                                    new double[] { minLat, minLat, minLat + 0.3, minLat + 0.3, minLat },
+                                    new double[] { minLon, minLon + 0.3, minLon + 0.3, minLon, minLon });
+                            for (Field field : LatLonShape.createIndexableFields("geoshape", polygon)) {
+                                document.add(field);
+                            }
+                        }
+                        writer.addDocument(document);
+                    }
+                    if (i % 5 == 0) {
+                        writer.commit();
+                    }
+                }
+                // documents of deleted shapes must not be found
+                writer.deleteDocuments(new Term("id", "deleted"));
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final ShapePointVisitor visitor = new ShapePointVisitor();
+                for (int i = 0; i < 2000; i++) {
+                    final double latitude = 46.5 + random.nextDouble() * 9;
+                    final double longitude = 5.5 + random.nextDouble() * 9;
+                    final Query query = LatLonShape.newPointQuery("geoshape", ShapeField.QueryRelation.INTERSECTS, new double[] { latitude, longitude });
+                    final TopDocs topDocs = searcher.search(query, 1);
+                    final int expected = topDocs.scoreDocs.length == 0 ? -1 : topDocs.scoreDocs[0].doc;
+                    assertThat(visitor.find(reader.leaves(), "geoshape", latitude, longitude))
+                            .withFailMessage("wrong shape for %s/%s", latitude, longitude)
+                            .isEqualTo(expected);
+                }
+                assertThat(visitor.find(reader.leaves(), "missing", 48, 7)).isEqualTo(-1);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package de.spinscale.webserver;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import de.spinscale.query.ReusableSearchResult;
+import de.spinscale.query.ReverseGeocoder;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static de.spinscale.webserver.TokenAccessManager.UserRole;
+
+/**
+ * Searches newline delimited coordinates, one JSON object like the body of a single search per line, and streams
+ * back one result per line in the same order.
+ *
+ * Neither the request nor the response is held in memory, a line is read, searched and written before the next one
+ * is read. Reading and writing block, so a client sending faster than it reads the results is slowed down by the
+ * full socket buffers instead of filling up the heap. Results are flushed whenever no further input is available yet,
+ * so a client waiting for results before sending more coordinates does not wait for the buffer to fill up.
+ */
+public class BulkSearchHandler implements Handler {
+
+    /** the number of coordinates searched by a bulk request, logged for billing */
+    public static final String ITEMS_ATTRIBUTE_NAME = "search-items";
+    // a coordinate is less than a hundred bytes, longer lines are rejected instead of being buffered
+    static final int MAX_LINE_LENGTH = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int END_OF_STREAM = -1;
+
+    private final ReverseGeocoder geocoder;
+    // one result and scanner per jetty thread, so a search does not create them
+    private final ThreadLocal<ReusableSearchResult> results = ThreadLocal.withInitial(ReusableSearchResult::new);
+    private final ThreadLocal<CoordinateScanner> scanners = ThreadLocal.withInitial(CoordinateScanner::new);
+
+    public BulkSearchHandler(final ReverseGeocoder geocoder) {
+        this.geocoder = geocoder;
+    }
+
+    @Override
+    public void handle(@NotNull final Context ctx) throws Exception {
+        final UserRole role = ctx.attribute("auth-type");
+        if (UserRole.SEARCH_ALLOWED == role) {
+            ctx.contentType("application/x-ndjson");
+            final InputStream in = new BufferedInputStream(ctx.req.getInputStream(), BUFFER_SIZE);
+            final OutputStream out = new BufferedOutputStream(ctx.res.getOutputStream(), BUFFER_SIZE);
+            final byte[] line = new byte[MAX_LINE_LENGTH];
+            final ReusableSearchResult result = results.get();
+            final CoordinateScanner scanner = scanners.get();
+            long items = 0;
+            try {
+                int length;
+                while ((length = readLine(in, line)) != END_OF_STREAM) {
+                    if (length == 0) {
+                        continue;
+                    }
+                    items++;
+                    search(line, length, items, scanner, result, out);
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } finally {
+                // also counts the coordinates searched before a client went away
+                ctx.attribute(ITEMS_ATTRIBUTE_NAME, items);
+            }
+        } else if (UserRole.SEARCH_REJECTED == role) {
+            ctx.status(401).contentType("application/json").result("{ \"error\" : \"request rejected.\" }");
+        } else {
+            ctx.status(403);
+        }
+    }
+
+    private void search(final byte[] line, final int length, final long lineNumber, final CoordinateScanner scanner,
+                        final ReusableSearchResult result, final OutputStream out) throws IOException {
+        if (length > MAX_LINE_LENGTH) {
+            writeLine(out, error(String.format("Line %s is longer than %s bytes", lineNumber, MAX_LINE_LENGTH)));
+            return;
+        }
+        double latitude;
+        double longitude;
+        if (scanner.scan(line, length)) {
+            latitude = scanner.latitude();
+            longitude = scanner.longitude();
+        } else {
+            try {
+                // anything but a flat object, parsed as JSON to find out whether the line is valid at all
+                JsonValue body = Json.parse(new String(line, 0, length, StandardCharsets.UTF_8));
+                latitude = body.asObject().get("latitude").asDouble();
+                longitude = body.asObject().get("longitude").asDouble();
+            } catch (Exception e) {
+                writeLine(out, error(String.format("Error parsing line %s, need 'latitude' and 'longitude' JSON fields", lineNumber)));
+                return;
+            }
+        }
+        try {
+            geocoder.search(latitude, longitude, result);
+        } catch (Exception e) {
+            writeLine(out, error(String.format("Could not search location for lat %s/%s", latitude, longitude)));
+            return;
+        }
+        if (result.isEmpty()) {
+            writeLine(out, error(String.format("Could not find location for lat %s/%s", latitude, longitude)));
+        } else {
+            // the city has been encoded when the index was opened
+            out.write(SearchHandler.LOCATION_PREFIX);
+            out.write(result.getCityJson());
+            out.write(SearchHandler.LOCATION_SUFFIX);
+            out.write('\n');
+        }
+    }
+
+    private static void writeLine(final OutputStream out, final String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    private static String error(final String message) {
+        final JsonObject errorJson = Json.object().add("error", message);
+        return errorJson.toString();
+    }
+
+    /**
+     * Reads a line without its line break into the buffer
+     *
+     * @return the length of the line, longer than the buffer if the line did not fit into it, or -1 at the end
+     */
+    static int readLine(final InputStream in, final byte[] buffer) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length < buffer.length) {
+                buffer[length] = (byte) b;
+            }
+            length++;
+        }
+        if (b == -1 && length == 0) {
+            return END_OF_STREAM;
+        }
+        if (length > 0 && length <= buffer.length && buffer[length - 1] == '\r') {
+            length--;
+        }
+        return length;
+    }
+}
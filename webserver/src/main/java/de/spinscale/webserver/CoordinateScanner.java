@@ -0,0 +1,263 @@
+package de.spinscale.webserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the latitude and longitude of a search straight from the bytes of a request, without decoding them to a
+ * string or building a JSON tree. Only a flat JSON object is scanned, anything unexpected like nested values,
+ * escaped keys or a missing field makes the scan fail, so that the caller can parse the request as JSON and report
+ * the error the same way as before.
+ *
+ * Not thread safe, meant to be reused by a single thread.
+ */
+final class CoordinateScanner {
+
+    private static final byte[] LATITUDE = "latitude".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONGITUDE = "longitude".getBytes(StandardCharsets.US_ASCII);
+    // the powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    // a mantissa up to 2^53 is an exact double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private byte[] bytes;
+    private int length;
+    private int position;
+    private double latitude;
+    private double longitude;
+    // the value of the last scanned number
+    private double number;
+
+    /**
+     * @return true if the bytes are a flat JSON object with a numeric latitude and longitude field
+     */
+    boolean scan(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+        this.position = 0;
+        boolean foundLatitude = false;
+        boolean foundLongitude = false;
+
+        skipWhitespace();
+        if (next() != '{') {
+            return false;
+        }
+        skipWhitespace();
+        if (peek() == '}') {
+            return false;
+        }
+        while (true) {
+            skipWhitespace();
+            if (next() != '"') {
+                return false;
+            }
+            final int keyStart = position;
+            int b;
+            while ((b = next()) != '"') {
+                if (b == '\\' || b == -1) {
+                    return false;
+                }
+            }
+            final int keyEnd = position - 1;
+            skipWhitespace();
+            if (next() != ':') {
+                return false;
+            }
+            skipWhitespace();
+            if (equals(keyStart, keyEnd, LATITUDE)) {
+                if (scanNumber() == false) {
+                    return false;
+                }
+                latitude = number;
+                foundLatitude = true;
+            } else if (equals(keyStart, keyEnd, LONGITUDE)) {
+                if (scanNumber() == false) {
+                    return false;
+                }
+                longitude = number;
+                foundLongitude = true;
+            } else if (skipValue() == false) {
+                return false;
+            }
+            skipWhitespace();
+            b = next();
+            if (b == '}') {
+                break;
+            } else if (b != ',') {
+                return false;
+            }
+        }
+        skipWhitespace();
+        return position == length && foundLatitude && foundLongitude;
+    }
+
+    double latitude() {
+        return latitude;
+    }
+
+    double longitude() {
+        return longitude;
+    }
+
+    /**
+     * Scans a number as defined by JSON. Numbers with up to 18 significant digits and a small exponent are converted
+     * with a single exact multiplication or division, which rounds correctly, all others by Double.parseDouble
+     */
+    private boolean scanNumber() {
+        final int start = position;
+        final boolean negative = peek() == '-';
+        if (negative) {
+            position++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+
+        int b = peek();
+        if (b == '0') {
+            position++;
+            if (isDigit(peek())) {
+                return false;
+            }
+        } else if (b >= '1' && b <= '9') {
+            while (isDigit(b = peek())) {
+                position++;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                } else {
+                    exact = false;
+                }
+            }
+        } else {
+            return false;
+        }
+
+        if (peek() == '.') {
+            position++;
+            if (isDigit(peek()) == false) {
+                return false;
+            }
+            while (isDigit(b = peek())) {
+                position++;
+                if (digits == 0 && b == '0') {
+                    // leading zeros of a fraction are no significant digits
+                    exponent--;
+                } else if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    exponent--;
+                } else {
+                    exact = false;
+                }
+            }
+        }
+
+        b = peek();
+        if (b == 'e' || b == 'E') {
+            position++;
+            b = peek();
+            final boolean negativeExponent = b == '-';
+            if (b == '-' || b == '+') {
+                position++;
+            }
+            if (isDigit(peek()) == false) {
+                return false;
+            }
+            int explicitExponent = 0;
+            while (isDigit(b = peek())) {
+                position++;
+                if (explicitExponent < 10_000) {
+                    explicitExponent = explicitExponent * 10 + (b - '0');
+                }
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            final double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            number = negative ? -value : value;
+        } else {
+            number = Double.parseDouble(new String(bytes, start, position - start, StandardCharsets.US_ASCII));
+        }
+        return true;
+    }
+
+    /**
+     * Skips a string, number or literal, nested objects and arrays are left to the JSON parser
+     */
+    private boolean skipValue() {
+        final int b = peek();
+        if (b == '"') {
+            position++;
+            int c;
+            while ((c = next()) != '"') {
+                if (c == -1) {
+                    return false;
+                } else if (c == '\\') {
+                    position++;
+                }
+            }
+            return true;
+        } else if (b == '-' || isDigit(b)) {
+            return scanNumber();
+        } else {
+            return skipLiteral("true") || skipLiteral("false") || skipLiteral("null");
+        }
+    }
+
+    private boolean skipLiteral(String literal) {
+        if (position + literal.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (bytes[position + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        position += literal.length();
+        return true;
+    }
+
+    private boolean equals(int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (bytes[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (position < length) {
+            final byte b = bytes[position];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private int peek() {
+        return position < length ? bytes[position] & 0xFF : -1;
+    }
+
+    private int next() {
+        return position < length ? bytes[position++] & 0xFF : -1;
+    }
+
+    private static boolean isDigit(int b) {
+        return b >= '0' && b <= '9';
+    }
+}
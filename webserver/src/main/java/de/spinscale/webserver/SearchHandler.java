@@ -3,23 +3,36 @@ package de.spinscale.webserver;
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
-import de.spinscale.query.SearchResult;
-import de.spinscale.query.Searcher;
+import de.spinscale.query.ReusableSearchResult;
+import de.spinscale.query.ReverseGeocoder;
 import io.javalin.http.Context;
 import io.javalin.http.Handler;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import static de.spinscale.webserver.TokenAccessManager.UserRole;
 
 public class SearchHandler implements Handler {
 
-    private final Searcher searcher;
+    // the response is written from these fragments and the city, that has been encoded when the index was opened
+    static final byte[] LOCATION_PREFIX = "{ \"location\" : ".getBytes(StandardCharsets.UTF_8);
+    static final byte[] LOCATION_SUFFIX = " }".getBytes(StandardCharsets.UTF_8);
+    // a search is less than a hundred bytes, the buffer only grows for larger bodies
+    private static final int BODY_BUFFER_SIZE = 1024;
 
-    public SearchHandler(final Path indexDirectory) throws IOException {
-        searcher = Searcher.getSearcher(indexDirectory);
+    private final ReverseGeocoder geocoder;
+    // one result, scanner and body buffer per jetty thread, so a search does not create them
+    private final ThreadLocal<ReusableSearchResult> results = ThreadLocal.withInitial(ReusableSearchResult::new);
+    private final ThreadLocal<CoordinateScanner> scanners = ThreadLocal.withInitial(CoordinateScanner::new);
+    private final ThreadLocal<Body> bodies = ThreadLocal.withInitial(Body::new);
+
+    public SearchHandler(final ReverseGeocoder geocoder) {
+        this.geocoder = geocoder;
     }
 
     @Override
@@ -27,16 +40,28 @@ public class SearchHandler implements Handler {
         final UserRole role = ctx.attribute("auth-type");
         if (UserRole.SEARCH_ALLOWED == role) {
             try {
-                JsonValue body = Json.parse(ctx.body());
-                double latitude = body.asObject().get("latitude").asDouble();
-                double longitude = body.asObject().get("longitude").asDouble();
-                final SearchResult result = searcher.search(latitude, longitude);
+                final Body body = bodies.get();
+                body.read(ctx.req.getInputStream());
+                double latitude;
+                double longitude;
+                final CoordinateScanner scanner = scanners.get();
+                if (scanner.scan(body.bytes, body.length)) {
+                    latitude = scanner.latitude();
+                    longitude = scanner.longitude();
+                } else {
+                    // anything but a flat object, parsed as JSON to report errors the same way
+                    JsonValue json = Json.parse(new String(body.bytes, 0, body.length, StandardCharsets.UTF_8));
+                    latitude = json.asObject().get("latitude").asDouble();
+                    longitude = json.asObject().get("longitude").asDouble();
+                }
+                final ReusableSearchResult result = results.get();
+                geocoder.search(latitude, longitude, result);
                 if (result.isEmpty()) {
                     final JsonObject errorJson = Json.object().add("error",
                             String.format("Could not find location for lat %s/%s", latitude, longitude));
                     ctx.contentType("application/json").result(errorJson.toString());
                 } else {
-                    ctx.contentType("application/json").result("{ \"location\" : \"" + result.city + "\" }");
+                    ctx.contentType("application/json").result(new ByteArrayInputStream(locationResponse(result.getCityJson())));
                 }
             } catch (Exception e) {
                 final JsonObject errorJson = Json.object().add("error",
@@ -49,4 +74,36 @@ public class SearchHandler implements Handler {
             ctx.status(403);
         }
     }
+
+    private static byte[] locationResponse(final byte[] cityJson) {
+        final byte[] response = new byte[LOCATION_PREFIX.length + cityJson.length + LOCATION_SUFFIX.length];
+        System.arraycopy(LOCATION_PREFIX, 0, response, 0, LOCATION_PREFIX.length);
+        System.arraycopy(cityJson, 0, response, LOCATION_PREFIX.length, cityJson.length);
+        System.arraycopy(LOCATION_SUFFIX, 0, response, LOCATION_PREFIX.length + cityJson.length, LOCATION_SUFFIX.length);
+        return response;
+    }
+
+    /**
+     * The bytes of a request body, reused by the requests of a thread
+     */
+    private static final class Body {
+
+        private byte[] bytes = new byte[BODY_BUFFER_SIZE];
+        private int length;
+
+        void read(final InputStream in) throws IOException {
+            if (bytes.length > BODY_BUFFER_SIZE) {
+                // do not keep the buffer of a single large request
+                bytes = new byte[BODY_BUFFER_SIZE];
+            }
+            length = 0;
+            int read;
+            while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+                length += read;
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+            }
+        }
+    }
 }
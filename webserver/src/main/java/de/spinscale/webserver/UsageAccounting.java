@@ -0,0 +1,241 @@
+package de.spinscale.webserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static de.spinscale.webserver.TokenAccessManager.UserRole;
+
+/**
+ * Counts the requests, searched items, errors and execution time per token and role for billing, instead of
+ * logging every request on the request thread. Recording a request only adds to striped counters, a background
+ * thread logs what has been counted since the last flush, and closing flushes a last time. If a directory is
+ * configured, the lines are appended to a file per day in it instead of being logged.
+ *
+ * Tokens are not written in plain text, but as the start of their SHA-256 hash. Tokens without a known role are
+ * counted together, so that random tokens cannot grow the counters.
+ */
+final class UsageAccounting implements Closeable {
+
+    static final String UNKNOWN_TOKEN = "unknown";
+    private static final String NOT_AUTHENTICATED = "NOT_AUTHENTICATED";
+    private static final DateTimeFormatter FILE_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.ROOT).withZone(ZoneOffset.UTC);
+
+    private final Logger logger = LoggerFactory.getLogger(UsageAccounting.class);
+    private final Path directory;
+    private final Consumer<String> log;
+    private final Clock clock;
+    private final ScheduledExecutorService flushExecutor;
+    private final ConcurrentHashMap<String, TokenUsage> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory the directory to write a file per day to, null to log the usage instead
+     */
+    UsageAccounting(final Path directory, final int flushIntervalSeconds) throws IOException {
+        this(directory, flushIntervalSeconds, Clock.systemUTC(), null);
+    }
+
+    UsageAccounting(final Path directory, final int flushIntervalSeconds, final Clock clock, final Consumer<String> log) throws IOException {
+        this.directory = directory;
+        this.log = log == null ? logger::info : log;
+        this.clock = clock;
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "usage-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 0 only flushes when closing
+        if (flushIntervalSeconds > 0) {
+            flushExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    // nothing is lost, the next flush writes the counts again
+                    logger.error("Could not write usage to [{}]", directory, e);
+                }
+            }, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Counts a finished request
+     *
+     * @param token the authorization header, null if there was none
+     * @param role the role of the token, null if it has not been authenticated
+     * @param items the number of coordinates searched
+     */
+    void record(final String token, final UserRole role, final int status, final long items, final long executionTimeMs) {
+        final String key = token == null || role == null || role == UserRole.NONE ? UNKNOWN_TOKEN : token;
+        TokenUsage tokenUsage = tokens.get(key);
+        if (tokenUsage == null) {
+            tokenUsage = tokens.computeIfAbsent(key, TokenUsage::new);
+        }
+        final Usage usage = tokenUsage.usage(role);
+        usage.requests.increment();
+        usage.items.add(items);
+        if (status >= 400) {
+            usage.errors.increment();
+        }
+        usage.executionTimeMs.add(executionTimeMs);
+    }
+
+    /**
+     * Logs the usage since the last flush, or appends it to the file of the current day
+     */
+    synchronized void flush() throws IOException {
+        final Instant now = clock.instant();
+        final List<String> lines = new ArrayList<>();
+        final List<Runnable> flushed = new ArrayList<>();
+        for (Map.Entry<String, TokenUsage> entry : tokens.entrySet()) {
+            final TokenUsage tokenUsage = entry.getValue();
+            for (int i = 0; i < tokenUsage.usages.length; i++) {
+                final Usage usage = tokenUsage.usages[i];
+                // each sum is read once, requests finishing meanwhile are written by the next flush. A request may be
+                // counted partially, so any changed sum is written, not only a changed number of requests
+                final long requests = usage.requests.sum();
+                final long items = usage.items.sum();
+                final long errors = usage.errors.sum();
+                final long executionTimeMs = usage.executionTimeMs.sum();
+                if (usage.isFlushed(requests, items, errors, executionTimeMs)) {
+                    continue;
+                }
+                lines.add(String.format(Locale.ROOT, "timestamp[%s], token[%s], role[%s], requests[%s], items[%s], errors[%s], executionTimeMs[%s]",
+                        now, tokenUsage.id, roleName(i), requests - usage.flushedRequests, items - usage.flushedItems,
+                        errors - usage.flushedErrors, executionTimeMs - usage.flushedExecutionTimeMs));
+                flushed.add(() -> usage.flushed(requests, items, errors, executionTimeMs));
+            }
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        if (directory == null) {
+            lines.forEach(log);
+        } else {
+            append(directory.resolve("usage-" + FILE_DATE.format(now) + ".log"), lines);
+        }
+        // only counted as written once it has been logged or is on disk
+        flushed.forEach(Runnable::run);
+    }
+
+    private static void append(final Path file, final List<String> lines) throws IOException {
+        final StringBuilder content = new StringBuilder();
+        for (String line : lines) {
+            content.append(line).append(System.lineSeparator());
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Stops flushing in the background and flushes a last time
+     */
+    @Override
+    public void close() throws IOException {
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private static String roleName(final int index) {
+        return index < UserRole.values().length ? UserRole.values()[index].name() : NOT_AUTHENTICATED;
+    }
+
+    private static String id(final String token) {
+        if (UNKNOWN_TOKEN.equals(token)) {
+            return UNKNOWN_TOKEN;
+        }
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder id = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                id.append(String.format(Locale.ROOT, "%02x", hash[i]));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The usage of a single token, one per role and one for requests that have not been authenticated
+     */
+    private static final class TokenUsage {
+
+        private final String id;
+        private final Usage[] usages = new Usage[UserRole.values().length + 1];
+
+        TokenUsage(final String token) {
+            this.id = id(token);
+            for (int i = 0; i < usages.length; i++) {
+                usages[i] = new Usage();
+            }
+        }
+
+        Usage usage(final UserRole role) {
+            return usages[role == null ? usages.length - 1 : role.ordinal()];
+        }
+    }
+
+    private static final class Usage {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder executionTimeMs = new LongAdder();
+
+        // the sums that have been written, only accessed while flushing
+        private long flushedRequests;
+        private long flushedItems;
+        private long flushedErrors;
+        private long flushedExecutionTimeMs;
+
+        boolean isFlushed(final long requests, final long items, final long errors, final long executionTimeMs) {
+            return requests == flushedRequests && items == flushedItems && errors == flushedErrors
+                    && executionTimeMs == flushedExecutionTimeMs;
+        }
+
+        void flushed(final long requests, final long items, final long errors, final long executionTimeMs) {
+            this.flushedRequests = requests;
+            this.flushedItems = items;
+            this.flushedErrors = errors;
+            this.flushedExecutionTimeMs = executionTimeMs;
+        }
+    }
+}
@@ -1,17 +1,30 @@
 package de.spinscale.webserver;
 
 import de.spinscale.fst.AuthFST;
+import de.spinscale.query.DirectoryType;
+import de.spinscale.query.RasterSearcher;
+import de.spinscale.query.RegionalSearcher;
+import de.spinscale.query.ReverseGeocoder;
 import de.spinscale.query.Searcher;
+import de.spinscale.query.RefreshingSearcher;
 import io.javalin.Javalin;
 import io.javalin.core.compression.CompressionStrategy;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static de.spinscale.webserver.TokenAccessManager.UserRole.OPERATIONS;
 import static de.spinscale.webserver.TokenAccessManager.UserRole.SEARCH_ALLOWED;
@@ -32,24 +45,131 @@ public class Webserver {
         final Path authFstPath = Paths.get(System.getenv("AUTH_FILE"));
         final Path indexDirectory = Paths.get(System.getenv("INDEX_DIRECTORY"));
         final String portAsString = System.getenv("PORT");
+        // long running process, so memory mapping the index is the default
+        final DirectoryType directoryType = DirectoryType.fromString(System.getenv("DIRECTORY_TYPE"), DirectoryType.MMAP);
+        // result caching is disabled by default
+        final int resultCacheSize = intFromEnv("RESULT_CACHE_SIZE", 0);
+        final int resultCacheLevel = intFromEnv("RESULT_CACHE_LEVEL", 20);
+        // check for a new index every minute, 0 disables reloading
+        final int indexRefreshIntervalSeconds = intFromEnv("INDEX_REFRESH_INTERVAL", 60);
+        final int indexWarmSearches = intFromEnv("INDEX_WARM_SEARCHES", 10_000);
+        // regional indices that have not been searched for half an hour are closed
+        final int indexIdleTimeoutSeconds = intFromEnv("INDEX_IDLE_TIMEOUT", 1800);
+        // approximate searches from the raster written by the indexer
+        final boolean raster = "raster".equals(System.getenv("SEARCH_MODE"));
+        // the usage per token for billing is logged every minute, and on shutdown. The file system of a container
+        // is usually lost with it, so the usage is only written to a file per day if a directory is configured
+        final String usageDirectory = System.getenv("USAGE_DIRECTORY");
+        final Path usagePath = usageDirectory == null || usageDirectory.isEmpty() ? null : Paths.get(usageDirectory);
+        final int usageFlushIntervalSeconds = intFromEnv("USAGE_FLUSH_INTERVAL", 60);
 
-        final Webserver webserver = new Webserver(indexDirectory, authFstPath);
+        final Webserver webserver = new Webserver(indexDirectory, directoryType, resultCacheSize, resultCacheLevel,
+                indexRefreshIntervalSeconds, indexWarmSearches, indexIdleTimeoutSeconds, raster, authFstPath,
+                usagePath, usageFlushIntervalSeconds);
 
         webserver.start(Integer.parseInt(portAsString));
     }
 
-    private Webserver(final Path indexDirectory, final Path authFstPath) throws IOException {
+    private static int intFromEnv(final String name, final int defaultValue) {
+        final String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    private Webserver(final Path indexDirectory, final DirectoryType directoryType, final int resultCacheSize,
+                      final int resultCacheLevel, final int indexRefreshIntervalSeconds, final int indexWarmSearches,
+                      final int indexIdleTimeoutSeconds, final boolean raster, final Path authFstPath,
+                      final Path usagePath, final int usageFlushIntervalSeconds) throws IOException {
         final AuthFST authFST = AuthFST.readFrom(authFstPath);
+        final UsageAccounting usage = new UsageAccounting(usagePath, usageFlushIntervalSeconds);
+        logger.info("Writing usage to [{}] every [{}s]", usagePath == null ? "log" : usagePath, usageFlushIntervalSeconds);
+
+        final Closeable index;
+        final ReverseGeocoder geocoder;
+        final Runnable maintenance;
+        if (raster) {
+            final RasterSearcher rasterSearcher = RasterSearcher.open(indexDirectory);
+            logger.info("Opened approximate search [{}], {}", indexDirectory, rasterSearcher);
+            index = rasterSearcher;
+            geocoder = rasterSearcher;
+            maintenance = () -> {};
+        } else if (isIndex(indexDirectory)) {
+            final RefreshingSearcher refreshingSearcher = new RefreshingSearcher(indexDirectory, directoryType, indexWarmSearches);
+            if (resultCacheSize > 0) {
+                refreshingSearcher.enableResultCache(resultCacheLevel, resultCacheSize);
+            }
+            logSearcher("Opened index [" + indexDirectory + "]", refreshingSearcher);
+            refreshingSearcher.addListener(new RefreshingSearcher.RefreshListener() {
+                @Override
+                public void beforeRefresh() {
+                }
+
+                @Override
+                public void afterRefresh(boolean didRefresh) throws IOException {
+                    if (didRefresh) {
+                        logSearcher("Swapped in new index [" + indexDirectory + "]", refreshingSearcher);
+                    }
+                }
+            });
+            index = () -> {
+                logResultCache(refreshingSearcher);
+                refreshingSearcher.close();
+            };
+            geocoder = refreshingSearcher;
+            maintenance = () -> {
+                try {
+                    refreshingSearcher.maybeRefresh();
+                } catch (Exception e) {
+                    // keeps serving the current index, if the new one cannot be opened
+                    logger.error("Could not refresh index [{}]", indexDirectory, e);
+                }
+            };
+        } else {
+            // one index per region in the sub directories
+            final RegionalSearcher regionalSearcher = new RegionalSearcher(indexDirectory, directoryType, indexWarmSearches,
+                    indexIdleTimeoutSeconds, TimeUnit.SECONDS);
+            if (resultCacheSize > 0) {
+                regionalSearcher.enableResultCache(resultCacheLevel, resultCacheSize);
+            }
+            logger.info("Found regional indices in [{}], {}", indexDirectory, regionalSearcher);
+            index = regionalSearcher;
+            geocoder = regionalSearcher;
+            maintenance = () -> {
+                try {
+                    regionalSearcher.maybeRefresh();
+                    final List<String> evicted = regionalSearcher.evictIdle();
+                    if (evicted.isEmpty() == false) {
+                        logger.info("Closed idle regional indices {}, {}", evicted, regionalSearcher);
+                    }
+                } catch (Exception e) {
+                    logger.error("Could not refresh regional indices [{}]", indexDirectory, e);
+                }
+            };
+        }
+        final SearchHandler searchHandler = new SearchHandler(geocoder);
+        final BulkSearchHandler bulkSearchHandler = new BulkSearchHandler(geocoder);
+        final ScheduledExecutorService refreshExecutor;
+        if (indexRefreshIntervalSeconds > 0 && raster == false) {
+            refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "index-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refreshExecutor.scheduleWithFixedDelay(maintenance, indexRefreshIntervalSeconds, indexRefreshIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            // nothing to refresh, so no thread is started
+            refreshExecutor = null;
+        }
 
         this.app = Javalin
                 .create(config -> {
                     config.showJavalinBanner = false;
-                    // ensure every request and its token gets logged, so we can analyze this later on for billing
+                    // ensure every request and its token gets counted, so we can analyze this later on for billing
                     config.requestLogger((ctx, executionTimeMs) -> {
-                        TokenAccessManager.UserRole role = ctx.attribute("auth-type");
-                        final String roleAsString = role != null ? role.name() : "NOT_AUTHENTICATED";
-                        logger.info("path[{}], status[{}], role[{}], executionTimeMs[{}]",
-                                ctx.path(), ctx.res.getStatus(), roleAsString, executionTimeMs);
+                        final TokenAccessManager.UserRole role = ctx.attribute("auth-type");
+                        // a bulk request counts the number of searched coordinates
+                        final Long bulkItems = ctx.attribute(BulkSearchHandler.ITEMS_ATTRIBUTE_NAME);
+                        final long items = bulkItems != null ? bulkItems : role == SEARCH_ALLOWED && "/search".equals(ctx.path()) ? 1 : 0;
+                        usage.record(ctx.header("Authorization"), role, ctx.res.getStatus(), items, Math.round(executionTimeMs));
                     });
                     config.accessManager(new TokenAccessManager(authFST));
                     config.compressionStrategy(CompressionStrategy.NONE);
@@ -61,7 +181,8 @@ public class Webserver {
 
         app.get("/", ctx -> ctx.redirect("https://website.de"));
         app.get("/health", new HealthHandler(), roles(OPERATIONS));
-        app.post("/search", new SearchHandler(indexDirectory), roles(SEARCH_ALLOWED, SEARCH_REJECTED));
+        app.post("/search", searchHandler, roles(SEARCH_ALLOWED, SEARCH_REJECTED));
+        app.post("/search/_bulk", bulkSearchHandler, roles(SEARCH_ALLOWED, SEARCH_REJECTED));
 
         // most crude catch all exception logger
         app.exception(Exception.class, (exception, ctx) -> {
@@ -71,10 +192,52 @@ public class Webserver {
         // clean shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             app.stop();
-            Searcher.closeAll();
+            if (refreshExecutor != null) {
+                refreshExecutor.shutdownNow();
+            }
+            // after the server stopped, so that every request is counted
+            try {
+                usage.close();
+            } catch (IOException e) {
+                logger.error("Could not write usage to [{}]", usagePath, e);
+            }
+            try {
+                index.close();
+            } catch (IOException e) {
+                logger.error("Could not close index [{}]", indexDirectory, e);
+            }
         }));
     }
 
+    private static boolean isIndex(final Path indexDirectory) throws IOException {
+        try (Directory directory = FSDirectory.open(indexDirectory)) {
+            return DirectoryReader.indexExists(directory);
+        }
+    }
+
+    private void logResultCache(final RefreshingSearcher refreshingSearcher) throws IOException {
+        final Searcher searcher = refreshingSearcher.acquire();
+        try {
+            if (searcher.getResultCache() != null) {
+                logger.info("Result {}", searcher.getResultCache());
+            }
+        } finally {
+            refreshingSearcher.release(searcher);
+        }
+    }
+
+    private void logSearcher(final String message, final RefreshingSearcher refreshingSearcher) throws IOException {
+        final Searcher searcher = refreshingSearcher.acquire();
+        try {
+            logger.info("{}, commit [{}], {}", message, searcher.getCommitId(), searcher.getOpenStats());
+            if (searcher.getResultCache() != null) {
+                logger.info("Enabled result {}", searcher.getResultCache());
+            }
+        } finally {
+            refreshingSearcher.release(searcher);
+        }
+    }
+
     private void start(final int port) {
         app.start(port);
     }
@@ -0,0 +1,178 @@
+package de.spinscale.webserver;
+
+import de.spinscale.query.DirectoryType;
+import de.spinscale.query.RefreshingSearcher;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.plugin.json.JavalinJson;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BulkSearchHandlerTest {
+
+    private static RefreshingSearcher refreshingSearcher;
+    private Handler handler;
+    private final HttpServletRequest request = mock(HttpServletRequest.class);
+    private final HttpServletResponse response = mock(HttpServletResponse.class);
+    private final Context context = new Context(request, response, Collections.emptyMap());
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @BeforeAll
+    public static void openIndex() throws IOException {
+        refreshingSearcher = new RefreshingSearcher(Paths.get("../indexer/build/indices/"), DirectoryType.NIO, 0);
+    }
+
+    @AfterAll
+    public static void closeIndex() throws IOException {
+        refreshingSearcher.close();
+    }
+
+    @BeforeEach
+    public void setupSearchHandler() throws IOException {
+        handler = new BulkSearchHandler(refreshingSearcher);
+        when(response.getOutputStream()).thenReturn(new TestServletOutputStream(output));
+    }
+
+    @Test
+    public void testBulkSearch() throws Exception {
+        when(request.getAttribute(eq("auth-type"))).thenReturn(TokenAccessManager.UserRole.SEARCH_ALLOWED);
+        when(request.getInputStream()).thenReturn(new TestServletInputStream(
+                "{ \"latitude\" : 48.223790, \"longitude\": 11.571607 }\r\n" +
+                "\n" +
+                "{ \"latitude\" : 52.520008, \"longitude\": 13.404954 }"));
+        handler.handle(context);
+
+        verify(response).setContentType(eq("application/x-ndjson"));
+        final String[] lines = lines();
+        assertThat(lines).hasSize(2);
+        assertThat(JavalinJson.fromJson(lines[0], Map.class)).containsEntry("location", "München");
+        assertThat(JavalinJson.fromJson(lines[1], Map.class)).containsEntry("location", "Berlin");
+        verify(request).setAttribute(eq(BulkSearchHandler.ITEMS_ATTRIBUTE_NAME), eq(2L));
+    }
+
+    @Test
+    public void testInvalidLinesDoNotStopTheBulk() throws Exception {
+        when(request.getAttribute(eq("auth-type"))).thenReturn(TokenAccessManager.UserRole.SEARCH_ALLOWED);
+        final StringBuilder tooLong = new StringBuilder("{ \"latitude\" : 48.223790, \"longitude\": 11.571607");
+        while (tooLong.length() <= BulkSearchHandler.MAX_LINE_LENGTH) {
+            tooLong.append(' ');
+        }
+        tooLong.append('}');
+        when(request.getInputStream()).thenReturn(new TestServletInputStream(
+                "{ \"latitude\" : 48.223790,,, }\n" +
+                tooLong + "\n" +
+                "{ \"latitude\" : 48.223790, \"longitude\": 11.571607 }\n"));
+        handler.handle(context);
+
+        final String[] lines = lines();
+        assertThat(lines).hasSize(3);
+        assertThat(JavalinJson.fromJson(lines[0], Map.class))
+                .containsEntry("error", "Error parsing line 1, need 'latitude' and 'longitude' JSON fields");
+        assertThat(JavalinJson.fromJson(lines[1], Map.class))
+                .containsEntry("error", "Line 2 is longer than " + BulkSearchHandler.MAX_LINE_LENGTH + " bytes");
+        assertThat(JavalinJson.fromJson(lines[2], Map.class)).containsEntry("location", "München");
+        verify(request).setAttribute(eq(BulkSearchHandler.ITEMS_ATTRIBUTE_NAME), eq(3L));
+    }
+
+    @Test
+    public void testUnAuthorized() throws Exception {
+        when(request.getAttribute(eq("auth-type"))).thenReturn(TokenAccessManager.UserRole.NONE);
+        handler.handle(context);
+        verify(response).setStatus(eq(403));
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        when(request.getAttribute(eq("auth-type"))).thenReturn(TokenAccessManager.UserRole.SEARCH_REJECTED);
+        handler.handle(context);
+
+        verify(response).setStatus(eq(401));
+        final Map<String, Object> data = JavalinJson.fromJson(context.resultString(), Map.class);
+        assertThat(data).containsEntry("error", "request rejected.");
+        assertThat(output.size()).isEqualTo(0);
+    }
+
+    private String[] lines() {
+        final String body = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        assertThat(body).endsWith("\n");
+        return body.split("\n");
+    }
+
+    private static final class TestServletInputStream extends ServletInputStream {
+
+        private final ByteArrayInputStream byteArrayInputStream;
+
+        public TestServletInputStream(String input) {
+            byteArrayInputStream = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public boolean isFinished() {
+            return byteArrayInputStream.available() <= 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return byteArrayInputStream.available() >= 0;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+
+        @Override
+        public int read() throws IOException {
+            return byteArrayInputStream.read();
+        }
+
+        @Override
+        public int available() {
+            return byteArrayInputStream.available();
+        }
+    }
+
+    private static final class TestServletOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream out;
+
+        TestServletOutputStream(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            out.write(b);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.spinscale.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CoordinateScannerTest {
+
+    private final CoordinateScanner scanner = new CoordinateScanner();
+
+    @Test
+    public void testScanFlatObject() {
+        assertThat(scan("{ \"latitude\" : 48.223790, \"longitude\": 11.571607 }")).isTrue();
+        assertThat(scanner.latitude()).isEqualTo(48.223790);
+        assertThat(scanner.longitude()).isEqualTo(11.571607);
+
+        // other fields are skipped, whatever order
+        assertThat(scan("\n{\"id\":\"a \\\" b\",\"longitude\":-0.5e1,\"valid\":true,\"latitude\":-1E-3,\"n\":null}\r\n")).isTrue();
+        assertThat(scanner.latitude()).isEqualTo(-0.001);
+        assertThat(scanner.longitude()).isEqualTo(-5);
+    }
+
+    @Test
+    public void testNumbersAreParsedLikeJava() {
+        final Random random = new Random(0);
+        for (int i = 0; i < 10_000; i++) {
+            final double value = (random.nextDouble() - 0.5) * 360;
+            final String[] formatted = new String[] {
+                    Double.toString(value),
+                    String.format(Locale.ROOT, "%." + (1 + random.nextInt(17)) + "f", value),
+                    String.format(Locale.ROOT, "%.10e", value),
+                    // more significant digits than can be converted exactly
+                    String.format(Locale.ROOT, "%.25f", value)
+            };
+            for (String number : formatted) {
+                assertThat(scan("{\"latitude\":" + number + ",\"longitude\":1}")).as(number).isTrue();
+                assertThat(scanner.latitude()).as(number).isEqualTo(Double.parseDouble(number));
+            }
+        }
+    }
+
+    @Test
+    public void testAnythingElseIsLeftToTheParser() {
+        assertThat(scan("")).isFalse();
+        assertThat(scan("{}")).isFalse();
+        assertThat(scan("{ \"latitude\" : 48.223790 }")).isFalse();
+        assertThat(scan("{ \"latitude\" : 48.223790,,, }")).isFalse();
+        assertThat(scan("{ \"latitude\" : \"48.2\", \"longitude\": 11.571607 }")).isFalse();
+        assertThat(scan("{ \"latitude\" : 048.2, \"longitude\": 11.571607 }")).isFalse();
+        assertThat(scan("{ \"latitude\" : 48., \"longitude\": 11.571607 }")).isFalse();
+        assertThat(scan("{ \"latitude\" : 48.2, \"longitude\": 11.571607 } trailing")).isFalse();
+        assertThat(scan("{ \"nested\" : { \"latitude\" : 1 }, \"latitude\" : 48.2, \"longitude\": 11.571607 }")).isFalse();
+        assertThat(scan("{ \"lat\\u0069tude\" : 48.2, \"longitude\": 11.571607 }")).isFalse();
+    }
+
+    private boolean scan(String input) {
+        final byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        return scanner.scan(bytes, bytes.length);
+    }
+}
@@ -3,6 +3,10 @@ package de.spinscale.webserver;
 import io.javalin.http.Context;
 import io.javalin.http.Handler;
 import io.javalin.plugin.json.JavalinJson;
+import de.spinscale.query.DirectoryType;
+import de.spinscale.query.RefreshingSearcher;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -24,14 +28,25 @@ import static org.mockito.Mockito.when;
 
 public class SearchHandlerTest {
 
+    private static RefreshingSearcher refreshingSearcher;
     private Handler handler;
     private final HttpServletRequest request = mock(HttpServletRequest.class);
     private final HttpServletResponse response = mock(HttpServletResponse.class);
     private final Context context = new Context(request, response, Collections.emptyMap());
 
+    @BeforeAll
+    public static void openIndex() throws IOException {
+        refreshingSearcher = new RefreshingSearcher(Paths.get("../indexer/build/indices/"), DirectoryType.NIO, 0);
+    }
+
+    @AfterAll
+    public static void closeIndex() throws IOException {
+        refreshingSearcher.close();
+    }
+
     @BeforeEach
-    public void setupSearchHandler() throws IOException {
-        handler = new SearchHandler(Paths.get("../indexer/build/indices/"));
+    public void setupSearchHandler() {
+        handler = new SearchHandler(refreshingSearcher);
     }
 
     @Test
@@ -0,0 +1,156 @@
+package de.spinscale.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static de.spinscale.webserver.TokenAccessManager.UserRole.OPERATIONS;
+import static de.spinscale.webserver.TokenAccessManager.UserRole.SEARCH_ALLOWED;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UsageAccountingTest {
+
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2021-05-04T10:15:30Z"), ZoneOffset.UTC);
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testUsageIsAggregatedPerTokenAndRole() throws Exception {
+        try (UsageAccounting usage = new UsageAccounting(folder, 0, CLOCK, null)) {
+            usage.record("allowed-token", SEARCH_ALLOWED, 200, 1, 3);
+            usage.record("allowed-token", SEARCH_ALLOWED, 200, 1000, 40);
+            usage.record("allowed-token", SEARCH_ALLOWED, 500, 0, 2);
+            usage.record("operations-token", OPERATIONS, 200, 0, 1);
+            usage.flush();
+
+            final List<String> lines = lines();
+            assertThat(lines).hasSize(2);
+            assertThat(lines).anySatisfy(line -> assertThat(line).contains("role[SEARCH_ALLOWED], requests[3], items[1001], errors[1], executionTimeMs[45]"));
+            assertThat(lines).anySatisfy(line -> assertThat(line).contains("role[OPERATIONS], requests[1], items[0], errors[0], executionTimeMs[1]"));
+            assertThat(lines).allSatisfy(line -> assertThat(line).startsWith("timestamp[2021-05-04T10:15:30Z]").doesNotContain("-token"));
+        }
+    }
+
+    @Test
+    public void testOnlyNewUsageIsAppended() throws Exception {
+        try (UsageAccounting usage = new UsageAccounting(folder, 0, CLOCK, null)) {
+            usage.record("allowed-token", SEARCH_ALLOWED, 200, 1, 3);
+            usage.flush();
+            // nothing happened in between
+            usage.flush();
+            assertThat(lines()).hasSize(1);
+
+            usage.record("allowed-token", SEARCH_ALLOWED, 200, 5, 7);
+            usage.flush();
+            assertThat(lines()).hasSize(2);
+            assertThat(lines().get(1)).contains("requests[1], items[5], errors[0], executionTimeMs[7]");
+        }
+    }
+
+    @Test
+    public void testCloseFlushes() throws Exception {
+        final UsageAccounting usage = new UsageAccounting(folder, 60, CLOCK, null);
+        usage.record("allowed-token", SEARCH_ALLOWED, 200, 1, 3);
+        usage.close();
+        assertThat(lines()).hasSize(1);
+    }
+
+    @Test
+    public void testUsageIsLoggedWithoutDirectory() throws Exception {
+        final List<String> logged = new ArrayList<>();
+        try (UsageAccounting usage = new UsageAccounting(null, 0, CLOCK, logged::add)) {
+            usage.record("allowed-token", SEARCH_ALLOWED, 200, 1, 3);
+            usage.flush();
+            usage.flush();
+            // nothing happened in between the flushes
+            assertThat(logged).hasSize(1);
+            assertThat(logged.get(0)).startsWith("timestamp[2021-05-04T10:15:30Z]").doesNotContain("-token")
+                    .contains("role[SEARCH_ALLOWED], requests[1], items[1], errors[0], executionTimeMs[3]");
+        }
+        assertThat(folder).isEmptyDirectory();
+    }
+
+    @Test
+    public void testUnknownTokensAreCountedTogether() throws Exception {
+        try (UsageAccounting usage = new UsageAccounting(folder, 0, CLOCK, null)) {
+            for (int i = 0; i < 100; i++) {
+                usage.record(UUID.randomUUID().toString(), TokenAccessManager.UserRole.NONE, 403, 0, 0);
+            }
+            usage.record(null, null, 403, 0, 0);
+            usage.flush();
+
+            final List<String> lines = lines();
+            assertThat(lines).hasSize(2);
+            assertThat(lines).anySatisfy(line -> assertThat(line).contains("token[unknown], role[NONE], requests[100]"));
+            assertThat(lines).anySatisfy(line -> assertThat(line).contains("token[unknown], role[NOT_AUTHENTICATED], requests[1]"));
+        }
+    }
+
+    @Test
+    public void testFlushingWhileRecordingLosesNothing() throws Exception {
+        final int threads = 4;
+        final int requestsPerThread = 20_000;
+        final CountDownLatch recorded = new CountDownLatch(threads);
+        final AtomicBoolean done = new AtomicBoolean();
+        try (UsageAccounting usage = new UsageAccounting(folder, 0, CLOCK, null)) {
+            for (int i = 0; i < threads; i++) {
+                final Thread thread = new Thread(() -> {
+                    for (int j = 0; j < requestsPerThread; j++) {
+                        usage.record("allowed-token", SEARCH_ALLOWED, j % 2 == 0 ? 200 : 500, 3, 2);
+                    }
+                    recorded.countDown();
+                });
+                thread.start();
+            }
+            final Thread flusher = new Thread(() -> {
+                while (done.get() == false) {
+                    try {
+                        usage.flush();
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            flusher.start();
+            recorded.await();
+            done.set(true);
+            flusher.join();
+        }
+
+        // the deltas of all flushes, including the one when closing, add up to everything recorded
+        final long requests = (long) threads * requestsPerThread;
+        assertThat(sum(lines(), "requests")).isEqualTo(requests);
+        assertThat(sum(lines(), "items")).isEqualTo(requests * 3);
+        assertThat(sum(lines(), "errors")).isEqualTo(requests / 2);
+        assertThat(sum(lines(), "executionTimeMs")).isEqualTo(requests * 2);
+    }
+
+    private static long sum(List<String> lines, String name) {
+        final Pattern pattern = Pattern.compile(name + "\\[(\\d+)]");
+        long sum = 0;
+        for (String line : lines) {
+            final Matcher matcher = pattern.matcher(line);
+            assertThat(matcher.find()).isTrue();
+            sum += Long.parseLong(matcher.group(1));
+        }
+        return sum;
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.readAllLines(folder.resolve("usage-2021-05-04.log"), StandardCharsets.UTF_8);
+    }
+}